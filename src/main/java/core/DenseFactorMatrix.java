@@ -0,0 +1,105 @@
+package core;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: core
+ */
+public class DenseFactorMatrix extends FactorMatrix {
+    public final double[] data; //按行连续存放, 行跨度为columns
+
+    public DenseFactorMatrix(int rows, int columns) {
+        this(rows, columns, new double[rows * columns]);
+    }
+
+    public DenseFactorMatrix(int rows, int columns, double[] data) {
+        super(rows, columns);
+        if (data.length != rows * columns) {
+            throw new IllegalArgumentException("Data length does not match " + rows + "x" + columns);
+        }
+        this.data = data;
+    }
+
+    @Override
+    public boolean isFloat() {
+        return false;
+    }
+
+    @Override
+    public double get(int row, int column) {
+        return data[row * columns + column];
+    }
+
+    @Override
+    public void set(int row, int column, double value) {
+        data[row * columns + column] = value;
+    }
+
+    @Override
+    public void add(int row, int column, double delta) {
+        data[row * columns + column] += delta;
+    }
+
+    @Override
+    public double dot(int row, FactorMatrix other, int otherRow) {
+        if (!(other instanceof DenseFactorMatrix)) {
+            return super.dot(row, other, otherRow);
+        }
+        return MathUtility.dot(data, row * columns, ((DenseFactorMatrix) other).data, otherRow * columns, columns);
+    }
+
+    @Override
+    public double squaredNorm(int row) {
+        return MathUtility.squaredNorm(data, row * columns, columns);
+    }
+
+    @Override
+    public double squaredDistance(int row, FactorMatrix other, int otherRow) {
+        if (!(other instanceof DenseFactorMatrix)) {
+            return super.squaredDistance(row, other, otherRow);
+        }
+        return MathUtility.squaredDistance(data, row * columns, ((DenseFactorMatrix) other).data, otherRow * columns, columns);
+    }
+
+    @Override
+    public void axpy(int row, double a, FactorMatrix x, int xRow) {
+        if (!(x instanceof DenseFactorMatrix)) {
+            super.axpy(row, a, x, xRow);
+            return;
+        }
+        MathUtility.axpy(a, ((DenseFactorMatrix) x).data, xRow * columns, data, row * columns, columns);
+    }
+
+    @Override
+    public void axpyTo(int row, double a, double[] out) {
+        MathUtility.axpy(a, data, row * columns, out, 0, columns);
+    }
+
+    @Override
+    public void scaleRow(int row, double factor) {
+        MathUtility.scale(factor, data, row * columns, columns);
+    }
+
+    @Override
+    public void getRow(int row, double[] out) {
+        System.arraycopy(data, row * columns, out, 0, columns);
+    }
+
+    @Override
+    public void setRow(int row, double[] in) {
+        System.arraycopy(in, 0, data, row * columns, columns);
+    }
+
+    @Override
+    public void copyFrom(FactorMatrix source) {
+        if (!(source instanceof DenseFactorMatrix) || source.rows != rows || source.columns != columns) {
+            super.copyFrom(source);
+            return;
+        }
+        System.arraycopy(((DenseFactorMatrix) source).data, 0, data, 0, data.length);
+    }
+}
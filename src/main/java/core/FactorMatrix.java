@@ -0,0 +1,266 @@
+package core;
+
+import java.util.Random;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: core
+ */
+public abstract class FactorMatrix {
+    public final int rows;    //行数 (用户数或商品数)
+    public final int columns; //列数 (隐含特征数f), 也是行跨度
+
+    /**
+     * Description: 隐含特征矩阵, 所有行连续存放在一个一维数组中, 第row行位于 [row*columns, (row+1)*columns).
+     * 子类 DenseFactorMatrix 使用 double[], FloatFactorMatrix 使用 float[] (内存减半, 计算仍用double累加)
+     *
+     * @param rows    行数
+     * @param columns 列数
+     */
+    protected FactorMatrix(int rows, int columns) {
+        if ((long) rows * columns > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Factor matrix too large: " + rows + "x" + columns);
+        }
+        this.rows = rows;
+        this.columns = columns;
+    }
+
+    /**
+     * Description: 创建全0矩阵
+     *
+     * @param rows    行数
+     * @param columns 列数
+     * @param float32 true时使用float存储
+     * @return 特征矩阵
+     */
+    public static FactorMatrix zeros(int rows, int columns, boolean float32) {
+        return float32 ? new FloatFactorMatrix(rows, columns) : new DenseFactorMatrix(rows, columns);
+    }
+
+    /**
+     * Description: 生成一个0-factor的随机数矩阵, 与 MathUtility.randomUniform 相同的分布
+     */
+    public static FactorMatrix randomUniform(int rows, int columns, double factor, boolean float32) {
+        FactorMatrix m = zeros(rows, columns, float32);
+        Random r = new Random();
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < columns; j++) {
+                m.set(i, j, r.nextDouble() * factor);
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Description: 生成一个高斯分布的随机数矩阵, 与 MathUtility.randomGaussian 相同的分布
+     */
+    public static FactorMatrix randomGaussian(int rows, int columns, double mean, double stdev, boolean float32) {
+        FactorMatrix m = zeros(rows, columns, float32);
+        Random r = new Random();
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < columns; j++) {
+                m.set(i, j, (stdev == 0.0 || Double.isNaN(stdev)) ? mean : mean + stdev * r.nextGaussian());
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Description: 由二维数组构造
+     */
+    public static FactorMatrix fromArray(double[][] matrix, boolean float32) {
+        int columns = matrix.length == 0 ? 0 : matrix[0].length;
+        FactorMatrix m = zeros(matrix.length, columns, float32);
+        for (int i = 0; i < matrix.length; i++) {
+            m.setRow(i, matrix[i]);
+        }
+        return m;
+    }
+
+    /**
+     * Description: 转为二维数组(拷贝)
+     */
+    public double[][] toArray() {
+        double[][] matrix = new double[rows][columns];
+        for (int i = 0; i < rows; i++) {
+            getRow(i, matrix[i]);
+        }
+        return matrix;
+    }
+
+    public abstract boolean isFloat();
+
+    /**
+     * Description: 存储占用的字节数
+     */
+    public long memoryBytes() {
+        return (long) rows * columns * (isFloat() ? 4 : 8);
+    }
+
+    public abstract double get(int row, int column);
+
+    public abstract void set(int row, int column, double value);
+
+    public abstract void add(int row, int column, double delta);
+
+    /**
+     * Description: this[row] · other[otherRow]
+     */
+    public double dot(int row, FactorMatrix other, int otherRow) {
+        double s = 0;
+        for (int i = 0; i < columns; i++) {
+            s += get(row, i) * other.get(otherRow, i);
+        }
+        return s;
+    }
+
+    /**
+     * Description: |this[row]|^2
+     */
+    public double squaredNorm(int row) {
+        double s = 0;
+        for (int i = 0; i < columns; i++) {
+            double v = get(row, i);
+            s += v * v;
+        }
+        return s;
+    }
+
+    /**
+     * Description: Σ weights[row]·|this[row]|^2, 每行的范数只算一次. weights为每行的评分数时,
+     * 等于逐条评分累加 |this[row]|^2 的正则项
+     */
+    public double weightedSquaredNorm(int[] weights) {
+        double s = 0;
+        int n = Math.min(rows, weights.length);
+        for (int row = 0; row < n; row++) {
+            if (weights[row] != 0) {
+                s += weights[row] * squaredNorm(row);
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Description: |this[row] - other[otherRow]|^2
+     */
+    public double squaredDistance(int row, FactorMatrix other, int otherRow) {
+        double s = 0;
+        for (int i = 0; i < columns; i++) {
+            double e = get(row, i) - other.get(otherRow, i);
+            s += e * e;
+        }
+        return s;
+    }
+
+    /**
+     * Description: this[row] += a * x[xRow]
+     */
+    public void axpy(int row, double a, FactorMatrix x, int xRow) {
+        for (int i = 0; i < columns; i++) {
+            add(row, i, a * x.get(xRow, i));
+        }
+    }
+
+    /**
+     * Description: out += a * this[row]
+     */
+    public void axpyTo(int row, double a, double[] out) {
+        for (int i = 0; i < columns; i++) {
+            out[i] += a * get(row, i);
+        }
+    }
+
+    /**
+     * Description: this[row] *= factor
+     */
+    public void scaleRow(int row, double factor) {
+        for (int i = 0; i < columns; i++) {
+            set(row, i, get(row, i) * factor);
+        }
+    }
+
+    public void fillRow(int row, double value) {
+        for (int i = 0; i < columns; i++) {
+            set(row, i, value);
+        }
+    }
+
+    /**
+     * Description: 拷贝第row行到out
+     */
+    public void getRow(int row, double[] out) {
+        for (int i = 0; i < columns; i++) {
+            out[i] = get(row, i);
+        }
+    }
+
+    /**
+     * Description: 用in覆盖第row行
+     */
+    public void setRow(int row, double[] in) {
+        for (int i = 0; i < columns; i++) {
+            set(row, i, in[i]);
+        }
+    }
+
+    /**
+     * Description: 用形状相同的source覆盖整个矩阵, 用于拷贝模型快照
+     */
+    public void copyFrom(FactorMatrix source) {
+        if (source.rows != rows || source.columns != columns) {
+            throw new IllegalArgumentException("Shape differs: " + source.rows + "x" + source.columns + " vs " + rows + "x" + columns);
+        }
+        double[] row = new double[columns];
+        for (int i = 0; i < rows; i++) {
+            source.getRow(i, row);
+            setRow(i, row);
+        }
+    }
+
+    /**
+     * Description: 矩阵分解单条评分的sgd更新, 先更新qi再用新的qi更新pu:
+     * qi += gamma * (eui * pu - lambda * qi); pu += gamma * (eui * qi - lambda * pu)
+     *
+     * @param P      用户特征矩阵
+     * @param userId 用户id
+     * @param Q      商品特征矩阵
+     * @param itemId 商品id
+     * @param eui    误差
+     * @param gamma  gamma
+     * @param lambda lambda
+     */
+    public static void sgdUpdate(FactorMatrix P, int userId, FactorMatrix Q, int itemId
+            , double eui, double gamma, double lambda) {
+        int f = P.columns;
+        if (P instanceof DenseFactorMatrix && Q instanceof DenseFactorMatrix) {
+            double[] p = ((DenseFactorMatrix) P).data;
+            double[] q = ((DenseFactorMatrix) Q).data;
+            int pu = userId * f;
+            int qi = itemId * f;
+            for (int i = 0; i < f; i++) {
+                q[qi + i] += gamma * (eui * p[pu + i] - lambda * q[qi + i]);
+                p[pu + i] += gamma * (eui * q[qi + i] - lambda * p[pu + i]);
+            }
+        } else if (P instanceof FloatFactorMatrix && Q instanceof FloatFactorMatrix) {
+            float[] p = ((FloatFactorMatrix) P).data;
+            float[] q = ((FloatFactorMatrix) Q).data;
+            int pu = userId * f;
+            int qi = itemId * f;
+            for (int i = 0; i < f; i++) {
+                q[qi + i] += gamma * (eui * p[pu + i] - lambda * q[qi + i]);
+                p[pu + i] += gamma * (eui * q[qi + i] - lambda * p[pu + i]);
+            }
+        } else {
+            for (int i = 0; i < f; i++) {
+                Q.add(itemId, i, gamma * (eui * P.get(userId, i) - lambda * Q.get(itemId, i)));
+                P.add(userId, i, gamma * (eui * Q.get(itemId, i) - lambda * P.get(userId, i)));
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package core;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: core
+ */
+public class FloatFactorMatrix extends FactorMatrix {
+    public final float[] data; //按行连续存放, 行跨度为columns
+
+    public FloatFactorMatrix(int rows, int columns) {
+        this(rows, columns, new float[rows * columns]);
+    }
+
+    public FloatFactorMatrix(int rows, int columns, float[] data) {
+        super(rows, columns);
+        if (data.length != rows * columns) {
+            throw new IllegalArgumentException("Data length does not match " + rows + "x" + columns);
+        }
+        this.data = data;
+    }
+
+    @Override
+    public boolean isFloat() {
+        return true;
+    }
+
+    @Override
+    public double get(int row, int column) {
+        return data[row * columns + column];
+    }
+
+    @Override
+    public void set(int row, int column, double value) {
+        data[row * columns + column] = (float) value;
+    }
+
+    @Override
+    public void add(int row, int column, double delta) {
+        data[row * columns + column] += delta;
+    }
+
+    @Override
+    public double dot(int row, FactorMatrix other, int otherRow) {
+        if (!(other instanceof FloatFactorMatrix)) {
+            return super.dot(row, other, otherRow);
+        }
+        return MathUtility.dot(data, row * columns, ((FloatFactorMatrix) other).data, otherRow * columns, columns);
+    }
+
+    @Override
+    public double squaredNorm(int row) {
+        return MathUtility.squaredNorm(data, row * columns, columns);
+    }
+
+    @Override
+    public double squaredDistance(int row, FactorMatrix other, int otherRow) {
+        if (!(other instanceof FloatFactorMatrix)) {
+            return super.squaredDistance(row, other, otherRow);
+        }
+        return MathUtility.squaredDistance(data, row * columns, ((FloatFactorMatrix) other).data, otherRow * columns, columns);
+    }
+
+    @Override
+    public void axpy(int row, double a, FactorMatrix x, int xRow) {
+        if (!(x instanceof FloatFactorMatrix)) {
+            super.axpy(row, a, x, xRow);
+            return;
+        }
+        MathUtility.axpy(a, ((FloatFactorMatrix) x).data, xRow * columns, data, row * columns, columns);
+    }
+
+    @Override
+    public void axpyTo(int row, double a, double[] out) {
+        MathUtility.axpy(a, data, row * columns, out, 0, columns);
+    }
+
+    @Override
+    public void scaleRow(int row, double factor) {
+        MathUtility.scale(factor, data, row * columns, columns);
+    }
+
+    @Override
+    public void copyFrom(FactorMatrix source) {
+        if (!(source instanceof FloatFactorMatrix) || source.rows != rows || source.columns != columns) {
+            super.copyFrom(source);
+            return;
+        }
+        System.arraycopy(((FloatFactorMatrix) source).data, 0, data, 0, data.length);
+    }
+}
@@ -0,0 +1,32 @@
+package core;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: core
+ */
+interface Kernels {
+    double dot(double[] a, int aOff, double[] b, int bOff, int n);
+
+    double dot(float[] a, int aOff, float[] b, int bOff, int n);
+
+    double squaredDistance(double[] a, int aOff, double[] b, int bOff, int n);
+
+    double squaredDistance(float[] a, int aOff, float[] b, int bOff, int n);
+
+    void axpy(double alpha, double[] x, int xOff, double[] y, int yOff, int n);
+
+    void axpy(double alpha, float[] x, int xOff, float[] y, int yOff, int n);
+
+    void axpy(double alpha, float[] x, int xOff, double[] y, int yOff, int n);
+
+    void scale(double alpha, double[] x, int xOff, int n);
+
+    void scale(double alpha, float[] x, int xOff, int n);
+
+    void syr(double alpha, double[] x, double[][] a, int n);
+}
@@ -0,0 +1,142 @@
+package core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: core
+ */
+public class MappedFactorMatrix extends FactorMatrix {
+    private final DoubleBuffer doubles; //double存储时的视图, 否则为null
+    private final FloatBuffer floats;   //float存储时的视图, 否则为null
+
+    /**
+     * Description: 直接在(通常是内存映射的)缓冲区上读取特征, 不拷贝到堆内.
+     * 只读映射时 set/add 会抛出 ReadOnlyBufferException, 需要继续训练时应读入 DenseFactorMatrix/FloatFactorMatrix
+     *
+     * @param rows    行数
+     * @param columns 列数
+     * @param buffer  按行存放的小端数据
+     * @param float32 数据是否为float
+     */
+    public MappedFactorMatrix(int rows, int columns, ByteBuffer buffer, boolean float32) {
+        super(rows, columns);
+        long bytes = (long) rows * columns * (float32 ? 4 : 8);
+        if (buffer.remaining() != bytes) {
+            throw new IllegalArgumentException("Buffer length does not match " + rows + "x" + columns);
+        }
+        ByteBuffer view = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        this.doubles = float32 ? null : view.asDoubleBuffer();
+        this.floats = float32 ? view.asFloatBuffer() : null;
+    }
+
+    @Override
+    public boolean isFloat() {
+        return floats != null;
+    }
+
+    @Override
+    public double get(int row, int column) {
+        int k = row * columns + column;
+        return floats != null ? floats.get(k) : doubles.get(k);
+    }
+
+    @Override
+    public void set(int row, int column, double value) {
+        int k = row * columns + column;
+        if (floats != null) {
+            floats.put(k, (float) value);
+        } else {
+            doubles.put(k, value);
+        }
+    }
+
+    @Override
+    public void add(int row, int column, double delta) {
+        set(row, column, get(row, column) + delta);
+    }
+
+    @Override
+    public double dot(int row, FactorMatrix other, int otherRow) {
+        int offset = row * columns;
+        double s = 0;
+        if (other instanceof DenseFactorMatrix) {
+            double[] b = ((DenseFactorMatrix) other).data;
+            int otherOffset = otherRow * columns;
+            for (int i = 0; i < columns; i++) {
+                s += get(offset + i) * b[otherOffset + i];
+            }
+        } else if (other instanceof FloatFactorMatrix && floats != null) {
+            //与 MathUtility.dot(float[]...) 一致: 单精度相乘, 双精度累加
+            float[] b = ((FloatFactorMatrix) other).data;
+            int otherOffset = otherRow * columns;
+            for (int i = 0; i < columns; i++) {
+                s += floats.get(offset + i) * b[otherOffset + i];
+            }
+        } else if (other instanceof MappedFactorMatrix && floats != null && ((MappedFactorMatrix) other).floats != null) {
+            FloatBuffer b = ((MappedFactorMatrix) other).floats;
+            int otherOffset = otherRow * columns;
+            for (int i = 0; i < columns; i++) {
+                s += floats.get(offset + i) * b.get(otherOffset + i);
+            }
+        } else {
+            for (int i = 0; i < columns; i++) {
+                s += get(offset + i) * other.get(otherRow, i);
+            }
+        }
+        return s;
+    }
+
+    @Override
+    public double squaredNorm(int row) {
+        int offset = row * columns;
+        double s = 0;
+        for (int i = 0; i < columns; i++) {
+            double v = get(offset + i);
+            s += v * v;
+        }
+        return s;
+    }
+
+    @Override
+    public double squaredDistance(int row, FactorMatrix other, int otherRow) {
+        int offset = row * columns;
+        double s = 0;
+        for (int i = 0; i < columns; i++) {
+            double e = get(offset + i) - other.get(otherRow, i);
+            s += e * e;
+        }
+        return s;
+    }
+
+    @Override
+    public void axpyTo(int row, double a, double[] out) {
+        int offset = row * columns;
+        for (int i = 0; i < columns; i++) {
+            out[i] += a * get(offset + i);
+        }
+    }
+
+    @Override
+    public void getRow(int row, double[] out) {
+        int offset = row * columns;
+        for (int i = 0; i < columns; i++) {
+            out[i] = get(offset + i);
+        }
+    }
+
+    /**
+     * Description: 按一维下标读取
+     */
+    private double get(int k) {
+        return floats != null ? floats.get(k) : doubles.get(k);
+    }
+}
@@ -0,0 +1,362 @@
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: core
+ */
+public class ModelCheckpoint {
+    public static final int MAGIC = 0x52534d31; //"RSM1"
+    public static final int VERSION = 1;
+
+    private static final byte DOUBLE_MATRIX = 0;
+    private static final byte FLOAT_MATRIX = 1;
+    private static final int WRITE_BUFFER = 1 << 16;
+
+    public String model;   //模型类名, 读取时用于校验
+    public int p = 0;      //用户数
+    public int q = 0;      //商品数
+    public int f = 0;      //特征数
+    public int epoch = 0;  //已完成的迭代轮数, 0表示训练结束后的模型
+    private final Map<String, Double> scalars = new LinkedHashMap<>();
+    private final Map<String, double[]> vectors = new LinkedHashMap<>();
+    private final Map<String, FactorMatrix> matrices = new LinkedHashMap<>();
+
+    /**
+     * Description: 因子模型检查点. 文件格式(小端):
+     * int magic, int version, 模型名, int p, int q, int f, int epoch,
+     * 标量表(名称, double), 向量表(名称, int 长度, double[]), 矩阵目录(名称, byte 类型, int 行, int 列, long 偏移),
+     * 之后是按8字节对齐、按行连续存放的矩阵数据, 读取时可以直接映射为 MappedFactorMatrix
+     *
+     * @param model 模型类名
+     * @param p     用户数
+     * @param q     商品数
+     * @param f     特征数
+     */
+    public ModelCheckpoint(String model, int p, int q, int f) {
+        this.model = model;
+        this.p = p;
+        this.q = q;
+        this.f = f;
+    }
+
+    public void putScalar(String name, double value) {
+        scalars.put(name, value);
+    }
+
+    public double getScalar(String name) {
+        Double value = scalars.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Checkpoint has no scalar:" + name);
+        }
+        return value;
+    }
+
+    public void putVector(String name, double[] vector) {
+        vectors.put(name, vector);
+    }
+
+    public double[] getVector(String name) {
+        double[] vector = vectors.get(name);
+        if (vector == null) {
+            throw new IllegalArgumentException("Checkpoint has no vector:" + name);
+        }
+        return vector;
+    }
+
+    public void putMatrix(String name, FactorMatrix matrix) {
+        matrices.put(name, matrix);
+    }
+
+    public FactorMatrix getMatrix(String name) {
+        FactorMatrix matrix = matrices.get(name);
+        if (matrix == null) {
+            throw new IllegalArgumentException("Checkpoint has no matrix:" + name);
+        }
+        return matrix;
+    }
+
+    /**
+     * Description: 校验检查点与模型是否匹配
+     */
+    public void check(String model, int f) {
+        if (!this.model.equals(model)) {
+            throw new IllegalArgumentException("Checkpoint is for " + this.model + ", not " + model);
+        }
+        if (f > 0 && this.f != f) {
+            throw new IllegalArgumentException("Checkpoint has f=" + this.f + ", model has f=" + f);
+        }
+    }
+
+    /**
+     * Description: 在内存中深拷贝检查点, 作为训练中模型的快照. reuse不为null时复用其中形状相同的向量和矩阵,
+     * 两份快照轮流使用即可避免每次重新分配; 矩阵拷贝到堆内, 保持原有的float/double存储
+     *
+     * @param reuse 可复用的旧快照, 可以为null
+     * @return 快照, 与当前检查点不共享任何数组
+     */
+    public ModelCheckpoint snapshot(ModelCheckpoint reuse) {
+        ModelCheckpoint copy = new ModelCheckpoint(model, p, q, f);
+        copy.epoch = epoch;
+        copy.scalars.putAll(scalars);
+        for (Map.Entry<String, double[]> e : vectors.entrySet()) {
+            double[] old = reuse == null ? null : reuse.vectors.get(e.getKey());
+            double[] vector = old != null && old.length == e.getValue().length ? old : new double[e.getValue().length];
+            System.arraycopy(e.getValue(), 0, vector, 0, vector.length);
+            copy.vectors.put(e.getKey(), vector);
+        }
+        for (Map.Entry<String, FactorMatrix> e : matrices.entrySet()) {
+            FactorMatrix source = e.getValue();
+            FactorMatrix old = reuse == null ? null : reuse.matrices.get(e.getKey());
+            FactorMatrix matrix = old != null && old.rows == source.rows && old.columns == source.columns
+                    && old.isFloat() == source.isFloat() && !(old instanceof MappedFactorMatrix)
+                    ? old : FactorMatrix.zeros(source.rows, source.columns, source.isFloat());
+            matrix.copyFrom(source);
+            copy.matrices.put(e.getKey(), matrix);
+        }
+        return copy;
+    }
+
+    /**
+     * Description: 写入文件, 先写到临时文件再改名, 训练中途崩溃不会留下损坏的检查点
+     *
+     * @param saveFilePath 保存路径
+     */
+    public void write(String saveFilePath) {
+        File target = new File(saveFilePath);
+        File temp = new File(saveFilePath + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE
+                    , StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long headerBytes = headerBytes();
+                long offset = align(headerBytes);
+                ByteBuffer header = ByteBuffer.allocate((int) headerBytes).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC).putInt(VERSION);
+                putString(header, model);
+                header.putInt(p).putInt(q).putInt(f).putInt(epoch);
+                header.putInt(scalars.size());
+                for (Map.Entry<String, Double> e : scalars.entrySet()) {
+                    putString(header, e.getKey());
+                    header.putDouble(e.getValue());
+                }
+                header.putInt(vectors.size());
+                for (Map.Entry<String, double[]> e : vectors.entrySet()) {
+                    putString(header, e.getKey());
+                    header.putInt(e.getValue().length);
+                    for (double v : e.getValue()) {
+                        header.putDouble(v);
+                    }
+                }
+                header.putInt(matrices.size());
+                long[] offsets = new long[matrices.size()];
+                int m = 0;
+                for (Map.Entry<String, FactorMatrix> e : matrices.entrySet()) {
+                    FactorMatrix matrix = e.getValue();
+                    putString(header, e.getKey());
+                    header.put(matrix.isFloat() ? FLOAT_MATRIX : DOUBLE_MATRIX);
+                    header.putInt(matrix.rows).putInt(matrix.columns).putLong(offset);
+                    offsets[m++] = offset;
+                    offset = align(offset + matrix.memoryBytes());
+                }
+                header.flip();
+                writeFully(channel, header, 0);
+
+                ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+                m = 0;
+                for (FactorMatrix matrix : matrices.values()) {
+                    writeMatrix(channel, buffer, matrix, offsets[m++]);
+                }
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            temp.delete();
+            throw new IllegalStateException("Can not write checkpoint:" + saveFilePath, e);
+        }
+    }
+
+    /**
+     * Description: 读取检查点
+     *
+     * @param readFilePath 文件路径
+     * @param mapped       true时矩阵直接映射为只读的 MappedFactorMatrix(不占堆内存, 可立即用于预测);
+     *                     false时拷贝到堆内, 可以继续训练
+     * @return 检查点
+     */
+    public static ModelCheckpoint read(String readFilePath, boolean mapped) {
+        File file = new File(readFilePath);
+        if (!file.exists()) {
+            throw new IllegalArgumentException("File doesn't exist:" + readFilePath);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer probe = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, 8)).order(ByteOrder.LITTLE_ENDIAN);
+            if (size < 8 || probe.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Not a model checkpoint:" + readFilePath);
+            }
+            int version = probe.getInt();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported checkpoint version " + version + ":" + readFilePath);
+            }
+
+            //头部不含矩阵数据, 长度不会超过第一个矩阵的偏移, 这里映射到文件末尾或2G为止
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 8, Math.min(size - 8, Integer.MAX_VALUE))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            ModelCheckpoint checkpoint = new ModelCheckpoint(getString(header), 0, 0, 0);
+            checkpoint.p = header.getInt();
+            checkpoint.q = header.getInt();
+            checkpoint.f = header.getInt();
+            checkpoint.epoch = header.getInt();
+            int n = header.getInt();
+            for (int k = 0; k < n; k++) {
+                String name = getString(header);
+                checkpoint.scalars.put(name, header.getDouble());
+            }
+            n = header.getInt();
+            for (int k = 0; k < n; k++) {
+                String name = getString(header);
+                double[] vector = new double[header.getInt()];
+                header.asDoubleBuffer().get(vector);
+                header.position(header.position() + 8 * vector.length);
+                checkpoint.vectors.put(name, vector);
+            }
+            n = header.getInt();
+            for (int k = 0; k < n; k++) {
+                String name = getString(header);
+                boolean float32 = header.get() == FLOAT_MATRIX;
+                int rows = header.getInt();
+                int columns = header.getInt();
+                long offset = header.getLong();
+                long bytes = (long) rows * columns * (float32 ? 4 : 8);
+                if (bytes > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Matrix " + name + " too large to map:" + rows + "x" + columns);
+                }
+                MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, offset, bytes);
+                data.order(ByteOrder.LITTLE_ENDIAN);
+                FactorMatrix matrix;
+                if (mapped) {
+                    matrix = new MappedFactorMatrix(rows, columns, data, float32);
+                } else if (float32) {
+                    FloatFactorMatrix heap = new FloatFactorMatrix(rows, columns);
+                    data.asFloatBuffer().get(heap.data);
+                    matrix = heap;
+                } else {
+                    DenseFactorMatrix heap = new DenseFactorMatrix(rows, columns);
+                    data.asDoubleBuffer().get(heap.data);
+                    matrix = heap;
+                }
+                checkpoint.matrices.put(name, matrix);
+            }
+            return checkpoint;
+        } catch (IOException e) {
+            throw new IllegalStateException("Can not read checkpoint:" + readFilePath, e);
+        }
+    }
+
+    private long headerBytes() {
+        long bytes = 8 + stringBytes(model) + 16;
+        bytes += 4;
+        for (String name : scalars.keySet()) {
+            bytes += stringBytes(name) + 8;
+        }
+        bytes += 4;
+        for (Map.Entry<String, double[]> e : vectors.entrySet()) {
+            bytes += stringBytes(e.getKey()) + 4 + 8L * e.getValue().length;
+        }
+        bytes += 4;
+        for (String name : matrices.keySet()) {
+            bytes += stringBytes(name) + 1 + 4 + 4 + 8;
+        }
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Checkpoint header too large");
+        }
+        return bytes;
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    private static int stringBytes(String s) {
+        return 2 + s.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static void putString(ByteBuffer buffer, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void writeMatrix(FileChannel channel, ByteBuffer buffer, FactorMatrix matrix, long position) throws IOException {
+        if (matrix instanceof DenseFactorMatrix || matrix instanceof FloatFactorMatrix) { //堆内数组按块整体拷贝
+            writeArray(channel, buffer, matrix, position);
+            return;
+        }
+        buffer.clear();
+        int n = matrix.rows * matrix.columns;
+        int width = matrix.isFloat() ? 4 : 8;
+        for (int k = 0; k < n; k++) {
+            if (buffer.remaining() < width) {
+                buffer.flip();
+                int written = buffer.remaining();
+                writeFully(channel, buffer, position);
+                position += written;
+                buffer.clear();
+            }
+            double v = matrix.get(k / matrix.columns, k % matrix.columns);
+            if (width == 4) {
+                buffer.putFloat((float) v);
+            } else {
+                buffer.putDouble(v);
+            }
+        }
+        buffer.flip();
+        writeFully(channel, buffer, position);
+    }
+
+    private static void writeArray(FileChannel channel, ByteBuffer buffer, FactorMatrix matrix, long position) throws IOException {
+        int n = matrix.rows * matrix.columns;
+        int width = matrix.isFloat() ? 4 : 8;
+        int chunk = buffer.capacity() / width;
+        for (int from = 0; from < n; from += chunk) {
+            int length = Math.min(chunk, n - from);
+            buffer.clear();
+            if (width == 4) {
+                buffer.asFloatBuffer().put(((FloatFactorMatrix) matrix).data, from, length);
+            } else {
+                buffer.asDoubleBuffer().put(((DenseFactorMatrix) matrix).data, from, length);
+            }
+            buffer.limit(length * width);
+            writeFully(channel, buffer, position);
+            position += (long) length * width;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package core;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: core
+ */
+class ScalarKernels implements Kernels {
+    /**
+     * Description: 简单的计数循环, 由C2展开并对axpy/scale/syr做SuperWord向量化.
+     * float存储的运算与原先的内联循环一致: 点积单精度相乘、双精度累加, axpy/scale按double计算后写回float
+     */
+    @Override
+    public double dot(double[] a, int aOff, double[] b, int bOff, int n) {
+        double s = 0;
+        for (int i = 0; i < n; i++) {
+            s += a[aOff + i] * b[bOff + i];
+        }
+        return s;
+    }
+
+    @Override
+    public double dot(float[] a, int aOff, float[] b, int bOff, int n) {
+        double s = 0;
+        for (int i = 0; i < n; i++) {
+            s += a[aOff + i] * b[bOff + i];
+        }
+        return s;
+    }
+
+    @Override
+    public double squaredDistance(double[] a, int aOff, double[] b, int bOff, int n) {
+        double s = 0;
+        for (int i = 0; i < n; i++) {
+            double e = a[aOff + i] - b[bOff + i];
+            s += e * e;
+        }
+        return s;
+    }
+
+    @Override
+    public double squaredDistance(float[] a, int aOff, float[] b, int bOff, int n) {
+        double s = 0;
+        for (int i = 0; i < n; i++) {
+            double e = a[aOff + i] - b[bOff + i];
+            s += e * e;
+        }
+        return s;
+    }
+
+    @Override
+    public void axpy(double alpha, double[] x, int xOff, double[] y, int yOff, int n) {
+        for (int i = 0; i < n; i++) {
+            y[yOff + i] += alpha * x[xOff + i];
+        }
+    }
+
+    @Override
+    public void axpy(double alpha, float[] x, int xOff, float[] y, int yOff, int n) {
+        for (int i = 0; i < n; i++) {
+            y[yOff + i] += alpha * x[xOff + i];
+        }
+    }
+
+    @Override
+    public void axpy(double alpha, float[] x, int xOff, double[] y, int yOff, int n) {
+        for (int i = 0; i < n; i++) {
+            y[yOff + i] += alpha * x[xOff + i];
+        }
+    }
+
+    @Override
+    public void scale(double alpha, double[] x, int xOff, int n) {
+        for (int i = 0; i < n; i++) {
+            x[xOff + i] *= alpha;
+        }
+    }
+
+    @Override
+    public void scale(double alpha, float[] x, int xOff, int n) {
+        for (int i = 0; i < n; i++) {
+            x[xOff + i] *= alpha;
+        }
+    }
+
+    @Override
+    public void syr(double alpha, double[] x, double[][] a, int n) {
+        for (int i = 0; i < n; i++) {
+            double axi = alpha * x[i];
+            double[] ai = a[i];
+            for (int j = i; j < n; j++) {
+                ai[j] += axi * x[j];
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package core.baseline;
 
+import core.recommend.TopNRecommender;
 import data.utility.Tools;
 import entity.Rating;
 import entity.RsTable;
@@ -8,10 +9,7 @@ import evaluation.Metrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
 
 import static data.utility.Tools.getUserItemsTable;
 
@@ -138,22 +136,7 @@ public class Baseline {
      * @return 评分列表
      */
     protected List<Rating> getRecommendations(RsTable ratingTable, double miu, int N) {
-        List<Rating> recommendItems = new ArrayList<>();
-        ArrayList list = ratingTable.getSubKeyList();
-        for (Object userId : ratingTable.keys()) {
-            ConcurrentHashMap Nu = (ConcurrentHashMap) ratingTable.get(userId);
-            List<Rating> predictRatings = new ArrayList<>();
-            for (Object itemId : list) {
-                if (!Nu.containsKey(itemId)) {
-                    double p = predict((Integer) userId, (Integer) itemId, miu);
-                    predictRatings.add(new Rating((Integer) userId, (Integer) itemId, p));
-                }
-            }
-            Collections.sort(predictRatings);
-            recommendItems.addAll(predictRatings.subList(0, Math.min(N, predictRatings.size())));
-        }
-
-        return recommendItems;
+        return TopNRecommender.recommend(ratingTable, N, (userId, itemId) -> predict(userId, itemId, miu));
     }
 
 
@@ -1,17 +1,21 @@
 package core.collaborativeFiltering;
 
+import core.FactorMatrix;
 import core.MathUtility;
+import core.parallel.ParallelFor;
 import data.utility.Tools;
 import entity.Rating;
 import entity.RsTable;
+import entity.SparseRatingMatrix;
 import entity.Tuple;
-import evaluation.Metrics;
+import evaluation.Evaluator;
+import evaluation.SampledEvaluator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * @version: 1.0
@@ -25,6 +29,37 @@ import java.util.concurrent.ConcurrentHashMap;
 public class AlternatingLeastSquares extends MatrixFactorization {
     final static Logger logger = LoggerFactory.getLogger(AlternatingLeastSquares.class);
 
+    public String solver = "cholesky"; //每行的求解方式: cholesky(精确解) | cg(热启动共轭梯度, 适合较大的f)
+    public int cgIterations = 3; //cg模式下每行的迭代次数
+    public boolean implicit = false; //隐式反馈模式(Hu, Koren, Volinsky), 评分视为置信度 c = 1 + alpha * r
+    public double alpha = 40.0; //隐式反馈模式的置信度系数
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<>();
+
+    /**
+     * Description: 每个线程复用的法方程缓存
+     */
+    protected static class Scratch {
+        final double[][] A;
+        final double[] d;
+        final double[] diagonal;
+        final double[] residual;
+        final double[] direction;
+        final double[] product;
+        final double[] x; //待求解行的拷贝
+        final double[] y; //固定侧一行的拷贝
+
+        Scratch(int f) {
+            A = new double[f][f];
+            d = new double[f];
+            diagonal = new double[f];
+            residual = new double[f];
+            direction = new double[f];
+            product = new double[f];
+            x = new double[f];
+            y = new double[f];
+        }
+    }
+
     public AlternatingLeastSquares() {
     }
 
@@ -41,6 +76,10 @@ public class AlternatingLeastSquares extends MatrixFactorization {
         super.initial(p, q, f, fillMethod);
     }
 
+    public AlternatingLeastSquares(int p, int q, int f, String fillMethod, boolean float32) {
+        super.initial(p, q, f, fillMethod, float32);
+    }
+
     /**
      * Description: 输出参数
      *
@@ -53,10 +92,28 @@ public class AlternatingLeastSquares extends MatrixFactorization {
      */
     protected void printParameters(List<Rating> train, List<Rating> test, int epochs, double lambda
             , double minRating, double maxRating) {
+        printParameters(train.size(), test, epochs, lambda, minRating, maxRating);
+    }
+
+    /**
+     * Description: 输出参数
+     *
+     * @param trainSize 训练集评分数
+     * @param test      测试集合
+     * @param epochs    迭代次数
+     * @param lambda    学习率
+     * @param minRating 最低分
+     * @param maxRating 最高分
+     */
+    protected void printParameters(int trainSize, List<Rating> test, int epochs, double lambda
+            , double minRating, double maxRating) {
         logger.info(getClass().getName());
-        logger.info("train,{}", train.size());
+        logger.info("train,{}", trainSize);
         logger.info("test,{}", test == null ? 0 : test.size());
         logger.info("p,{},q,{},f,{}", p, q, f);
+        logger.info("threads,{}", threads);
+        logger.info("solver,{},cgIterations,{}", solver, cgIterations);
+        logger.info("implicit,{},alpha,{}", implicit, alpha);
         logger.info("epochs,{}", epochs);
         logger.info("lambda,{}", lambda);
         logger.info("minimumRating,{}", minRating);
@@ -66,78 +123,295 @@ public class AlternatingLeastSquares extends MatrixFactorization {
     /**
      * Description:计算P矩阵步骤
      *
-     * @param userRatingsTable 用户评分表
-     * @param lambda           学习率
+     * @param userRatings 按用户存储的评分矩阵
+     * @param lambda      学习率
      */
-    protected void stepP(ConcurrentHashMap userRatingsTable, double lambda) {
-        for (Object userId : userRatingsTable.keySet()) {
-            List<Rating> ratings = (List<Rating>) userRatingsTable.get(userId);
+    protected void stepP(SparseRatingMatrix userRatings, double lambda) {
+        solveRows(userRatings, true, lambda);
+    }
 
-            double[][] Au = new double[f][f];
+    /**
+     * Description:计算Q矩阵步骤
+     *
+     * @param itemRatings 按商品存储的评分矩阵
+     * @param lambda      学习率
+     */
+    protected void stepQ(SparseRatingMatrix itemRatings, double lambda) {
+        solveRows(itemRatings, false, lambda);
+    }
 
-            double[] du = new double[f];
+    /**
+     * Description: 固定一侧特征矩阵, 并行求解另一侧每一行的最小二乘解, 各行互不依赖.
+     * 隐式反馈模式下, 固定侧的 Y'Y 每个半步只计算一次, 每行只需叠加自己观测到的稀疏修正项.
+     * 没有评分的行: 显式模式保持不变; 隐式模式下所有偏好均为0, 最小二乘解为零向量, 直接置0
+     *
+     * @param ratings 按待求解一侧存储的评分矩阵
+     * @param byUser  true时求解P, false时求解Q
+     * @param lambda  学习率
+     */
+    protected void solveRows(SparseRatingMatrix ratings, boolean byUser, double lambda) {
+        final FactorMatrix target = byUser ? P : Q;
+        final FactorMatrix fixed = byUser ? Q : P;
+        final double[][] gram = implicit ? computeGram(fixed) : null;
+        final boolean cg = solver.equalsIgnoreCase("cg");
+        ParallelFor.forRange(pool, 0, implicit ? target.rows : Math.min(ratings.rows, target.rows), 64, (from, to) -> {
+            Scratch buffer = getScratch();
+            double[] x = buffer.x;
+            for (int row = from; row < to; row++) {
+                if (row >= ratings.rows || ratings.rowSize(row) == 0) {
+                    if (implicit) {
+                        target.fillRow(row, 0);
+                    }
+                    continue;
+                }
+                target.getRow(row, x);
+                if (cg) {
+                    solveRowConjugateGradient(ratings, row, fixed, gram, x, lambda, buffer);
+                } else {
+                    solveRow(ratings, row, fixed, gram, x, lambda, buffer);
+                }
+                target.setRow(row, x);
+            }
+        });
+    }
 
-            for (Rating r : ratings) { // O(Nu * K^2), rating number of user u
-                for (int i = 0; i < f; i++) {
-                    for (int j = 0; j < f; j++) {
-                        Au[i][j] += Q[r.itemId][i] * Q[r.itemId][j];
+    /**
+     * Description: 并行计算 Y'Y, 按固定大小的块求部分和再按块的顺序相加, 结果与线程数和调度无关
+     *
+     * @param fixed 特征矩阵Y
+     * @return f*f 对称矩阵
+     */
+    protected double[][] computeGram(final FactorMatrix fixed) {
+        double[] upper = ParallelFor.sum(pool, 0, fixed.rows, 1024, f * f, (from, to, s) -> {
+            double[] y = new double[f];
+            for (int k = from; k < to; k++) {
+                fixed.getRow(k, y);
+                for (int i = 0; i < f; i++) { //只累加上三角
+                    double yi = y[i];
+                    int base = i * f;
+                    for (int j = i; j < f; j++) {
+                        s[base + j] += yi * y[j];
                     }
-                    du[i] += r.score * Q[r.itemId][i];
                 }
             }
-            // lamda * I + A
-            for (int i = 0; i < f; i++) {
-                Au[i][i] += lambda * ratings.size();//* ratings.size()
+        });
+        double[][] gram = new double[f][f];
+        for (int i = 0; i < f; i++) {
+            for (int j = i; j < f; j++) {
+                gram[i][j] = upper[i * f + j];
+                gram[j][i] = gram[i][j];
             }
+        }
+        return gram;
+    }
 
-            double[][] AuReverse = MathUtility.inverseMatrix(Au); // O(K^3)
+    /**
+     * Description: 单条评分在法方程左侧 y*y' 上的权重. 显式为1, 隐式为 c-1 = alpha*r
+     */
+    private double gramWeight(double score) {
+        return implicit ? alpha * score : 1.0;
+    }
+
+    /**
+     * Description: 单条评分在法方程右侧 y 上的系数. 显式为r, 隐式为 c*p = 1+alpha*r
+     */
+    private double rhsWeight(double score) {
+        return implicit ? 1.0 + alpha * score : score;
+    }
 
+    /**
+     * Description: 对角线正则项. 显式为 lambda*n, 隐式为 lambda
+     */
+    private double regularization(int n, double lambda) {
+        return implicit ? lambda : lambda * n;
+    }
+
+    /**
+     * Description: 求解单行法方程, 结果直接写入x.
+     * 显式: (sum(y*y') + lambda*n*I) x = sum(r*y);
+     * 隐式: (Y'Y + sum((c-1)*y*y') + lambda*I) x = sum(c*y)
+     *
+     * @param ratings 按待求解一侧存储的评分矩阵
+     * @param row     待求解的行
+     * @param fixed   固定的特征矩阵
+     * @param gram    隐式模式下的 Y'Y, 显式模式为null
+     * @param x       待求解的特征行
+     * @param lambda  学习率
+     * @param buffer  当前线程的缓存
+     */
+    protected void solveRow(SparseRatingMatrix ratings, int row, FactorMatrix fixed, double[][] gram, double[] x
+            , double lambda, Scratch buffer) {
+        double[][] A = buffer.A;
+        double[] d = buffer.d;
+        double[] y = buffer.y;
+        for (int i = 0; i < f; i++) {
+            for (int j = i; j < f; j++) {
+                A[i][j] = gram == null ? 0 : gram[i][j];
+            }
+            d[i] = 0;
+        }
+
+        for (int k = ratings.rowStart(row); k < ratings.rowEnd(row); k++) { // O(Nu * K^2 / 2), 只累加上三角
+            fixed.getRow(ratings.indices[k], y);
+            double w = gramWeight(ratings.values[k]);
+            double t = rhsWeight(ratings.values[k]);
+            MathUtility.syr(w, y, A, f);
+            MathUtility.axpy(t, y, d, f);
+        }
+        // lamda * I + A
+        double reg = regularization(ratings.rowSize(row), lambda);
+        for (int i = 0; i < f; i++) {
+            A[i][i] += reg;
+        }
+
+        // O(K^3 / 6) Cholesky, 只读上三角, 直接解到x中
+        if (!MathUtility.solveSymmetricPositiveDefinite(A, d, x, buffer.diagonal)) {
+            // lambda为0且矩阵奇异时退回到求逆
+            for (int i = 0; i < f; i++) {
+                for (int j = 0; j < i; j++) {
+                    A[i][j] = A[j][i];
+                }
+            }
+            double[][] AReverse = MathUtility.inverseMatrix(A);
             for (int i = 0; i < f; i++) {
                 double vij = 0;
                 for (int j = 0; j < f; j++) {
-                    vij += AuReverse[i][j] * du[j];
+                    vij += AReverse[i][j] * d[j];
                 }
-                P[(int) userId][i] = vij;
+                x[i] = vij;
             }
         }
     }
 
     /**
-     * Description:计算Q矩阵步骤
+     * Description: 以当前行为初值, 用cgIterations步共轭梯度近似求解单行的法方程.
+     * 不显式构造 f*f 矩阵, 每步的矩阵向量乘显式为 O(Nu * K), 隐式为 O(K^2 + Nu * K)
      *
-     * @param itemRatingsTable 商品评分表
-     * @param lambda           学习率
+     * @param ratings 按待求解一侧存储的评分矩阵
+     * @param row     待求解的行
+     * @param fixed   固定的特征矩阵
+     * @param gram    隐式模式下的 Y'Y, 显式模式为null
+     * @param x       待求解的特征行, 同时也是初值
+     * @param lambda  学习率
+     * @param buffer  当前线程的缓存
      */
-    protected void stepQ(ConcurrentHashMap itemRatingsTable, double lambda) {
-        for (Object itemId : itemRatingsTable.keySet()) {
-            List<Rating> ratings = (List<Rating>) itemRatingsTable.get(itemId);
-
-            double[][] Ai = new double[f][f];
-
-            double[] di = new double[f];
+    protected void solveRowConjugateGradient(SparseRatingMatrix ratings, int row, FactorMatrix fixed, double[][] gram
+            , double[] x, double lambda, Scratch buffer) {
+        double reg = regularization(ratings.rowSize(row), lambda);
+        double[] r = buffer.residual;
+        double[] d = buffer.direction;
+        double[] Ad = buffer.product;
+
+        // r = b - A * x
+        multiplyGram(ratings, row, fixed, gram, x, reg, Ad, buffer.y);
+        for (int i = 0; i < f; i++) {
+            r[i] = -Ad[i];
+        }
+        for (int k = ratings.rowStart(row); k < ratings.rowEnd(row); k++) {
+            double t = rhsWeight(ratings.values[k]);
+            fixed.axpyTo(ratings.indices[k], t, r);
+        }
 
-            for (Rating r : ratings) {
-                for (int i = 0; i < f; i++) {
-                    for (int j = 0; j < f; j++) {
-                        Ai[i][j] += P[r.userId][i] * P[r.userId][j];
-                    }
-                    di[i] += r.score * P[r.userId][i];
-                }
+        double rs = 0;
+        for (int i = 0; i < f; i++) {
+            d[i] = r[i];
+            rs += r[i] * r[i];
+        }
+        for (int it = 0; it < cgIterations && rs > 1e-20; it++) {
+            multiplyGram(ratings, row, fixed, gram, d, reg, Ad, buffer.y);
+            double dAd = 0;
+            for (int i = 0; i < f; i++) {
+                dAd += d[i] * Ad[i];
             }
-
+            if (!(dAd > 0)) {
+                break;
+            }
+            double step = rs / dAd;
+            double rsNew = 0;
             for (int i = 0; i < f; i++) {
-                Ai[i][i] += lambda * ratings.size();//* ratings.size()
+                x[i] += step * d[i];
+                r[i] -= step * Ad[i];
+                rsNew += r[i] * r[i];
             }
+            double beta = rsNew / rs;
+            for (int i = 0; i < f; i++) {
+                d[i] = r[i] + beta * d[i];
+            }
+            rs = rsNew;
+        }
+    }
 
-            double[][] AiReverse = MathUtility.inverseMatrix(Ai);
+    /**
+     * Description: 计算 out = (Y'Y + sum(w*y*y') + reg*I) * v, 不构造矩阵
+     *
+     * @param ratings 按待求解一侧存储的评分矩阵
+     * @param row     待求解的行
+     * @param fixed   固定的特征矩阵
+     * @param gram    Y'Y, 可以为null
+     * @param v       向量
+     * @param reg     对角线正则项
+     * @param out     结果
+     * @param y       固定侧一行的缓存
+     */
+    private void multiplyGram(SparseRatingMatrix ratings, int row, FactorMatrix fixed, double[][] gram, double[] v
+            , double reg, double[] out, double[] y) {
+        for (int i = 0; i < f; i++) {
+            out[i] = reg * v[i] + (gram == null ? 0 : MathUtility.dot(gram[i], v, f));
+        }
+        for (int k = ratings.rowStart(row); k < ratings.rowEnd(row); k++) {
+            fixed.getRow(ratings.indices[k], y);
+            double yv = MathUtility.dot(y, v, f) * gramWeight(ratings.values[k]);
+            MathUtility.axpy(yv, y, out, f);
+        }
+    }
+
+    /**
+     * Description: 隐式反馈的损失函数 sum_all(c*(p - x*y)^2) + lambda*(|P|^2 + |Q|^2).
+     * 利用 sum_all((x*y)^2) = sum_u(x_u' * Q'Q * x_u), 只需遍历观测到的评分
+     *
+     * @param userRatings 按用户存储的评分矩阵
+     * @param lambda      学习率
+     * @return 损失值
+     */
+    public double computeImplicitLoss(SparseRatingMatrix userRatings, double lambda) {
+        double[][] gram = computeGram(Q);
+        double loss = 0;
+        double[] x = new double[f];
+        for (int u = 0; u < p; u++) {
+            P.getRow(u, x);
             for (int i = 0; i < f; i++) {
-                double vij = 0;
-                for (int j = 0; j < f; j++) {
-                    vij += AiReverse[i][j] * di[j];
-                }
-                Q[(int) itemId][i] = vij;
+                double gx = MathUtility.dot(gram[i], x, f);
+                loss += x[i] * gx;
+                loss += lambda * x[i] * x[i];
+            }
+        }
+        for (int i = 0; i < q; i++) {
+            loss += lambda * Q.squaredNorm(i);
+        }
+        for (int u = 0; u < userRatings.rows; u++) {
+            for (int k = userRatings.rowStart(u); k < userRatings.rowEnd(u); k++) {
+                double s = predict(u, userRatings.indices[k]);
+                double c = 1.0 + alpha * userRatings.values[k];
+                loss += c * (1 - s) * (1 - s) - s * s;
             }
         }
+        return loss;
+    }
+
+    /**
+     * Description: 当前模式下的训练损失
+     */
+    private double trainingLoss(SparseRatingMatrix userRatings, double lambda) {
+        return implicit ? computeImplicitLoss(userRatings, lambda) : computeLoss(userRatings, lambda);
+    }
+
+    private Scratch getScratch() {
+        Scratch buffer = scratch.get();
+        if (buffer == null || buffer.d.length != f) {
+            buffer = new Scratch(f);
+            scratch.set(buffer);
+        }
+        return buffer;
     }
 
     /**
@@ -162,29 +436,52 @@ public class AlternatingLeastSquares extends MatrixFactorization {
      */
     public void ALS(List<Rating> train, List<Rating> test, int epochs, double lambda
             , double minRating, double maxRating) {
-        List<Rating> trainOrTest = (test == null ? train : test);
+        ALS(SparseRatingMatrix.fromRatings(train, p, q), test, epochs, lambda, minRating, maxRating);
+    }
+
+    /**
+     * Description:直接使用稀疏评分矩阵训练
+     *
+     * @param train     按用户存储的训练集
+     * @param test      测试集, 为null时在训练集上评估
+     * @param epochs    迭代次数
+     * @param lambda    学习率
+     * @param minRating 最低分
+     * @param maxRating 最高分
+     */
+    public void ALS(SparseRatingMatrix train, List<Rating> test, int epochs, double lambda
+            , double minRating, double maxRating) {
+        index = null;
         String trainOrTestString = (test == null ? "train" : "test");
-        printParameters(train, trainOrTest, epochs, lambda, minRating, maxRating);
+        printParameters(train.nnz(), test, epochs, lambda, minRating, maxRating);
 
-        ConcurrentHashMap userRatingsTable = Tools.getUserItemsTable(train);
-        ConcurrentHashMap itemRatingsTable = Tools.getItemUsersTable(train);
+        SparseRatingMatrix itemRatings = train.transpose();
 
-        double loss = computeLoss(train, lambda);
-        for (int epoch = 1; epoch <= epochs; epoch++) {
-            stepP(userRatingsTable, lambda);
-            stepQ(itemRatingsTable, lambda);
+        pool = ParallelFor.createPool(threads);
+        try {
+            double loss = trainingLoss(train, lambda);
+            int firstEpoch = startEpoch + 1;
+            startEpoch = 0;
+            for (int epoch = firstEpoch; epoch <= epochs; epoch++) {
+                stepP(train, lambda);
+                stepQ(itemRatings, lambda);
 
-            double finalLoss = computeLoss(train, lambda);
+                double finalLoss = trainingLoss(train, lambda);
+                checkpoint(epoch);
 
-            if (epoch % 5 == 0) {
-                Tuple maeAndRmse = evaluateMaeRmse(trainOrTest);
-                logger.info("epoch:{},loss:{},{}-mae:{},{}-rmse:{}", epoch, loss, trainOrTestString, maeAndRmse.first, trainOrTestString, maeAndRmse.second);
-            }
-            if (finalLoss < loss) {
-                loss = finalLoss;
-            } else {
-                break;
+                if (epoch % 5 == 0) {
+                    Tuple maeAndRmse = test == null ? evaluateMaeRmse(train) : evaluateMaeRmse(test);
+                    logger.info("epoch:{},loss:{},{}-mae:{},{}-rmse:{}", epoch, loss, trainOrTestString, maeAndRmse.first, trainOrTestString, maeAndRmse.second);
+                }
+                if (finalLoss < loss) {
+                    loss = finalLoss;
+                } else {
+                    break;
+                }
             }
+        } finally {
+            ParallelFor.shutdown(pool);
+            pool = null;
         }
     }
 
@@ -210,39 +507,60 @@ public class AlternatingLeastSquares extends MatrixFactorization {
      */
     public void testALSForTopN(List<Rating> train, List<Rating> test, int epochs, double lambda
             , double minRating, double maxRating) {
+        index = null;
         if (train == null || test == null || train.size() < 1 || test.size() < 1) {
             throw new IllegalArgumentException("训练集和测试集合输入有问题");
         }
         printParameters(train, test, epochs, lambda, minRating, maxRating);
-        double loss = computeLoss(train, lambda);
         int[] K = {80};  // recommdation list
+        int[] sampledK = {10}; //采样验证时每个测试商品与负例一起排序, K取较小值
 
-        ConcurrentHashMap userRatingsTable = Tools.getUserItemsTable(train);
-        ConcurrentHashMap itemRatingsTable = Tools.getItemUsersTable(train);
+        SparseRatingMatrix userRatings = SparseRatingMatrix.fromRatings(train, p, q);
+        SparseRatingMatrix itemRatings = userRatings.transpose();
         RsTable ratingTable = Tools.getRatingTable(train);
-
-        for (int epoch = 1; epoch <= epochs; epoch++) {
-            stepQ(itemRatingsTable, lambda);
-            stepP(userRatingsTable, lambda);
-
-            double lastLoss = computeLoss(train, lambda);
-
-            List<Rating> recommendations = getRecommendations(ratingTable, K[K.length - 1]);   // note that, the max K
-            for (int k : K) {
-                List<Rating> subset = Tools.getSubset(recommendations, k);
-                Tuple pr = Metrics.computePrecisionAndRecall(subset, test);
-                Tuple cp = Metrics.computeCoverageAndPopularity(subset, train);
-                double map = Metrics.computeMAP(subset, test, k);
-                logger.info("epoch:{},loss:{},K:{},precision:{},recall:{},coverage:{},popularity:{},map:{}.",
-                        epoch, loss, k, pr.first, pr.second, cp.first, cp.second, map);
-            }
+        Evaluator evaluator = new Evaluator(train, test, threads);
+        SampledEvaluator sampledEvaluator = sampledNegatives > 0
+                ? new SampledEvaluator(train, test, sampledNegatives, 0, threads) : null;
+
+        pool = ParallelFor.createPool(threads);
+        try {
+            double loss = trainingLoss(userRatings, lambda);
+            int firstEpoch = startEpoch + 1;
+            startEpoch = 0;
+            for (int epoch = firstEpoch; epoch <= epochs; epoch++) {
+                stepQ(itemRatings, lambda);
+                stepP(userRatings, lambda);
+
+                double lastLoss = trainingLoss(userRatings, lambda);
+                checkpoint(epoch);
+
+                if (sampledEvaluator != null) {
+                    for (SampledEvaluator.Result result : sampledEvaluator.evaluate(createScorer(), sampledK)) {
+                        logger.info("epoch:{},loss:{},K:{},sampled hr:{},sampled ndcg:{}.",
+                                epoch, loss, result.K, result.hitRate, result.ndcg);
+                    }
+                }
+                boolean last = epoch == epochs || !(lastLoss < loss);
+                if (sampledEvaluator == null || epoch % fullEvaluationInterval == 0 || last) {
+                    Evaluator.Sink sink = evaluator.sink(K);
+                    recommend(ratingTable, K[K.length - 1], sink);   // note that, the max K
+                    for (Evaluator.Result result : sink.results()) {
+                        logger.info("epoch:{},loss:{},K:{},precision:{},recall:{},coverage:{},popularity:{},map:{},ndcg:{},hr:{},mrr:{}.",
+                                epoch, loss, result.K, result.precision, result.recall, result.coverage, result.popularity
+                                , result.map, result.ndcg, result.hitRate, result.mrr);
+                    }
+                }
 
 
-            if (lastLoss < loss) {
-                loss = lastLoss;
-            } else {
-                break;
+                if (lastLoss < loss) {
+                    loss = lastLoss;
+                } else {
+                    break;
+                }
             }
+        } finally {
+            ParallelFor.shutdown(pool);
+            pool = null;
         }
 
     }
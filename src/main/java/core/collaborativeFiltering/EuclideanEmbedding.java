@@ -1,7 +1,15 @@
 package core.collaborativeFiltering;
 
+import core.FactorMatrix;
+import core.ModelCheckpoint;
+import core.parallel.ParallelFor;
+import core.parallel.SGDScheduler;
+import core.recommend.FactorScorer;
+import core.recommend.HnswIndex;
+import data.utility.Tools;
 import entity.Rating;
 import entity.Tuple;
+import evaluation.SnapshotEvaluator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,55 +35,115 @@ public class EuclideanEmbedding extends BiasedMatrixFactorization {
         initial(p, q, f, fillMethod);
     }
 
+    public EuclideanEmbedding(int p, int q, int f, String fillMethod, boolean float32) {
+        initial(p, q, f, fillMethod, float32);
+    }
+
     @Override
     public double predict(int userId, int itemId, double miu) {
-        double r = 0;
-        for (int i = 0; i < f; i++) {
-            double e = P[userId][i] - Q[itemId][i];
-            r += e * e;
-        }
+        double r = P.squaredDistance(userId, Q, itemId);
         return bu[userId] + bi[itemId] + miu - r;
     }
 
+    /**
+     * Description: bu+bi+miu-|pu-qi|^2 = 2pu·qi + (bu-|pu|^2) + (bi-|qi|^2) + miu, 仍可按矩阵乘法批量打分
+     */
+    @Override
+    protected FactorScorer createScorer(ModelCheckpoint checkpoint) {
+        FactorMatrix P = checkpoint.getMatrix("P");
+        FactorMatrix Q = checkpoint.getMatrix("Q");
+        double[] bu = checkpoint.getVector("bu");
+        double[] bi = checkpoint.getVector("bi");
+        double[] userBias = new double[P.rows];
+        double[] itemBias = new double[Q.rows];
+        for (int u = 0; u < P.rows; u++) {
+            userBias[u] = bu[u] - P.squaredNorm(u);
+        }
+        for (int i = 0; i < Q.rows; i++) {
+            itemBias[i] = bi[i] - Q.squaredNorm(i);
+        }
+        return new FactorScorer(P, Q, 2.0, userBias, itemBias, checkpoint.getScalar("miu"));
+    }
+
+    /**
+     * Description: 模型本身是欧氏距离, 索引直接按欧氏距离检索, 商品偏置吸收到增广的一维中
+     */
+    @Override
+    protected byte indexMetric() {
+        return HnswIndex.EUCLIDEAN;
+    }
+
     @Override
     public void SGD(List<Rating> train, List<Rating> test, int epochs, double gamma, double lambda
             , double decay, double minRating, double maxRating) {
+        index = null;
         List<Rating> trainOrTest = (test == null ? train : test);
         String trainOrTestString = (test == null ? "train" : "test");
         printParameters(train, trainOrTest, epochs, gamma, lambda, decay, minRating, maxRating);
         double miu = computeMiu(train);
-
-        double loss = computeLoss(train, lambda, miu);
-        for (int epoch = 1; epoch <= epochs; epoch++) {
-            for (Rating r : train) {
-                double pui = predict(r.userId, r.itemId, miu);
-                double eui = r.score - pui;
-                bu[r.userId] += gamma * (eui - lambda * bu[r.userId]);
-                bi[r.itemId] += gamma * (eui - lambda * bi[r.itemId]);
-
-                for (int i = 0; i < f; i++) {
-                    double delta = (gamma * (P[r.userId][i] - Q[r.itemId][i]) * (eui + lambda));
-                    P[r.userId][i] -= delta;
-                    Q[r.itemId][i] += delta;
-                }
+        this.miu = miu;
+
+        double loss = Double.POSITIVE_INFINITY; //训练误差在每轮更新时顺带累加, 第一轮不与初始模型比较
+        Tuple<int[], int[]> counts = Tools.getRatingCounts(train, p, q);
+        SnapshotEvaluator snapshots = asyncEvaluation ? createSnapshotEvaluator(trainOrTest, trainOrTestString) : null;
+        SGDScheduler scheduler = createScheduler();
+        pool = ParallelFor.createPool(threads);
+        try {
+            int firstEpoch = startEpoch + 1;
+            startEpoch = 0;
+            if (decay != 1.0) {
+                gamma *= Math.pow(decay, firstEpoch - 1);
             }
-            double lastLoss = computeLoss(train, lambda, miu);
+            for (int epoch = firstEpoch; epoch <= epochs; epoch++) {
+                final double g = gamma;
+                double error = scheduler.runEpoch(train, (userId, itemId, score) -> updateFactors(userId, itemId, score, miu, g, lambda));
+                double lastLoss = error + regularization(counts.first, counts.second, lambda);
+                checkpoint(epoch);
+
+                if (epoch % 5 == 0) {
+                    if (snapshots != null) {
+                        snapshots.submit(toCheckpoint(), epoch, lastLoss);
+                    } else {
+                        Tuple maeAndRmse = evaluateMaeRmse(trainOrTest, miu);
+                        logger.info("epoch:{},loss:{},{}-mae:{},{}-rmse:{}", epoch, loss, trainOrTestString, maeAndRmse.first, trainOrTestString, maeAndRmse.second);
+                    }
 
-            if (epoch % 5 == 0){
-                Tuple maeAndRmse = evaluateMaeRmse(trainOrTest, miu);
-                logger.info("epoch:{},loss:{},{}-mae:{},{}-rmse:{}", epoch, loss, trainOrTestString, maeAndRmse.first, trainOrTestString, maeAndRmse.second);
+                }
 
+                if (decay != 1.0) {
+                    gamma *= decay;
+                }
+                if (lastLoss < loss) {
+                    loss = lastLoss;
+                } else {
+                    break;
+                }
+                if (snapshots != null && snapshots.shouldStop()) {
+                    break;
+                }
             }
+        } finally {
+            scheduler.shutdown();
+            ParallelFor.shutdown(pool);
+            pool = null;
+        }
+        if (snapshots != null) {
+            finishSnapshots(snapshots);
+        }
+    }
 
-            if (decay != 1.0) {
-                gamma *= decay;
-            }
-            if (lastLoss < loss) {
-                loss = lastLoss;
-            } else {
-                break;
-            }
+    @Override
+    protected double updateFactors(int userId, int itemId, double score, double miu, double gamma, double lambda) {
+        double eui = score - predict(userId, itemId, miu);
+        bu[userId] += gamma * (eui - lambda * bu[userId]);
+        bi[itemId] += gamma * (eui - lambda * bi[itemId]);
+
+        for (int i = 0; i < f; i++) {
+            double delta = (gamma * (P.get(userId, i) - Q.get(itemId, i)) * (eui + lambda));
+            P.add(userId, i, -delta);
+            Q.add(itemId, i, delta);
         }
+        return eui * eui;
     }
 
     /**
@@ -1,11 +1,15 @@
 package core.collaborativeFiltering;
 
+import core.FactorMatrix;
+import core.ModelCheckpoint;
+import core.parallel.ParallelFor;
+import core.recommend.FactorScorer;
 import data.utility.Tools;
 import entity.Link;
 import entity.Rating;
 import entity.RsTable;
 import entity.Tuple;
-import evaluation.Metrics;
+import evaluation.Evaluator;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -21,7 +25,7 @@ import java.util.concurrent.ConcurrentHashMap;
  * @package_name: core.collaborativeFiltering
  */
 public class FriendMatrixFactorization extends MatrixFactorization {
-    protected double[][] X = null; // 关系weighted
+    protected FactorMatrix X = null; // 关系weighted
 
 
     public FriendMatrixFactorization() {
@@ -31,30 +35,41 @@ public class FriendMatrixFactorization extends MatrixFactorization {
         initial(p, q, f, fillMethod);
     }
 
+    public FriendMatrixFactorization(int p, int q, int f, String fillMethod, boolean float32) {
+        initial(p, q, f, fillMethod, float32);
+    }
+
+    @Override
+    public void initial(int p, int q, int f, String fillMethod, boolean float32) {
+        super.initial(p, q, f, fillMethod, float32);
+        X = FactorMatrix.zeros(p, f, float32);
+    }
+
     @Override
-    public void initial(int p, int q, int f, String fillMethod) {
-        super.initial(p, q, f, fillMethod);
-        X = new double[p][f];
+    protected ModelCheckpoint toCheckpoint() {
+        ModelCheckpoint checkpoint = super.toCheckpoint();
+        checkpoint.putMatrix("X", X);
+        return checkpoint;
+    }
+
+    @Override
+    protected void fromCheckpoint(ModelCheckpoint checkpoint) {
+        super.fromCheckpoint(checkpoint);
+        X = checkpoint.getMatrix("X");
     }
 
     protected void updateX(int uId, List<Link> links, double w) {
-        for (int i = 0; i < f; i++) {
-            X[uId][i] = 0;
-        }
+        X.fillRow(uId, 0);
 
         for (Link t : links) {
-            if (t.to > p) {
+            if (t.to >= p) {
                 continue;
             }
-            for (int i = 0; i < f; i++) {
-                X[uId][i] += P[t.to][i];
-            }
+            X.axpy(uId, 1.0, P, t.to);
         }
 
         if (links.size() > 0) {
-            for (int i = 0; i < f; i++) {
-                X[uId][i] *= (w * 1.0 / links.size());  //  (w / Math.Sqrt(friends.Count));
-            }
+            X.scaleRow(uId, w * 1.0 / links.size());  //  (w / Math.Sqrt(friends.Count));
         }
 
     }
@@ -69,11 +84,33 @@ public class FriendMatrixFactorization extends MatrixFactorization {
 
     @Override
     public double predict(int uId, int iId) {
-        double r = 0;
+        return P.dot(uId, Q, iId) + P.dot(uId, X, uId);
+    }
+
+    /**
+     * Description: P[u]·X[u] 只与用户有关, 作为用户偏置
+     */
+    @Override
+    protected FactorScorer createScorer(ModelCheckpoint checkpoint) {
+        FactorMatrix P = checkpoint.getMatrix("P");
+        FactorMatrix X = checkpoint.getMatrix("X");
+        double[] userBias = new double[P.rows];
+        for (int u = 0; u < P.rows; u++) {
+            userBias[u] = P.dot(u, X, u);
+        }
+        return new FactorScorer(P, checkpoint.getMatrix("Q"), 1.0, userBias, null, 0);
+    }
+
+    @Override
+    protected double updateFactors(int userId, int itemId, double score, double gamma, double lambda) {
+        double eui = score - predict(userId, itemId);
         for (int i = 0; i < f; i++) {
-            r += P[uId][i] * (Q[iId][i] + X[uId][i]);
+            double pu = P.get(userId, i);
+            pu += gamma * (eui * (Q.get(itemId, i) * X.get(userId, i)) - lambda * pu);
+            P.set(userId, i, pu);
+            Q.add(itemId, i, gamma * (eui * pu - lambda * Q.get(itemId, i)));
         }
-        return r;
+        return eui * eui;
     }
 
     private void printParameters(List<Rating> train, List<Rating> test, List<Link> links, double w, int epochs, double gamma, double lambda
@@ -95,6 +132,7 @@ public class FriendMatrixFactorization extends MatrixFactorization {
 
     private void SGD(List<Rating> train, List<Rating> test, List<Link> links, double w, int epochs, double gamma
             , double lambda, double decay, double minRating, double maxRating) {
+        index = null;
         List<Rating> trainOrTest = test == null ? train : test;
         String trainOrTestString = test == null ? "train-rmse" : "test-rmse";
         printParameters(train, trainOrTest, links, w, epochs, gamma, lambda, decay, minRating, maxRating);
@@ -102,37 +140,39 @@ public class FriendMatrixFactorization extends MatrixFactorization {
         ConcurrentHashMap userLinksTable = Tools.getUserLinksTable(links);
 
         updateX(userLinksTable, w);
-        double loss = computeLoss(train, lambda);
-
-        for (int epoch = 0; epoch < epochs; epoch++) {
-            for (Object userId : userItemsTable.keySet()) {
-                if (userLinksTable.containsKey(userId)) {
-                    List<Link> links1 = (List<Link>) userLinksTable.get(userId);
-                    updateX((Integer) userId, links1, w);
-                }
+        Tuple<int[], int[]> counts = Tools.getRatingCounts(train, p, q);
+        pool = ParallelFor.createPool(threads);
+        try {
+            double loss = computeLoss(train, lambda, counts.first, counts.second);
+
+            for (int epoch = 0; epoch < epochs; epoch++) {
+                for (Object userId : userItemsTable.keySet()) {
+                    if (userLinksTable.containsKey(userId)) {
+                        List<Link> links1 = (List<Link>) userLinksTable.get(userId);
+                        updateX((Integer) userId, links1, w);
+                    }
 
-                List<Rating> ratings = (List<Rating>) userItemsTable.get(userId);
-                for (Rating r : ratings) {
-                    double pui = predict(r.userId, r.itemId);
-                    double eui = r.score - pui;
-                    for (int i = 0; i < f; i++) {
-                        P[r.userId][i] += gamma * (eui * (Q[r.itemId][i] * X[r.userId][i]) - lambda * P[r.userId][i]);
-                        Q[r.itemId][i] += gamma * (eui * P[r.userId][i] - lambda * Q[r.itemId][i]);
+                    List<Rating> ratings = (List<Rating>) userItemsTable.get(userId);
+                    for (Rating r : ratings) {
+                        updateFactors(r.userId, r.itemId, r.score, gamma, lambda);
                     }
                 }
-            }
-            double lastLoss = computeLoss(train, lambda);
-            Tuple maeAndRmse = evaluateMaeRmse(test, minRating, maxRating);
-            logger.info("epoch:{},loss:{},train-mae:{},{}:{}", epoch, loss, maeAndRmse.first, trainOrTestString, maeAndRmse.second);
+                double lastLoss = computeLoss(train, lambda, counts.first, counts.second);
+                Tuple maeAndRmse = evaluateMaeRmse(test, minRating, maxRating);
+                logger.info("epoch:{},loss:{},train-mae:{},{}:{}", epoch, loss, maeAndRmse.first, trainOrTestString, maeAndRmse.second);
 
-            if (decay != 1.0) {
-                gamma *= decay;
-            }
-            if (lastLoss < loss) {
-                loss = lastLoss;
-            } else {
-                break;
+                if (decay != 1.0) {
+                    gamma *= decay;
+                }
+                if (lastLoss < loss) {
+                    loss = lastLoss;
+                } else {
+                    break;
+                }
             }
+        } finally {
+            ParallelFor.shutdown(pool);
+            pool = null;
         }
 
     }
@@ -152,57 +192,59 @@ public class FriendMatrixFactorization extends MatrixFactorization {
      */
     public void testSGDForTopN(List<Rating> train, List<Rating> test, List<Link> links, double w, int epochs
             , double gamma, double lambda, double decay, double minRating, double maxRating) {
+        index = null;
         printParameters(train, test, links, w, epochs, gamma, lambda, decay, minRating, maxRating);
 
         RsTable ratingTable = Tools.getRatingTable(train);
+        Evaluator evaluator = new Evaluator(train, test, threads);
         ConcurrentHashMap userItemsTable = Tools.getUserItemsTable(train);
         ConcurrentHashMap userLinksTable = Tools.getUserLinksTable(links);
 
         updateX(userLinksTable, w);
-        double loss = computeLoss(train, lambda);
-        int[] K = {1, 5, 10, 15, 20, 25, 30};
-
-        for (int epoch = 1; epoch <= epochs; epoch++) {
-            for (Object userId : userItemsTable.keySet()) {
-                if (userLinksTable.containsKey(userId)) {
-                    List<Link> links1 = (List<Link>) userLinksTable.get(userId);
-                    updateX((Integer) userId, links1, w);
+        Tuple<int[], int[]> counts = Tools.getRatingCounts(train, p, q);
+        pool = ParallelFor.createPool(threads);
+        try {
+            double loss = computeLoss(train, lambda, counts.first, counts.second);
+            int[] K = {1, 5, 10, 15, 20, 25, 30};
+
+            for (int epoch = 1; epoch <= epochs; epoch++) {
+                for (Object userId : userItemsTable.keySet()) {
+                    if (userLinksTable.containsKey(userId)) {
+                        List<Link> links1 = (List<Link>) userLinksTable.get(userId);
+                        updateX((Integer) userId, links1, w);
+                    }
+
+                    List<Rating> ratings = (List<Rating>) userItemsTable.get(userId);
+                    for (Rating r : ratings) {
+                        updateFactors(r.userId, r.itemId, r.score, gamma, lambda);
+                    }
                 }
 
-                List<Rating> ratings = (List<Rating>) userItemsTable.get(userId);
-                for (Rating r : ratings) {
-                    double pui = predict(r.userId, r.itemId);
-                    double eui = r.score - pui;
-                    for (int i = 0; i < f; i++) {
-                        P[r.userId][i] += gamma * (eui * (Q[r.itemId][i] * X[r.userId][i]) - lambda * P[r.userId][i]);
-                        Q[r.itemId][i] += gamma * (eui * P[r.userId][i] - lambda * Q[r.itemId][i]);
+                double lastLoss = computeLoss(train, lambda, counts.first, counts.second);
+                if (epoch % 5 == 0) {
+                    Evaluator.Sink sink = evaluator.sink(K);
+                    recommend(ratingTable, K[K.length - 1], sink);   // note that, the max K
+                    for (Evaluator.Result result : sink.results()) {
+                        logger.info("epoch:{}, lastLoss:{},K:{},precision:{},recall:{},coverage:{},popularity:{},map:{},ndcg:{},hr:{},mrr:{}.",
+                                epoch, lastLoss, result.K, result.precision, result.recall, result.coverage, result.popularity
+                                , result.map, result.ndcg, result.hitRate, result.mrr);
                     }
                 }
-            }
 
-            double lastLoss = computeLoss(train, lambda);
-            if (epoch % 5 == 0) {
-                List<Rating> recommendations = getRecommendations(ratingTable, K[K.length - 1]);   // note that, the max K
-                for (int k : K) {
-                    List<Rating> subset = Tools.getSubset(recommendations, k);
-                    Tuple pr = Metrics.computePrecisionAndRecall(subset, test);
-                    Tuple cp = Metrics.computeCoverageAndPopularity(subset, train);
-                    Double map = Metrics.computeMAP(subset, test, k);
-                    logger.info("epoch:{}, lastLoss:{},K:{},precision:{},recall:{},coverage:{},popularity:{},map:{}.",
-                            epoch, lastLoss, k, pr.first, pr.second, cp.first, cp.second, map);
+                if (decay != 1) {
+                    gamma *= decay;
                 }
-            }
 
-            if (decay != 1) {
-                gamma *= decay;
-            }
+                if (lastLoss < loss) {
+                    loss = lastLoss;
+                } else {
+                    break;
+                }
 
-            if (lastLoss < loss) {
-                loss = lastLoss;
-            } else {
-                break;
             }
-
+        } finally {
+            ParallelFor.shutdown(pool);
+            pool = null;
         }
 
 
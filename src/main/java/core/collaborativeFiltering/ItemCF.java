@@ -1,8 +1,10 @@
 package core.collaborativeFiltering;
 
 import core.MathUtility;
-import data.utility.Tools;
+import entity.IntDoubleMap;
+import entity.IntDoubleTable;
 import entity.Rating;
+import entity.SparseRatingMatrix;
 import entity.Tuple;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,6 +23,8 @@ import java.util.List;
 public class ItemCF {
     final static Logger logger = LoggerFactory.getLogger(ItemCF.class);
 
+    public int threads = 1; //相似性计算的并行线程数
+
 
     public double[] calculateItemMeanRating(List<Rating> ratings, int numberOfItems) {
         double[] itemMeanRatings = new double[numberOfItems];
@@ -37,28 +41,43 @@ public class ItemCF {
         return itemMeanRatings;
     }
 
-    protected double predict(double[] itemMeanRatings, double[][] similarities, double[][] ratingsMatrix,
+    /**
+     * Description: 预测评分, 只遍历该用户评过分的商品
+     *
+     * @param itemMeanRatings 商品平均评分
+     * @param similarities    商品相似性表
+     * @param userItems       按用户存储的评分矩阵
+     * @param userId          用户id
+     * @param itemId          商品id
+     * @return 预测评分
+     */
+    protected double predict(double[] itemMeanRatings, IntDoubleTable similarities, SparseRatingMatrix userItems,
                              int userId, int itemId) {
         double score = itemMeanRatings[itemId];
-        int n = similarities.length;
+        IntDoubleMap wi = similarities.get(itemId);
+        if (wi == null || userId >= userItems.rows) {
+            return score;
+        }
         double numerator = 0;
         double denominator = 0;
-        for (int i = 0; i < n; i++) {
-            if (ratingsMatrix[userId][i] > 0 && similarities[itemId][i] > 0) {
-                denominator += similarities[itemId][i];
-                numerator += similarities[itemId][i] * (ratingsMatrix[userId][i] - itemMeanRatings[i]);
+        for (int k = userItems.rowStart(userId); k < userItems.rowEnd(userId); k++) {
+            int i = userItems.indices[k];
+            double w = wi.get(i);
+            if (userItems.values[k] > 0 && w > 0) {
+                denominator += w;
+                numerator += w * (userItems.values[k] - itemMeanRatings[i]);
             }
         }
         score += (denominator > 0 ? numerator / denominator : 0);
         return score;
     }
 
-    protected Tuple evaluateMaeRmse(double[] itemMeanRatings, double[][] similarities,
-                                    double[][] ratingsMatrix, List<Rating> test) {
+    protected Tuple evaluateMaeRmse(double[] itemMeanRatings, IntDoubleTable similarities,
+                                    SparseRatingMatrix userItems, List<Rating> test) {
         double mae = 0.0;
         double rmse = 0.0;
         for (Rating r : test) {
-            double pre = predict(itemMeanRatings, similarities, ratingsMatrix, r.userId, r.itemId);
+            double pre = predict(itemMeanRatings, similarities, userItems, r.userId, r.itemId);
             double error = pre - r.score;
             rmse += error * error;
             mae += Math.abs(error);
@@ -73,10 +92,10 @@ public class ItemCF {
 
     public void itemCFMaeRmse(List<Rating> train, List<Rating> test, int maxUserId, int maxItemId) {
         double[] itemMeanRatings = calculateItemMeanRating(train, maxItemId + 1);
-        double[][] trainMatrix = Tools.transfrom(train, maxUserId + 1, maxItemId + 1);
-        double[][] similarities = MathUtility.computeSimilarity(MathUtility.transpose(trainMatrix), "Jaccard");   // PearsonCorrelation | Cosine
+        SparseRatingMatrix userItems = SparseRatingMatrix.fromRatings(train, maxUserId + 1, maxItemId + 1);
+        IntDoubleTable similarities = MathUtility.computeRowSimilarity(userItems.transpose(), "Jaccard", threads);   // PearsonCorrelation | Cosine
 
-        Tuple result = evaluateMaeRmse(itemMeanRatings, similarities, trainMatrix, test);
+        Tuple result = evaluateMaeRmse(itemMeanRatings, similarities, userItems, test);
         logger.info("ItemKNN,mae,{},rmse,{}", result.first, result.second);
     }
 
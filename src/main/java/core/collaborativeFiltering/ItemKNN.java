@@ -1,16 +1,21 @@
 package core.collaborativeFiltering;
 
+import core.parallel.ParallelFor;
+import core.recommend.NeighbourIndex;
+import core.recommend.TopNHeap;
 import data.utility.Tools;
-import entity.Link;
+import entity.IntDoubleMap;
+import entity.IntDoubleTable;
 import entity.Rating;
 import entity.RsTable;
+import entity.SparseRatingMatrix;
 import entity.Tuple;
 import evaluation.Metrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * @version: 1.0
@@ -24,148 +29,221 @@ import java.util.concurrent.ConcurrentHashMap;
 public class ItemKNN {
     final static Logger logger = LoggerFactory.getLogger(ItemKNN.class);
 
+    public int threads = 1; //共现计算的并行线程数
+    public int maxItemsPerUser = 0; //每个用户最多参与共现计算的商品数, 0表示不限制
+    public double minSimilarity = 0; //相似度低于该值的商品不进入近邻索引
+
     /**
-     * Description: 计算两个商品共同被一个用户同时购买的次数
+     * Description: 计算两个商品共同被一个用户同时购买的次数(按用户活跃度降权).
+     * 按商品行并行: 商品i的一行 = Σ_{u∈N(i)} w_u·N(u), 每个任务用稠密累加数组计算自己负责的行, 各行互不相交, 不需要合并.
+     * 每个单元按用户id升序累加, 不限制用户商品数时结果与逐用户两两累加完全相同
      *
-     * @param userItemsTable 用户-物品 hashtable
+     * @param userItems 按用户存储的评分矩阵, 每行为该用户购买的物品
      * @return 两个商品的相似性
      */
-    protected RsTable calculateCoOccurrences(ConcurrentHashMap<Integer, List<Rating>> userItemsTable) {
-        RsTable cooccurrences = new RsTable();
-        //遍历用户id
-        for (int userId : userItemsTable.keySet()) {
-            List<Rating> items = userItemsTable.get(userId);
-            for (Rating i : items) {
-                for (Rating j : items) {
-                    if (i.itemId == j.itemId) {
-                        continue;
+    protected IntDoubleTable calculateCoOccurrences(SparseRatingMatrix userItems) {
+        final SparseRatingMatrix users = capItemsPerUser(userItems);
+        final SparseRatingMatrix itemUsers = users.transpose();
+        final double[] weights = new double[users.rows];
+        for (int userId = 0; userId < users.rows; userId++) {
+            weights[userId] = 1.0 / Math.log(users.rowSize(userId) + 1);//降低热门用户的影响
+        }
+
+        final IntDoubleMap[] rows = new IntDoubleMap[itemUsers.rows];
+        int grain = Math.max(1, itemUsers.rows / (Math.max(1, threads) * 8));
+        ForkJoinPool pool = ParallelFor.createPool(threads);
+        try {
+            ParallelFor.forRange(pool, 0, itemUsers.rows, grain, (from, to) -> {
+                double[] sums = new double[users.columns];
+                boolean[] marked = new boolean[users.columns];
+                int[] touched = new int[users.columns];
+                for (int iId = from; iId < to; iId++) {
+                    int count = 0;
+                    for (int a = itemUsers.rowStart(iId); a < itemUsers.rowEnd(iId); a++) {
+                        int userId = itemUsers.indices[a];
+                        double weight = weights[userId];
+                        for (int b = users.rowStart(userId); b < users.rowEnd(userId); b++) {
+                            int jId = users.indices[b];
+                            if (iId == jId) {
+                                continue;
+                            }
+                            if (!marked[jId]) {
+                                marked[jId] = true;
+                                touched[count++] = jId;
+                            }
+                            sums[jId] += weight;
+                        }
                     }
-                    if (!cooccurrences.containsKey(i.itemId, j.itemId)) {
-                        cooccurrences.put(i.itemId, j.itemId, 1.0 / Math.log(items.size() + 1));//降低热门用户的影响
-                    } else {
-                        double value = (double) cooccurrences.get(i.itemId, j.itemId);
-                        cooccurrences.put(i.itemId, j.itemId, value + 1.0 / Math.log(items.size() + 1));
+                    if (count > 0) {
+                        IntDoubleMap row = new IntDoubleMap();
+                        for (int k = 0; k < count; k++) {
+                            int jId = touched[k];
+                            row.put(jId, sums[jId]);
+                            sums[jId] = 0;
+                            marked[jId] = false;
+                        }
+                        rows[iId] = row;
                     }
                 }
-            }
+            });
+        } finally {
+            ParallelFor.shutdown(pool);
         }
 
+        IntDoubleTable cooccurrences = new IntDoubleTable();
+        for (int iId = 0; iId < rows.length; iId++) {
+            if (rows[iId] != null) {
+                cooccurrences.putRow(iId, rows[iId]);
+            }
+        }
         return cooccurrences;
     }
 
+    /**
+     * Description: 每个用户最多保留maxItemsPerUser个商品, 超出时以用户id为种子随机抽取(结果可复现),
+     * 限制重度用户 O(n²) 的共现对数
+     *
+     * @param userItems 按用户存储的评分矩阵
+     * @return 截断后的矩阵, 不需要截断时返回原矩阵
+     */
+    protected SparseRatingMatrix capItemsPerUser(SparseRatingMatrix userItems) {
+        int cap = maxItemsPerUser;
+        if (cap <= 0) {
+            return userItems;
+        }
+        int[] offsets = new int[userItems.rows + 1];
+        for (int userId = 0; userId < userItems.rows; userId++) {
+            offsets[userId + 1] = offsets[userId] + Math.min(userItems.rowSize(userId), cap);
+        }
+        if (offsets[userItems.rows] == userItems.nnz()) {
+            return userItems;
+        }
+        int[] indices = new int[offsets[userItems.rows]];
+        float[] values = new float[indices.length];
+        int[] positions = new int[0];
+        for (int userId = 0; userId < userItems.rows; userId++) {
+            int start = userItems.rowStart(userId);
+            int size = userItems.rowSize(userId);
+            if (size <= cap) {
+                System.arraycopy(userItems.indices, start, indices, offsets[userId], size);
+                System.arraycopy(userItems.values, start, values, offsets[userId], size);
+                continue;
+            }
+            if (positions.length < size) {
+                positions = new int[size];
+            }
+            for (int k = 0; k < size; k++) {
+                positions[k] = start + k;
+            }
+            Random random = new Random(userId);
+            for (int k = 0; k < cap; k++) {
+                int r = k + random.nextInt(size - k);
+                int t = positions[k];
+                positions[k] = positions[r];
+                positions[r] = t;
+            }
+            Arrays.sort(positions, 0, cap); //保持每行列下标升序
+            for (int k = 0; k < cap; k++) {
+                indices[offsets[userId] + k] = userItems.indices[positions[k]];
+                values[offsets[userId] + k] = userItems.values[positions[k]];
+            }
+        }
+        return new SparseRatingMatrix(userItems.rows, userItems.columns, offsets, indices, values);
+    }
+
 
     /**
      * Description: 计算两个商品的Jccard相似性
      *
-     * @param coourrencesTable 两个用户的的相似性分子rstable
-     * @param itemUsersTable   商品-用户评分hashtable
-     * @return 商品相似性 rstable
+     * @param coourrencesTable 两个用户的的相似性分子表
+     * @param itemUsers        按商品存储的评分矩阵
+     * @return 商品相似性表
      */
-    protected RsTable calculateSimilarities(RsTable coourrencesTable, ConcurrentHashMap<Integer, List<Rating>> itemUsersTable) {
-        RsTable wuv = new RsTable();
-        //遍历每个商品
-        for (Object iItemId : coourrencesTable.keys()) {
-            int iId = (Integer) iItemId;
-            ConcurrentHashMap subTable = (ConcurrentHashMap) coourrencesTable.get(iItemId);
-            //获取该商品id的所有评分--获取评分用户数量
-            List<Rating> iRatings = itemUsersTable.get(iId);
-            for (Object jItemId : subTable.keySet()) {
-                if (iItemId == jItemId) {
-                    continue;
-                }
-                //获取该商品id的所有评分--获取评分用户数量
-                List<Rating> jRatings = itemUsersTable.get((int) jItemId);
-                //计算商品相似性
-                wuv.put(iItemId, jItemId, (double) coourrencesTable.get(iItemId, jItemId) * 1.0
-                        / Math.sqrt(iRatings.size() + jRatings.size()));
+    protected IntDoubleTable calculateSimilarities(IntDoubleTable coourrencesTable, SparseRatingMatrix itemUsers) {
+        IntDoubleTable wuv = new IntDoubleTable();
+        //遍历每对商品
+        IntDoubleTable.Cursor c = coourrencesTable.cursor();
+        while (c.next()) {
+            int iId = c.mainKey();
+            int jId = c.subKey();
+            if (iId == jId) {
+                continue;
             }
+            //获取评分用户数量
+            int iSize = itemUsers.rowSize(iId);
+            int jSize = itemUsers.rowSize(jId);
+            //计算商品相似性
+            wuv.put(iId, jId, c.value() / Math.sqrt(iSize + jSize));
         }
         return wuv;
     }
 
     /**
-     * Description: 获取商品的topK相似商品
+     * Description: 由训练集计算商品相似度, 建立每个商品的top-K近邻索引. 索引可以保存后直接用于推荐, 不再计算相似度
      *
-     * @param wTable 商品相似性rsTable
-     * @param itemId 商品id
-     * @param K      KNN的K
-     * @return List<Link> 某商品的相似性列表
+     * @param train 训练集
+     * @param K     每个商品保留的相似商品数
+     * @return 近邻索引
      */
-    protected List<Link> getSimilarItems(RsTable wTable, int itemId, int K) {
-        if (K < 1)
-            K = 80;
-        //获取itemId对应的所有相似商品和相似商品对应的相似性
-        ConcurrentHashMap subTable = (ConcurrentHashMap) wTable.get(itemId);
-        List<Link> weights = new ArrayList<>();
-        //遍历商品id
-        for (Object vId : subTable.keySet()) {
-            double w = (double) subTable.get(vId);
-            Link l = new Link(itemId, (Integer) vId, w);
-            weights.add(l);
-        }
+    public NeighbourIndex buildNeighbourIndex(List<Rating> train, int K) {
+        SparseRatingMatrix userItems = SparseRatingMatrix.fromRatings(train);
+        SparseRatingMatrix itemUsers = userItems.transpose();
 
-        //排序
-        Collections.sort(weights);
-        return weights.subList(0, Math.min(K, weights.size()));
+        IntDoubleTable cooccurrences = calculateCoOccurrences(userItems);
+        IntDoubleTable wuv = calculateSimilarities(cooccurrences, itemUsers);
+        return NeighbourIndex.build(wuv, K, minSimilarity);
     }
 
     /**
      * Description: 获取top-N推荐列表，KNN算法，
      *
      * @param ratingTable 评分表
-     * @param W           用户相似性表
-     * @param K           K个相似性用户
+     * @param index       商品近邻索引
+     * @param K           K个相似商品, 不超过索引的K
      * @param N           top-N个推荐列表
      * @return 返回整体的推荐性列表
      */
-    protected List<Rating> getRecommendations(RsTable ratingTable, RsTable W, int K, int N) {
+    protected List<Rating> getRecommendations(RsTable ratingTable, NeighbourIndex index, int K, int N) {
+        if (K < 1)
+            K = 80;
         if (N < 1)
             N = 10;
 
-        RsTable recommendedTable = new RsTable();
-        List<Object> itemsList = ratingTable.getSubKeyList();
-        ConcurrentHashMap<Object, List<Link>> similarItemsMap = new ConcurrentHashMap<>();
-        for (Object items : itemsList) {
-            List<Link> similarItems = getSimilarItems(W, (Integer) items, K);
-            similarItemsMap.put(items, similarItems);
-        }
-
+        IntDoubleTable recommendedTable = new IntDoubleTable();
         //遍历评分表
-
         for (Object userId : ratingTable.keys()) { //O(N * M * K)
             //获取目前用户已经进行评分的商品 - 用于过滤
-            ConcurrentHashMap<Object, Object> Nu = (ConcurrentHashMap) ratingTable.get(userId);
+            Map<?, ?> Nu = (Map<?, ?>) ratingTable.get(userId);
 
             for (Object itemId : Nu.keySet()) {
-                //获取相似的商品列表
-                List<Link> similarItems = similarItemsMap.get(itemId);
-                for (Link l : similarItems) {
-                    int iId = l.to;
+                //相似的商品, 按相似度从高到低
+                int end = index.rowEnd((Integer) itemId, K);
+                for (int k = index.rowStart((Integer) itemId); k < end; k++) {
+                    int iId = index.neighbours[k];
                     //过滤已经评分的商品
                     if (Nu.containsKey(iId)) {
                         continue;
                     }
-                    if (recommendedTable.containsKey(userId, iId)) {
-                        double t = (double) recommendedTable.get(userId, iId);
-                        recommendedTable.put(userId, iId, t + l.weight);
-                    } else {
-                        recommendedTable.put(userId, iId, l.weight);
-                    }
+                    recommendedTable.add((Integer) userId, iId, index.weights[k]);
                 }
 
             }
         }
 
         List<Rating> recommendedItems = new ArrayList<>();
-        for (Object uId : recommendedTable.keys()) {
-            ConcurrentHashMap subTable = (ConcurrentHashMap) recommendedTable.get(uId);
-            List<Rating> li = new ArrayList<>();
-            for (Object iId : subTable.keySet()) {
-                double t = (double) subTable.get(iId);
-                li.add(new Rating((Integer) uId, (Integer) iId, t));
+        TopNHeap heap = new TopNHeap(N);
+        int[] items = new int[N];
+        double[] scores = new double[N];
+        for (int uId : recommendedTable.keys()) {
+            IntDoubleMap.Cursor c = recommendedTable.get(uId).cursor();
+            int order = 0;
+            while (c.next()) {
+                heap.offer(c.key(), c.value(), order++);
+            }
+            int count = heap.drain(items, scores);
+            for (int k = 0; k < count; k++) {
+                recommendedItems.add(new Rating(uId, items[k], scores[k]));
             }
-            Collections.sort(li);
-            recommendedItems.addAll(li.subList(0, Math.min(li.size(), N)));
         }
         return recommendedItems;
 
@@ -180,15 +258,24 @@ public class ItemKNN {
      * @param N     推荐列表的数量
      */
     public void topNRecommend(List<Rating> train, List<Rating> test, int K, int N) {
-        ConcurrentHashMap itemUsersTable = Tools.getItemUsersTable(train);
-        ConcurrentHashMap userItemsTable = Tools.getUserItemsTable(train);
-
-        RsTable cooccurrences = calculateCoOccurrences(userItemsTable);
-        RsTable wuv = calculateSimilarities(cooccurrences, itemUsersTable);
+        if (K < 1)
+            K = 80;
+        topNRecommend(buildNeighbourIndex(train, K), train, test, K, N);
+    }
 
+    /**
+     * Description:使用已建立(或从文件读取)的近邻索引进行topN推荐，并输出
+     *
+     * @param index 商品近邻索引
+     * @param train 训练集
+     * @param test  测试集
+     * @param K     KNN算法的K值
+     * @param N     推荐列表的数量
+     */
+    public void topNRecommend(NeighbourIndex index, List<Rating> train, List<Rating> test, int K, int N) {
         RsTable ratingTable = Tools.getRatingTable(train);
 
-        List<Rating> recommendations = getRecommendations(ratingTable, wuv, K, N);
+        List<Rating> recommendations = getRecommendations(ratingTable, index, K, N);
 
         Tuple<Double, Double> precisionAndRecall = Metrics.computePrecisionAndRecall(recommendations, test);
         Tuple<Double, Double> coverageAndPopularity = Metrics.computeCoverageAndPopularity(recommendations, test);
@@ -205,12 +292,6 @@ public class ItemKNN {
      * @param test  测试集
      */
     public void testTopNRecommend(List<Rating> train, List<Rating> test) {
-        ConcurrentHashMap itemUsersTable = Tools.getItemUsersTable(train);
-        ConcurrentHashMap userItemsTable = Tools.getUserItemsTable(train);
-
-        RsTable coourrrenceTable = calculateCoOccurrences(userItemsTable);
-        RsTable wuv = calculateSimilarities(coourrrenceTable, itemUsersTable);
-
         RsTable ratingTable = Tools.getRatingTable(train);
 
 //        List<Integer> Ns = new ArrayList<>(Arrays.asList(1, 5, 10, 15, 20, 25, 30));
@@ -218,10 +299,12 @@ public class ItemKNN {
 
         List<Integer> Ks = new ArrayList<>(Arrays.asList(5, 10, 20, 40, 80, 160));
 //        List<Integer> Ks = new ArrayList<>(Arrays.asList(80));
+        //按最大的K建一次索引, 每行已按相似度排序, 较小的K取其前缀
+        NeighbourIndex index = buildNeighbourIndex(train, Collections.max(Ks));
 
         for (int k : Ks) {
             for (int n : Ns) {
-                List<Rating> recommendations = getRecommendations(ratingTable, wuv, k, n);
+                List<Rating> recommendations = getRecommendations(ratingTable, index, k, n);
                 Tuple precisionAndRecall = Metrics.computePrecisionAndRecall(recommendations, test);
                 Tuple coverageAndPopularity = Metrics.computeCoverageAndPopularity(recommendations, train);
                 logger.info("K(Cosine){},N:{},precision:{},recall:{},Coverage:{},Popularity:{}", k, n
@@ -2,19 +2,32 @@ package core.collaborativeFiltering;
 
 import com.sun.org.apache.xpath.internal.SourceTree;
 import com.sun.scenario.effect.impl.sw.sse.SSEBlend_SRC_OUTPeer;
-import core.MathUtility;
+import core.FactorMatrix;
+import core.ModelCheckpoint;
+import core.parallel.BlockScheduler;
+import core.parallel.HogwildScheduler;
+import core.parallel.ParallelFor;
+import core.parallel.SGDScheduler;
+import core.recommend.BlockedTopNRecommender;
+import core.recommend.FactorScorer;
+import core.recommend.HnswIndex;
+import core.recommend.TopNListener;
+import core.recommend.TopNRecommender;
 import data.utility.Tools;
 import entity.Rating;
 import entity.RsTable;
+import entity.SparseRatingMatrix;
 import entity.Tuple;
-import evaluation.Metrics;
+import evaluation.Evaluator;
+import evaluation.SampledEvaluator;
+import evaluation.SnapshotEvaluator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * @version: 1.0
@@ -27,12 +40,25 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class MatrixFactorization {
     final static Logger logger = LoggerFactory.getLogger(MatrixFactorization.class);
+    private static final int REDUCTION_GRAIN = 8192; //并行求和时每块的评分数
+    private static final int ROW_GRAIN = 256;        //按行并行求和时每块的行数
 
     protected int p = 0; //用户数
     protected int q = 0; //商品数
     protected int f = 10; //特征数
-    public double[][] P = null; //用户特征矩阵
-    public double[][] Q = null; //商品特征矩阵
+    public FactorMatrix P = null; //用户特征矩阵
+    public FactorMatrix Q = null; //商品特征矩阵
+    public int threads = 1; //SGD并行线程数, 1为单线程顺序训练(结果可复现)
+    public String schedulerType = "hogwild"; //并行方式: hogwild(无锁) | block(FPSGD分块, 无写冲突)
+    public int sampledNegatives = 0; //大于0时top-N测试每轮用每个用户这么多个采样负例做快速验证(HR/NDCG)
+    public int fullEvaluationInterval = 10; //采样验证时全量top-N评价只在每隔这么多轮及最后一轮进行
+    public boolean asyncEvaluation = false; //true时测试集评价在后台线程中对模型快照进行, 训练不等待评价结果
+    public int patience = 0; //异步评价时连续这么多个快照没有变好则提前停止, 0为不提前停止; 训练结束后恢复为评价最好的快照
+    public String checkpointPath = null; //非null时训练中每checkpointInterval轮保存一次检查点
+    public int checkpointInterval = 10;
+    protected int startEpoch = 0; //从检查点恢复时已完成的迭代轮数, 下一次训练从其后一轮继续
+    public HnswIndex index = null; //商品向量上的近似最近邻索引, 用于单个用户的在线推荐, 随模型保存在"模型路径.hnsw"
+    protected ForkJoinPool pool = null; //训练期间复用的并行线程池, null表示串行或不在训练中
 
     public MatrixFactorization() {
     }
@@ -42,6 +68,10 @@ public class MatrixFactorization {
         initial(p, q, f, fillMethod);
     }
 
+    public MatrixFactorization(int p, int q, int f, String fillMethod, boolean float32) {
+        initial(p, q, f, fillMethod, float32);
+    }
+
     /**
      * Description: 初始化变量
      *
@@ -51,22 +81,115 @@ public class MatrixFactorization {
      * @param fillMethod 初始化方式
      */
     public void initial(int p, int q, int f, String fillMethod) {
+        initial(p, q, f, fillMethod, false);
+    }
+
+    /**
+     * Description: 初始化变量
+     *
+     * @param p          用户数量
+     * @param q          商品数量
+     * @param f          隐含特征数
+     * @param fillMethod 初始化方式
+     * @param float32    true时特征矩阵使用float存储, 内存减半
+     */
+    public void initial(int p, int q, int f, String fillMethod, boolean float32) {
         this.p = p;
         this.q = q;
         this.f = f;
         if (fillMethod.equalsIgnoreCase("uniform_df")) {
-            P = MathUtility.randomUniform(p, f, 1 / Math.sqrt(f));
-            Q = MathUtility.randomUniform(q, f, 1 / Math.sqrt(f));
+            P = FactorMatrix.randomUniform(p, f, 1 / Math.sqrt(f), float32);
+            Q = FactorMatrix.randomUniform(q, f, 1 / Math.sqrt(f), float32);
         } else if (fillMethod.equalsIgnoreCase("gaussian")) {
-            P = MathUtility.randomGaussian(p, f, 0, 1);
-            Q = MathUtility.randomGaussian(q, f, 0, 1);
+            P = FactorMatrix.randomGaussian(p, f, 0, 1, float32);
+            Q = FactorMatrix.randomGaussian(q, f, 0, 1, float32);
         } else if (fillMethod.equalsIgnoreCase("unifom")) {
-            P = MathUtility.randomUniform(p, f);
-            Q = MathUtility.randomUniform(q, f);
+            P = FactorMatrix.randomUniform(p, f, 1.0, float32);
+            Q = FactorMatrix.randomUniform(q, f, 1.0, float32);
 
         } else {
-            P = new double[p][f];
-            Q = new double[q][f];
+            P = FactorMatrix.zeros(p, f, float32);
+            Q = FactorMatrix.zeros(q, f, float32);
+        }
+    }
+
+    /**
+     * Description: 把模型参数放入检查点
+     *
+     * @return 检查点
+     */
+    protected ModelCheckpoint toCheckpoint() {
+        ModelCheckpoint checkpoint = new ModelCheckpoint(getClass().getSimpleName(), p, q, f);
+        checkpoint.putMatrix("P", P);
+        checkpoint.putMatrix("Q", Q);
+        return checkpoint;
+    }
+
+    /**
+     * Description: 从检查点恢复模型参数
+     *
+     * @param checkpoint 检查点
+     */
+    protected void fromCheckpoint(ModelCheckpoint checkpoint) {
+        checkpoint.check(getClass().getSimpleName(), 0);
+        this.p = checkpoint.p;
+        this.q = checkpoint.q;
+        this.f = checkpoint.f;
+        this.P = checkpoint.getMatrix("P");
+        this.Q = checkpoint.getMatrix("Q");
+    }
+
+    /**
+     * Description: 保存训练好的模型
+     *
+     * @param saveFilePath 保存路径
+     */
+    public void save(String saveFilePath) {
+        save(saveFilePath, 0);
+        if (index != null) {
+            index.write(HnswIndex.indexPath(saveFilePath));
+        }
+    }
+
+    protected void save(String saveFilePath, int epoch) {
+        ModelCheckpoint checkpoint = toCheckpoint();
+        checkpoint.epoch = epoch;
+        checkpoint.write(saveFilePath);
+    }
+
+    /**
+     * Description: 读取模型
+     *
+     * @param readFilePath 模型路径
+     * @param mapped       true时特征矩阵直接内存映射(只读, 立即可用于预测), false时读入堆内
+     */
+    public void load(String readFilePath, boolean mapped) {
+        fromCheckpoint(ModelCheckpoint.read(readFilePath, mapped));
+        startEpoch = 0;
+        String indexPath = HnswIndex.indexPath(readFilePath);
+        index = new File(indexPath).exists() ? HnswIndex.read(indexPath, getClass().getSimpleName(), createScorer()) : null;
+    }
+
+    /**
+     * Description: 读取训练中保存的检查点, 下一次调用SGD或testSGDForTopN时从检查点之后的一轮继续, gamma按已完成的轮数衰减
+     *
+     * @param readFilePath 检查点路径
+     */
+    public void resume(String readFilePath) {
+        ModelCheckpoint checkpoint = ModelCheckpoint.read(readFilePath, false);
+        fromCheckpoint(checkpoint);
+        startEpoch = checkpoint.epoch;
+        index = null;
+    }
+
+    /**
+     * Description: 按checkpointInterval保存检查点
+     *
+     * @param epoch 已完成的轮数
+     */
+    protected void checkpoint(int epoch) {
+        if (checkpointPath != null && checkpointInterval > 0 && epoch % checkpointInterval == 0) {
+            save(checkpointPath, epoch);
         }
     }
 
@@ -78,14 +201,10 @@ public class MatrixFactorization {
      * @return
      */
     public double predict(int userId, int itemId) {
-        double r = 0;
         if (userId >= p || itemId >= q) {
-            return r;
-        }
-        for (int i = 0; i < f; i++) {
-            r += P[userId][i] * Q[itemId][i];
+            return 0;
         }
-        return r;
+        return P.dot(userId, Q, itemId);
     }
 
     /**
@@ -96,19 +215,83 @@ public class MatrixFactorization {
      * @return 返回计算后的损失值
      */
     public double computeLoss(List<Rating> ratings, double lambda) {
-        double loss = 0;
-        for (Rating r : ratings) {
-            double eui = r.score - predict(r.userId, r.itemId);
-
-            double sum_p_i = 0.0;
-            double sum_q_j = 0.0;
-            for (int i = 0; i < f; i++) {
-                sum_p_i += P[r.userId][i] * P[r.userId][i];
-                sum_q_j += Q[r.itemId][i] * Q[r.itemId][i];
-            }
-            loss += (eui * eui + lambda * 0.5 * (sum_p_i + sum_q_j));
+        Tuple<int[], int[]> counts = Tools.getRatingCounts(ratings, p, q);
+        return computeLoss(ratings, lambda, counts.first, counts.second);
+    }
+
+    /**
+     * Description:计算损失函数, 每轮都要计算时由调用方预先统计评分数
+     *
+     * @param ratings    分数
+     * @param lambda     参数
+     * @param userCounts 每个用户的评分数
+     * @param itemCounts 每个商品的评分数
+     * @return 返回计算后的损失值
+     */
+    public double computeLoss(List<Rating> ratings, double lambda, int[] userCounts, int[] itemCounts) {
+        ForkJoinPool pool = reductionPool();
+        try {
+            double[] sums = ParallelFor.sum(pool, 0, ratings.size(), REDUCTION_GRAIN, 1, (from, to, s) -> {
+                for (int k = from; k < to; k++) {
+                    Rating r = ratings.get(k);
+                    double eui = r.score - predict(r.userId, r.itemId);
+                    s[0] += eui * eui;
+                }
+            });
+            return sums[0] + regularization(userCounts, itemCounts, lambda);
+        } finally {
+            releasePool(pool);
+        }
+    }
+
+    /**
+     * Description:计算损失函数
+     *
+     * @param ratings 按用户存储的评分矩阵
+     * @param lambda  参数
+     * @return 返回计算后的损失值
+     */
+    public double computeLoss(SparseRatingMatrix ratings, double lambda) {
+        ForkJoinPool pool = reductionPool();
+        try {
+            double[] sums = ParallelFor.sum(pool, 0, ratings.rows, ROW_GRAIN, 1, (from, to, s) -> {
+                for (int u = from; u < to; u++) {
+                    for (int k = ratings.rowStart(u); k < ratings.rowEnd(u); k++) {
+                        double eui = ratings.values[k] - predict(u, ratings.indices[k]);
+                        s[0] += eui * eui;
+                    }
+                }
+            });
+            return sums[0] + regularization(ratings.rowCounts(), ratings.columnCounts(), lambda);
+        } finally {
+            releasePool(pool);
+        }
+    }
+
+    /**
+     * Description: 并行求和使用的线程池. 训练期间复用训练入口创建的 pool, 训练之外调用时临时创建
+     */
+    private ForkJoinPool reductionPool() {
+        return pool != null ? pool : ParallelFor.createPool(threads);
+    }
+
+    private void releasePool(ForkJoinPool borrowed) {
+        if (borrowed != pool) {
+            ParallelFor.shutdown(borrowed);
         }
-        return loss;
+    }
+
+    /**
+     * Description: 损失函数的正则项 lambda/2·Σ(|P_u|^2 + |Q_i|^2), Σ遍历所有评分.
+     * 按行乘以评分数计算, 每行的范数只算一次
+     *
+     * @param userCounts 每个用户的评分数
+     * @param itemCounts 每个商品的评分数
+     * @param lambda     lambda
+     * @return 正则项
+     */
+    protected double regularization(int[] userCounts, int[] itemCounts, double lambda) {
+        return lambda * 0.5 * (P.weightedSquaredNorm(userCounts) + Q.weightedSquaredNorm(itemCounts));
     }
 
     /**
@@ -130,19 +313,28 @@ public class MatrixFactorization {
      * @return
      */
     public Tuple<Double, Double> evaluateMaeRmse(List<Rating> ratings, double minRating, double maxRating) {
-        double mae = 0;
-        double rmse = 0;
-        for (Rating r : ratings) {
-            double pui = predict(r.userId, r.itemId);
-//            if (pui < minRating) {
-//                pui = minRating;
-//            } else if (pui > maxRating) {
-//                pui = maxRating;
-//            }
-            double eui = r.score - pui;
-            mae += Math.abs(eui);
-            rmse += eui * eui;
+        double[] sums;
+        ForkJoinPool pool = reductionPool();
+        try {
+            sums = ParallelFor.sum(pool, 0, ratings.size(), REDUCTION_GRAIN, 2, (from, to, s) -> {
+                for (int k = from; k < to; k++) {
+                    Rating r = ratings.get(k);
+                    double pui = predict(r.userId, r.itemId);
+//                    if (pui < minRating) {
+//                        pui = minRating;
+//                    } else if (pui > maxRating) {
+//                        pui = maxRating;
+//                    }
+                    double eui = r.score - pui;
+                    s[0] += Math.abs(eui);
+                    s[1] += eui * eui;
+                }
+            });
+        } finally {
+            releasePool(pool);
         }
+        double mae = sums[0];
+        double rmse = sums[1];
         if (ratings.size() > 0) {
             mae /= ratings.size();
             rmse = Math.sqrt(rmse / ratings.size());
@@ -150,6 +342,37 @@ public class MatrixFactorization {
         return new Tuple<>(mae, rmse);
     }
 
+    /**
+     * Description:计算评估的mae和rmse
+     *
+     * @param ratings 按用户存储的评分矩阵
+     * @return 返回mae，rmse
+     */
+    public Tuple<Double, Double> evaluateMaeRmse(SparseRatingMatrix ratings) {
+        double[] sums;
+        ForkJoinPool pool = reductionPool();
+        try {
+            sums = ParallelFor.sum(pool, 0, ratings.rows, ROW_GRAIN, 2, (from, to, s) -> {
+                for (int u = from; u < to; u++) {
+                    for (int k = ratings.rowStart(u); k < ratings.rowEnd(u); k++) {
+                        double eui = ratings.values[k] - predict(u, ratings.indices[k]);
+                        s[0] += Math.abs(eui);
+                        s[1] += eui * eui;
+                    }
+                }
+            });
+        } finally {
+            releasePool(pool);
+        }
+        double mae = sums[0];
+        double rmse = sums[1];
+        if (ratings.nnz() > 0) {
+            mae /= ratings.nnz();
+            rmse = Math.sqrt(rmse / ratings.nnz());
+        }
+        return new Tuple<>(mae, rmse);
+    }
+
     /**
      * Descriptions:输出参数
      *
@@ -164,10 +387,28 @@ public class MatrixFactorization {
      */
     protected void printParameters(List<Rating> train, List<Rating> test, int epochs, double gamma, double lambda
             , double decay, double minRating, double maxRating) {
+        printParameters(train.size(), test, epochs, gamma, lambda, decay, minRating, maxRating);
+    }
+
+    /**
+     * Descriptions:输出参数
+     *
+     * @param trainSize 训练集评分数
+     * @param test      测试集
+     * @param epochs    迭代次数
+     * @param gamma     gamma
+     * @param lambda    lambda
+     * @param decay     gamma 学习更新率
+     * @param minRating 最小分数
+     * @param maxRating 最大分数
+     */
+    protected void printParameters(int trainSize, List<Rating> test, int epochs, double gamma, double lambda
+            , double decay, double minRating, double maxRating) {
         logger.info(getClass().getName());
-        logger.info("train,{}", train.size());
+        logger.info("train,{}", trainSize);
         logger.info("test,{}", test == null ? 0 : test.size());
         logger.info("p,{},q,{},f,{}", p, q, f);
+        logger.info("threads,{},scheduler,{}", threads, schedulerType);
         logger.info("epochs,{}", epochs);
         logger.info("gamma,{}", gamma);
         logger.info("lambda,{}", lambda);
@@ -216,45 +457,226 @@ public class MatrixFactorization {
      */
     public void SGD(List<Rating> train, List<Rating> test, int epochs, double gamma, double lambda
             , double decay, double minRating, double maxRating) {
+        index = null; //参数将被更新, 旧的HNSW索引失效, 需要时由 buildIndex 重建
 
         List<Rating> trainOrTest = test == null ? train : test;
         String trainOrTestString = test == null ? "train" : "test";
         printParameters(train, trainOrTest, epochs, gamma, lambda, decay, minRating, maxRating);
 
 
-        double loss = computeLoss(train, lambda);
-
-        for (int epoch = 1; epoch <= epochs; epoch++) {
-            for (Rating r : train) {
-                double pui = predict(r.userId, r.itemId);
-//                if (pui < minRating) {
-//                    pui = minRating;
-//                } else if (pui > maxRating) {
-//                    pui = maxRating;
-//                }
-                double eui = r.score - pui;
-                for (int i = 0; i < f; i++) {
-                    Q[r.itemId][i] += gamma * (eui * P[r.userId][i] - lambda * Q[r.itemId][i]);
-                    P[r.userId][i] += gamma * (eui * Q[r.itemId][i] - lambda * P[r.userId][i]);
+        double loss = Double.POSITIVE_INFINITY; //训练误差在每轮更新时顺带累加, 第一轮不与初始模型比较
+        Tuple<int[], int[]> counts = Tools.getRatingCounts(train, p, q);
+        SnapshotEvaluator snapshots = asyncEvaluation ? createSnapshotEvaluator(trainOrTest, trainOrTestString) : null;
+
+        SGDScheduler scheduler = createScheduler();
+        pool = ParallelFor.createPool(threads);
+        try {
+            int firstEpoch = startEpoch + 1;
+            startEpoch = 0;
+            if (decay != 1.0) {
+                gamma *= Math.pow(decay, firstEpoch - 1);
+            }
+            for (int epoch = firstEpoch; epoch <= epochs; epoch++) {
+                final double g = gamma;
+                double error = scheduler.runEpoch(train, (userId, itemId, score) -> updateFactors(userId, itemId, score, g, lambda));
+
+                double finalLoss = error + regularization(counts.first, counts.second, lambda);
+                checkpoint(epoch);
+                if (epoch % 10 == 0) {
+                    if (snapshots != null) {
+                        snapshots.submit(toCheckpoint(), epoch, finalLoss);
+                    } else {
+                        Tuple maeAndRmse = evaluateMaeRmse(trainOrTest);
+                        logger.info("epoch:{},loss:{},{}-mae:{},{}-rmse:{}", epoch, loss, trainOrTestString, maeAndRmse.first, trainOrTestString, maeAndRmse.second);
+                    }
+                }
+                if (decay != 1.0) {
+                    gamma *= decay;
+                }
+                if (finalLoss < loss) {
+                    loss = finalLoss;
+                } else {
+                    break;
+                }
+                if (snapshots != null && snapshots.shouldStop()) {
+                    break;
                 }
             }
+        } finally {
+            scheduler.shutdown();
+            ParallelFor.shutdown(pool);
+            pool = null;
+        }
+        if (snapshots != null) {
+            finishSnapshots(snapshots);
+        }
+    }
 
-            double finalLoss = computeLoss(train, lambda);
-            if (epoch % 10 == 0) {
-                Tuple maeAndRmse = evaluateMaeRmse(trainOrTest);
-                logger.info("epoch:{},loss:{},{}-mae:{},{}-rmse:{}", epoch, loss, trainOrTestString, maeAndRmse.first, trainOrTestString, maeAndRmse.second);
-            }
+    /**
+     * Description: 直接使用稀疏评分矩阵进行随机梯度训练
+     *
+     * @param train     按用户存储的训练集
+     * @param test      测试集, 为null时在训练集上评估
+     * @param epochs    迭代次数
+     * @param gamma     gamma
+     * @param lambda    lambda
+     * @param decay     gamma 学习更新率
+     * @param minRating 最小分数
+     * @param maxRating 最大分数
+     */
+    public void SGD(SparseRatingMatrix train, List<Rating> test, int epochs, double gamma, double lambda
+            , double decay, double minRating, double maxRating) {
+        index = null;
+        String trainOrTestString = test == null ? "train" : "test";
+        printParameters(train.nnz(), test, epochs, gamma, lambda, decay, minRating, maxRating);
+
+        double loss = Double.POSITIVE_INFINITY; //训练误差在每轮更新时顺带累加, 第一轮不与初始模型比较
+        int[] userCounts = train.rowCounts();
+        int[] itemCounts = train.columnCounts();
+        //快照在评分列表上评价, 没有测试集时仍在训练集上同步评价
+        SnapshotEvaluator snapshots = asyncEvaluation && test != null ? createSnapshotEvaluator(test, trainOrTestString) : null;
+
+        SGDScheduler scheduler = createScheduler();
+        pool = ParallelFor.createPool(threads);
+        try {
+            int firstEpoch = startEpoch + 1;
+            startEpoch = 0;
             if (decay != 1.0) {
-                gamma *= decay;
+                gamma *= Math.pow(decay, firstEpoch - 1);
             }
-            if (finalLoss < loss) {
-                loss = finalLoss;
-            } else {
-                break;
+            for (int epoch = firstEpoch; epoch <= epochs; epoch++) {
+                final double g = gamma;
+                double error = scheduler.runEpoch(train, (userId, itemId, score) -> updateFactors(userId, itemId, score, g, lambda));
+
+                double finalLoss = error + regularization(userCounts, itemCounts, lambda);
+                checkpoint(epoch);
+                if (epoch % 10 == 0) {
+                    if (snapshots != null) {
+                        snapshots.submit(toCheckpoint(), epoch, finalLoss);
+                    } else {
+                        Tuple maeAndRmse = test == null ? evaluateMaeRmse(train) : evaluateMaeRmse(test);
+                        logger.info("epoch:{},loss:{},{}-mae:{},{}-rmse:{}", epoch, loss, trainOrTestString, maeAndRmse.first, trainOrTestString, maeAndRmse.second);
+                    }
+                }
+                if (decay != 1.0) {
+                    gamma *= decay;
+                }
+                if (finalLoss < loss) {
+                    loss = finalLoss;
+                } else {
+                    break;
+                }
+                if (snapshots != null && snapshots.shouldStop()) {
+                    break;
+                }
             }
+        } finally {
+            scheduler.shutdown();
+            ParallelFor.shutdown(pool);
+            pool = null;
+        }
+        if (snapshots != null) {
+            finishSnapshots(snapshots);
         }
     }
 
+    /**
+     * Description: 创建每轮迭代使用的SGD调度器
+     *
+     * @return SGD调度器
+     */
+    protected SGDScheduler createScheduler() {
+        if (schedulerType.equalsIgnoreCase("block")) {
+            return new BlockScheduler(threads, p, q);
+        }
+        return new HogwildScheduler(threads);
+    }
+
+    /**
+     * Description: 异步评价评分预测, 每个快照的mae/rmse在后台线程中写日志
+     *
+     * @param test              测试集
+     * @param trainOrTestString 日志中的数据集名称
+     * @return 快照评价器
+     */
+    protected SnapshotEvaluator createSnapshotEvaluator(List<Rating> test, String trainOrTestString) {
+        SnapshotEvaluator snapshots = new SnapshotEvaluator(test, 1, this::createScorer);
+        snapshots.patience = patience;
+        snapshots.listener = report -> logger.info("epoch:{},loss:{},{}-mae:{},{}-rmse:{}", report.epoch, report.loss
+                , trainOrTestString, report.mae, trainOrTestString, report.rmse);
+        return snapshots;
+    }
+
+    /**
+     * Description: 异步评价top-N推荐, 每个快照的结果在后台线程中写日志
+     *
+     * @param ratingTable 训练集评分表
+     * @param evaluator   评价器
+     * @param K           需要评价的推荐个数
+     * @return 快照评价器
+     */
+    protected SnapshotEvaluator createSnapshotEvaluator(RsTable ratingTable, Evaluator evaluator, int[] K) {
+        SnapshotEvaluator snapshots = new SnapshotEvaluator(ratingTable, evaluator, K, 1, this::createScorer);
+        snapshots.patience = patience;
+        snapshots.listener = report -> {
+            for (Evaluator.Result result : report.topN) {
+                logger.info("epoch:{}, lastLoss:{},K:{},precision:{},recall:{},coverage:{},popularity:{},map:{},ndcg:{},hr:{},mrr:{}.",
+                        report.epoch, report.loss, result.K, result.precision, result.recall, result.coverage, result.popularity
+                        , result.map, result.ndcg, result.hitRate, result.mrr);
+            }
+        };
+        return snapshots;
+    }
+
+    /**
+     * Description: 等待剩余的快照评价完, 并把模型恢复为评价最好的快照
+     *
+     * @param snapshots 快照评价器
+     */
+    protected void finishSnapshots(SnapshotEvaluator snapshots) {
+        snapshots.shutdown();
+        ModelCheckpoint best = snapshots.best();
+        if (best != null) {
+            fromCheckpoint(best);
+            logger.info("restored best snapshot,epoch:{},skipped snapshots:{}", best.epoch, snapshots.skipped());
+        }
+    }
+
+    /**
+     * Description: 单条评分的sgd更新, 并行时多个线程无锁(Hogwild)地更新P和Q
+     *
+     * @param userId 用户id
+     * @param itemId 商品id
+     * @param score  评分
+     * @param gamma  gamma
+     * @param lambda lambda
+     * @return 更新前的平方误差, 用于累加训练误差
+     */
+    protected double updateFactors(int userId, int itemId, double score, double gamma, double lambda) {
+        double eui = score - predict(userId, itemId);
+        FactorMatrix.sgdUpdate(P, userId, Q, itemId, eui, gamma, lambda);
+        return eui * eui;
+    }
+
+
+    /**
+     * Description: 当前模型的批量打分器, score = P[u]·Q[i]
+     *
+     * @return 打分器
+     */
+    protected FactorScorer createScorer() {
+        return createScorer(toCheckpoint());
+    }
+
+    /**
+     * Description: 由检查点中的参数构造批量打分器, 可以是训练中拷贝出的快照. 子类改变predict时需要同时覆盖
+     *
+     * @param checkpoint 检查点
+     * @return 打分器
+     */
+    protected FactorScorer createScorer(ModelCheckpoint checkpoint) {
+        return new FactorScorer(checkpoint.getMatrix("P"), checkpoint.getMatrix("Q"));
+    }
 
     /**
      * Description: 获取全局推荐列表
@@ -264,22 +686,60 @@ public class MatrixFactorization {
      * @return 评分列表
      */
     protected List<Rating> getRecommendations(RsTable ratingTable, int N) {
-        List<Rating> recommendItems = new ArrayList<>();
-        ArrayList list = ratingTable.getSubKeyList();
-        for (Object userId : ratingTable.keys()) {
-            ConcurrentHashMap Nu = (ConcurrentHashMap) ratingTable.get(userId);
-            List<Rating> predictRatings = new ArrayList<>();
-            for (Object itemId : list) {
-                if (!Nu.containsKey(itemId)) {
-                    double p = predict((Integer) userId, (Integer) itemId);
-                    predictRatings.add(new Rating((Integer) userId, (Integer) itemId, p));
-                }
-            }
-            Collections.sort(predictRatings);
-            recommendItems.addAll(predictRatings.subList(0, Math.min(N, predictRatings.size())));
-        }
+        return BlockedTopNRecommender.recommend(ratingTable, N, createScorer(), threads);
+    }
+
+    /**
+     * Description: 全局推荐, 每个用户的结果产生后即交给listener, 不保存推荐列表
+     *
+     * @param ratingTable 评分表
+     * @param N           topN
+     * @param listener    接收每个用户的结果
+     */
+    protected void recommend(RsTable ratingTable, int N, TopNListener listener) {
+        BlockedTopNRecommender.recommend(ratingTable, N, createScorer(), threads, listener);
+    }
+
+    /**
+     * Description: 索引的检索方式, 内积模型使用最大内积检索
+     */
+    protected byte indexMetric() {
+        return HnswIndex.INNER_PRODUCT;
+    }
 
-        return recommendItems;
+    /**
+     * Description: 在候选商品的向量上建立HNSW索引, 用于单个用户的近似top-N推荐. 模型继续训练后需要重建
+     *
+     * @param candidates     候选商品
+     * @param M              每层最大连接数
+     * @param efConstruction 建索引时的候选集大小
+     * @return 索引
+     */
+    public HnswIndex buildIndex(int[] candidates, int M, int efConstruction) {
+        index = HnswIndex.build(getClass().getSimpleName(), createScorer(), candidates, indexMetric(), M, efConstruction);
+        return index;
+    }
+
+    /**
+     * Description: 以评分表中出现过的全部商品为候选建立索引
+     */
+    public HnswIndex buildIndex(RsTable ratingTable, int M, int efConstruction) {
+        return buildIndex(TopNRecommender.candidates(ratingTable), M, efConstruction);
+    }
+
+    /**
+     * Description: 使用索引为单个用户推荐
+     *
+     * @param userId 用户id
+     * @param N      topN
+     * @param rated  已评分的商品
+     * @return 评分列表, 按分数从高到低
+     */
+    public List<Rating> recommend(int userId, int N, int[] rated) {
+        if (index == null) {
+            throw new IllegalStateException("Index not built, call buildIndex first");
+        }
+        return index.recommend(userId, N, rated);
     }
 
     /**
@@ -296,46 +756,75 @@ public class MatrixFactorization {
      */
     public void testSGDForTopN(List<Rating> train, List<Rating> test, int epochs, double gamma
             , double lambda, double decay, double minRating, double maxRating) {
+        index = null;
         printParameters(train, test, epochs, gamma, lambda, decay, minRating, maxRating);
-        double loss = computeLoss(train, lambda);
+        double loss = Double.POSITIVE_INFINITY; //训练误差在每轮更新时顺带累加, 第一轮不与初始模型比较
+        Tuple<int[], int[]> counts = Tools.getRatingCounts(train, p, q);
         RsTable ratingTable = Tools.getRatingTable(train);
+        Evaluator evaluator = new Evaluator(train, test, threads);
+        SampledEvaluator sampledEvaluator = sampledNegatives > 0
+                ? new SampledEvaluator(train, test, sampledNegatives, 0, threads) : null;
 
 //        int[] K = {1, 5, 10, 15, 20, 25, 30};
         int[] K = {80};
+        int[] sampledK = {10}; //采样验证时每个测试商品与负例一起排序, K取较小值
+        SnapshotEvaluator snapshots = asyncEvaluation ? createSnapshotEvaluator(ratingTable, evaluator, K) : null;
 
-        for (int epoch = 1; epoch <= epochs; epoch++) {
-            for (Rating r : train) {
-                double pui = predict(r.userId, r.itemId);
-                double eui = r.score - pui;
-                for (int i = 0; i < f; i++) {
-                    Q[r.itemId][i] += gamma * (eui * P[r.userId][i] - lambda * Q[r.itemId][i]);
-                    P[r.userId][i] += gamma * (eui * Q[r.itemId][i] - lambda * P[r.userId][i]);
-                }
+        SGDScheduler scheduler = createScheduler();
+        try {
+            int firstEpoch = startEpoch + 1;
+            startEpoch = 0;
+            if (decay != 1.0) {
+                gamma *= Math.pow(decay, firstEpoch - 1);
             }
+            for (int epoch = firstEpoch; epoch <= epochs; epoch++) {
+                final double g = gamma;
+                double error = scheduler.runEpoch(train, (userId, itemId, score) -> updateFactors(userId, itemId, score, g, lambda));
+
+                double lastLoss = error + regularization(counts.first, counts.second, lambda);
+                checkpoint(epoch);
+
+                if (sampledEvaluator != null) {
+                    for (SampledEvaluator.Result result : sampledEvaluator.evaluate(createScorer(), sampledK)) {
+                        logger.info("epoch:{},lastLoss:{},K:{},sampled hr:{},sampled ndcg:{}.",
+                                epoch, lastLoss, result.K, result.hitRate, result.ndcg);
+                    }
+                }
+                boolean last = epoch == epochs || !(lastLoss < loss);
+                if (sampledEvaluator == null || epoch % fullEvaluationInterval == 0 || last) {
+                    if (snapshots != null) {
+                        snapshots.submit(toCheckpoint(), epoch, lastLoss);
+                    } else {
+                        Evaluator.Sink sink = evaluator.sink(K);
+                        recommend(ratingTable, K[K.length - 1], sink);   // note that, the max K
+                        for (Evaluator.Result result : sink.results()) {
+                            logger.info("epoch:{}, lastLoss:{},K:{},precision:{},recall:{},coverage:{},popularity:{},map:{},ndcg:{},hr:{},mrr:{}.",
+                                    epoch, lastLoss, result.K, result.precision, result.recall, result.coverage, result.popularity
+                                    , result.map, result.ndcg, result.hitRate, result.mrr);
+                        }
+                    }
+                }
 
-            double lastLoss = computeLoss(train, lambda);
-
-            List<Rating> recommendations = getRecommendations(ratingTable, K[K.length - 1]);   // note that, the max K
-            for (int k : K) {
-                List<Rating> subset = Tools.getSubset(recommendations, k);
-                Tuple cp = Metrics.computeCoverageAndPopularity(subset, train);
-                Tuple pr = Metrics.computePrecisionAndRecall(subset, test);
-                Double map = Metrics.computeMAP(subset, test, k);
-                logger.info("epoch:{}, lastLoss:{},K:{},precision:{},recall:{},coverage:{},popularity:{},map:{}.",
-                        epoch, lastLoss, k, pr.first, pr.second, cp.first, cp.second, map);
-            }
 
+                if (decay != 1) {
+                    gamma *= decay;
+                }
 
-            if (decay != 1) {
-                gamma *= decay;
-            }
+                if (lastLoss < loss) {
+                    loss = lastLoss;
+                } else {
+                    break;
+                }
+                if (snapshots != null && snapshots.shouldStop()) {
+                    break;
+                }
 
-            if (lastLoss < loss) {
-                loss = lastLoss;
-            } else {
-                break;
             }
-
+        } finally {
+            scheduler.shutdown();
+        }
+        if (snapshots != null) {
+            finishSnapshots(snapshots);
         }
 
 
@@ -1,19 +1,28 @@
 package core.collaborativeFiltering;
 
-import core.MathUtility;
+import core.FactorMatrix;
+import core.ModelCheckpoint;
+import core.parallel.ParallelFor;
+import core.recommend.BlockedTopNRecommender;
+import core.recommend.FactorScorer;
+import core.recommend.HnswIndex;
+import core.recommend.TopNListener;
+import core.recommend.TopNRecommender;
 import data.utility.Tools;
 import entity.Rating;
 import entity.RsTable;
+import entity.SparseRatingMatrix;
 import entity.Tuple;
-import evaluation.Metrics;
+import evaluation.Evaluator;
+import evaluation.SnapshotEvaluator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.xml.bind.SchemaOutputResolver;
+import java.io.File;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * @version: 1.0
@@ -26,19 +35,30 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class SVDPlusPlus {
     final static Logger logger = LoggerFactory.getLogger(SVDPlusPlus.class);
+    private static final int REDUCTION_GRAIN = 8192; //并行求和时每块的评分数
+    private static final int ROW_GRAIN = 256;        //按行并行求和时每块的行数
 
     protected int f = 10; //特征数
     protected int p = 0; //用户数
     protected int q = 0; //商品数
     public double w = 1.0;  // weight of neighbors
+    public int threads = 1; //top-N推荐时批量打分以及计算损失和误差的线程数
 
-    public double[][] P = null; //用户特征矩阵
-    public double[][] Q = null;//商品特征矩阵
-    public double[][] Z = null;//sum of Yj which j belongs to N(u), N(u) presents items rated by user u
-    public double[][] Y = null;//时间
+    public FactorMatrix P = null; //用户特征矩阵
+    public FactorMatrix Q = null;//商品特征矩阵
+    public FactorMatrix Z = null;//sum of Yj which j belongs to N(u), N(u) presents items rated by user u
+    public FactorMatrix Y = null;//时间
 
     public double[] bu = null;
     public double[] bi = null;
+    public double miu = 0; //训练集全局评分均值, 训练时更新并保存在检查点中
+    public String checkpointPath = null; //非null时训练中每checkpointInterval轮保存一次检查点
+    public int checkpointInterval = 10;
+    protected int startEpoch = 0; //从检查点恢复时已完成的迭代轮数, 下一次训练从其后一轮继续
+    public HnswIndex index = null; //商品向量上的近似最近邻索引, 用于单个用户的在线推荐, 随模型保存在"模型路径.hnsw"
+    protected ForkJoinPool pool = null; //训练期间复用的并行线程池, null表示串行或不在训练中
+    public boolean asyncEvaluation = false; //true时测试集评价在后台线程中对模型快照进行, 训练不等待评价结果
+    public int patience = 0; //异步评价时连续这么多个快照没有变好则提前停止, 0为不提前停止; 训练结束后恢复为评价最好的快照
 
 
     public SVDPlusPlus() {
@@ -48,7 +68,24 @@ public class SVDPlusPlus {
         initial(p, q, f, fillMethod);
     }
 
+    public SVDPlusPlus(int p, int q, int f, String fillMethod, boolean float32) {
+        initial(p, q, f, fillMethod, float32);
+    }
+
     public void initial(int p, int q, int f, String fillMethod) {
+        initial(p, q, f, fillMethod, false);
+    }
+
+    /**
+     * Description: 初始化变量
+     *
+     * @param p          用户数量
+     * @param q          商品数量
+     * @param f          隐含特征数
+     * @param fillMethod 初始化方式
+     * @param float32    true时特征矩阵使用float存储, 内存减半
+     */
+    public void initial(int p, int q, int f, String fillMethod, boolean float32) {
         this.p = p;
         this.q = q;
         this.f = f;
@@ -57,27 +94,130 @@ public class SVDPlusPlus {
         this.bi = new double[q];
 
         if (fillMethod.equalsIgnoreCase("gaussian")) {
-            P = MathUtility.randomGaussian(p, f, 0, 1);
-            Q = MathUtility.randomGaussian(q, f, 0, 1);
-            Z = MathUtility.randomGaussian(p, f, 0, 1);
-            Y = MathUtility.randomGaussian(q, f, 0, 1);
+            P = FactorMatrix.randomGaussian(p, f, 0, 1, float32);
+            Q = FactorMatrix.randomGaussian(q, f, 0, 1, float32);
+            Z = FactorMatrix.randomGaussian(p, f, 0, 1, float32);
+            Y = FactorMatrix.randomGaussian(q, f, 0, 1, float32);
         } else if (fillMethod.equalsIgnoreCase("uniform_df")) {
-            P = MathUtility.randomUniform(p, f, 1.0 / Math.sqrt(f));
-            Q = MathUtility.randomUniform(q, f, 1.0 / Math.sqrt(f));
-            Z = MathUtility.randomUniform(p, f, 1.0 / Math.sqrt(f));
-            Y = MathUtility.randomUniform(q, f, 1.0 / Math.sqrt(f));
+            P = FactorMatrix.randomUniform(p, f, 1.0 / Math.sqrt(f), float32);
+            Q = FactorMatrix.randomUniform(q, f, 1.0 / Math.sqrt(f), float32);
+            Z = FactorMatrix.randomUniform(p, f, 1.0 / Math.sqrt(f), float32);
+            Y = FactorMatrix.randomUniform(q, f, 1.0 / Math.sqrt(f), float32);
         } else if (fillMethod.equalsIgnoreCase("uniform")) {
-            P = MathUtility.randomUniform(p, f);
-            Q = MathUtility.randomUniform(q, f);
-            Z = MathUtility.randomUniform(p, f);
-            Y = MathUtility.randomUniform(q, f);
+            P = FactorMatrix.randomUniform(p, f, 1.0, float32);
+            Q = FactorMatrix.randomUniform(q, f, 1.0, float32);
+            Z = FactorMatrix.randomUniform(p, f, 1.0, float32);
+            Y = FactorMatrix.randomUniform(q, f, 1.0, float32);
         } else {
-            P = new double[p][f];
-            Q = new double[q][f];
-            Z = new double[p][f];
-            Y = new double[p][f];
+            P = FactorMatrix.zeros(p, f, float32);
+            Q = FactorMatrix.zeros(q, f, float32);
+            Z = FactorMatrix.zeros(p, f, float32);
+            Y = FactorMatrix.zeros(q, f, float32);
+        }
+
+    }
+
+    /**
+     * Description: 把模型参数放入检查点
+     *
+     * @return 检查点
+     */
+    protected ModelCheckpoint toCheckpoint() {
+        ModelCheckpoint checkpoint = new ModelCheckpoint(getClass().getSimpleName(), p, q, f);
+        checkpoint.putScalar("miu", miu);
+        checkpoint.putScalar("w", w);
+        checkpoint.putVector("bu", bu);
+        checkpoint.putVector("bi", bi);
+        checkpoint.putMatrix("P", P);
+        checkpoint.putMatrix("Q", Q);
+        checkpoint.putMatrix("Y", Y);
+        checkpoint.putMatrix("Z", Z);
+        return checkpoint;
+    }
+
+    /**
+     * Description: 从检查点恢复模型参数
+     *
+     * @param checkpoint 检查点
+     */
+    protected void fromCheckpoint(ModelCheckpoint checkpoint) {
+        checkpoint.check(getClass().getSimpleName(), 0);
+        this.p = checkpoint.p;
+        this.q = checkpoint.q;
+        this.f = checkpoint.f;
+        this.miu = checkpoint.getScalar("miu");
+        this.w = checkpoint.getScalar("w");
+        this.bu = checkpoint.getVector("bu");
+        this.bi = checkpoint.getVector("bi");
+        this.P = checkpoint.getMatrix("P");
+        this.Q = checkpoint.getMatrix("Q");
+        this.Y = checkpoint.getMatrix("Y");
+        this.Z = checkpoint.getMatrix("Z");
+    }
+
+    /**
+     * Description: 保存训练好的模型
+     *
+     * @param saveFilePath 保存路径
+     */
+    public void save(String saveFilePath) {
+        save(saveFilePath, 0);
+        if (index != null) {
+            index.write(HnswIndex.indexPath(saveFilePath));
+        }
+    }
+
+    protected void save(String saveFilePath, int epoch) {
+        ModelCheckpoint checkpoint = toCheckpoint();
+        checkpoint.epoch = epoch;
+        checkpoint.write(saveFilePath);
+    }
+
+    /**
+     * Description: 读取模型
+     *
+     * @param readFilePath 模型路径
+     * @param mapped       true时特征矩阵直接内存映射(只读, 立即可用于预测), false时读入堆内
+     */
+    public void load(String readFilePath, boolean mapped) {
+        fromCheckpoint(ModelCheckpoint.read(readFilePath, mapped));
+        startEpoch = 0;
+        String indexPath = HnswIndex.indexPath(readFilePath);
+        index = new File(indexPath).exists() ? HnswIndex.read(indexPath, getClass().getSimpleName(), createScorer(miu)) : null;
+    }
+
+    /**
+     * Description: 读取训练中保存的检查点, 下一次调用SGD或testSGDForTopN时从检查点之后的一轮继续, gamma按已完成的轮数衰减
+     *
+     * @param readFilePath 检查点路径
+     */
+    public void resume(String readFilePath) {
+        ModelCheckpoint checkpoint = ModelCheckpoint.read(readFilePath, false);
+        fromCheckpoint(checkpoint);
+        startEpoch = checkpoint.epoch;
+        index = null;
+    }
+
+    /**
+     * Description: 按checkpointInterval保存检查点
+     *
+     * @param epoch 已完成的轮数
+     */
+    protected void checkpoint(int epoch) {
+        if (checkpointPath != null && checkpointInterval > 0 && epoch % checkpointInterval == 0) {
+            save(checkpointPath, epoch);
         }
+    }
 
+    /**
+     * Description:使用训练时的全局评分均值预测评分
+     *
+     * @param userId 用户id
+     * @param itemId 商品id
+     * @return 返回预测评分
+     */
+    public double predict(int userId, int itemId) {
+        return predict(userId, itemId, miu);
     }
 
     public double computeMiu(List<Rating> ratings) {
@@ -91,33 +231,87 @@ public class SVDPlusPlus {
         return miu;
     }
 
+    public double computeMiu(SparseRatingMatrix ratings) {
+        double miu = 0;
+        for (int k = 0; k < ratings.nnz(); k++) {
+            miu += ratings.values[k];
+        }
+        if (ratings.nnz() > 0) {
+            miu /= ratings.nnz();
+        }
+        return miu;
+    }
+
     public double predict(int userId, int itemId, double miu) {
-        double r = 0.0;
         if (userId >= p || itemId >= q)
-            return r + miu;
-        for (int i = 0; i < f; i++) {
-            r += Q[itemId][i] * (P[userId][i] + Z[userId][i]);
-        }
+            return miu;
+        double r = Q.dot(itemId, P, userId) + Q.dot(itemId, Z, userId);
         return r + bu[userId] + bi[itemId] + miu;
     }
 
     public double computeLoss(List<Rating> ratings, double lambda, double miu) {
-        double loss = 0;
-        for (Rating r : ratings) {
-            double eui = r.score - predict(r.userId, r.itemId, miu);
+        ForkJoinPool pool = reductionPool();
+        try {
+            double[] sums = ParallelFor.sum(pool, 0, ratings.size(), REDUCTION_GRAIN, 1, (from, to, s) -> {
+                for (int k = from; k < to; k++) {
+                    Rating r = ratings.get(k);
+                    double eui = r.score - predict(r.userId, r.itemId, miu);
+                    s[0] += eui * eui;
+                }
+            });
+            Tuple<int[], int[]> counts = Tools.getRatingCounts(ratings, p, q);
+            return sums[0] + regularization(counts.first, counts.second, lambda);
+        } finally {
+            releasePool(pool);
+        }
+    }
 
-            double sum_p_i = 0.0;
-            double sum_q_j = 0.0;
-            double sum_y_j = 0.0;
+    /**
+     * Description:按行遍历稀疏评分矩阵计算损失, 与列表版本结果一致
+     *
+     * @param ratings 按用户存储的评分矩阵
+     * @param lambda  lambda
+     * @param miu     全局评分均值
+     * @return 损失值
+     */
+    public double computeLoss(SparseRatingMatrix ratings, double lambda, double miu) {
+        ForkJoinPool pool = reductionPool();
+        try {
+            double[] sums = ParallelFor.sum(pool, 0, ratings.rows, ROW_GRAIN, 1, (from, to, s) -> {
+                for (int u = from; u < to; u++) {
+                    for (int k = ratings.rowStart(u); k < ratings.rowEnd(u); k++) {
+                        double eui = ratings.values[k] - predict(u, ratings.indices[k], miu);
+                        s[0] += eui * eui;
+                    }
+                }
+            });
+            return sums[0] + regularization(ratings.rowCounts(), ratings.columnCounts(), lambda);
+        } finally {
+            releasePool(pool);
+        }
+    }
 
-            for (int i = 0; i < f; i++) {
-                sum_p_i += P[r.userId][i] * P[r.userId][i];
-                sum_q_j += Q[r.itemId][i] * Q[r.itemId][i];
-                sum_y_j += Y[r.itemId][i] * Y[r.itemId][i];
-            }
-            loss += (eui * eui + lambda * 0.5 * (sum_p_i + sum_q_j + sum_y_j + bu[r.userId] * bu[r.userId] + bi[r.itemId] * bi[r.itemId]));
+    /**
+     * Description: 损失函数的正则项 lambda/2·Σ(|P_u|^2 + |Q_i|^2 + |Y_i|^2 + bu^2 + bi^2), Σ遍历所有评分,
+     * 按每行的评分数加权, 每行只算一次
+     *
+     * @param userCounts 每个用户的评分数
+     * @param itemCounts 每个商品的评分数
+     * @param lambda     lambda
+     * @return 正则项
+     */
+    protected double regularization(int[] userCounts, int[] itemCounts, double lambda) {
+        return lambda * 0.5 * (P.weightedSquaredNorm(userCounts) + Q.weightedSquaredNorm(itemCounts)
+                + Y.weightedSquaredNorm(itemCounts) + weightedSquares(bu, userCounts) + weightedSquares(bi, itemCounts));
+    }
+
+    private static double weightedSquares(double[] values, int[] weights) {
+        double sum = 0;
+        int n = Math.min(values.length, weights.length);
+        for (int k = 0; k < n; k++) {
+            sum += weights[k] * values[k] * values[k];
         }
-        return loss;
+        return sum;
     }
 
     /**
@@ -139,14 +333,23 @@ public class SVDPlusPlus {
      * @return
      */
     public Tuple<Double, Double> evaluateMaeRmse(List<Rating> ratings, double miu, double minRating, double maxRating) {
-        double mae = 0;
-        double rmse = 0;
-        for (Rating r : ratings) {
-            double pui = predict(r.userId, r.itemId, miu);
-            double eui = r.score - pui;
-            mae += Math.abs(eui);
-            rmse += eui * eui;
+        double[] sums;
+        ForkJoinPool pool = reductionPool();
+        try {
+            sums = ParallelFor.sum(pool, 0, ratings.size(), REDUCTION_GRAIN, 2, (from, to, s) -> {
+                for (int k = from; k < to; k++) {
+                    Rating r = ratings.get(k);
+                    double pui = predict(r.userId, r.itemId, miu);
+                    double eui = r.score - pui;
+                    s[0] += Math.abs(eui);
+                    s[1] += eui * eui;
+                }
+            });
+        } finally {
+            releasePool(pool);
         }
+        double mae = sums[0];
+        double rmse = sums[1];
         if (ratings.size() > 0) {
             mae /= ratings.size();
             rmse = Math.sqrt(rmse / ratings.size());
@@ -155,46 +358,98 @@ public class SVDPlusPlus {
     }
 
 
-    protected ConcurrentHashMap getUserItemsTable(List<Rating> ratings) {
-        ConcurrentHashMap userItemsTable = new ConcurrentHashMap();
-        for (Rating r : ratings) {
-            if (userItemsTable.containsKey(r.userId)) {
-                List<Rating> li = (List<Rating>) userItemsTable.get(r.userId);
-                li.add(r);
-                userItemsTable.put(r.userId, li);
-            } else {
-                List<Rating> li = new ArrayList<>();
-                li.add(r);
-                userItemsTable.put(r.userId, li);
-            }
+    /**
+     * Description:计算稀疏评分矩阵上的mae和rmse
+     *
+     * @param ratings 按用户存储的评分矩阵
+     * @param miu     全局评分均值
+     * @return 返回mae，rmse
+     */
+    public Tuple<Double, Double> evaluateMaeRmse(SparseRatingMatrix ratings, double miu) {
+        double[] sums;
+        ForkJoinPool pool = reductionPool();
+        try {
+            sums = ParallelFor.sum(pool, 0, ratings.rows, ROW_GRAIN, 2, (from, to, s) -> {
+                for (int u = from; u < to; u++) {
+                    for (int k = ratings.rowStart(u); k < ratings.rowEnd(u); k++) {
+                        double eui = ratings.values[k] - predict(u, ratings.indices[k], miu);
+                        s[0] += Math.abs(eui);
+                        s[1] += eui * eui;
+                    }
+                }
+            });
+        } finally {
+            releasePool(pool);
+        }
+        double mae = sums[0];
+        double rmse = sums[1];
+        if (ratings.nnz() > 0) {
+            mae /= ratings.nnz();
+            rmse = Math.sqrt(rmse / ratings.nnz());
         }
-        return userItemsTable;
+        return new Tuple<>(mae, rmse);
     }
 
-    protected void updataZ(ConcurrentHashMap userItemsTable) {
-        for (Object uId : userItemsTable.keySet()) {
-            List<Rating> list = (List<Rating>) userItemsTable.get(uId);
-            for (Rating r : list) {
-                for (int i = 0; i < f; i++) {
-                    Z[(Integer) uId][i] += Y[r.itemId][i];
-                }
+    /**
+     * Description: 并行求和使用的线程池. 训练期间复用训练入口创建的 pool, 训练之外调用时临时创建
+     */
+    private ForkJoinPool reductionPool() {
+        return pool != null ? pool : ParallelFor.createPool(threads);
+    }
+
+    private void releasePool(ForkJoinPool borrowed) {
+        if (borrowed != pool) {
+            ParallelFor.shutdown(borrowed);
+        }
+    }
+
+
+    protected void updataZ(SparseRatingMatrix userItems) {
+        for (int u = 0; u < userItems.rows; u++) {
+            for (int k = userItems.rowStart(u); k < userItems.rowEnd(u); k++) {
+                Z.axpy(u, 1.0, Y, userItems.indices[k]);
             }
-            if (list.size() > 1) {
-                for (int i = 0; i < f; i++) {
-                    Z[(Integer) uId][i] /= Math.sqrt(list.size());
-                }
+            if (userItems.rowSize(u) > 1) {
+                Z.scaleRow(u, 1.0 / Math.sqrt(userItems.rowSize(u)));
             }
         }
     }
 
-    protected void updateZ(int uId, List<Rating> ratings, double ru) {// Z = sum(yj), j belongs to N(u), N(u) presents items rated by u
-        for (Rating r : ratings) {
-            for (int i = 0; i < f; i++) {
-                Z[uId][i] += Y[r.itemId][i];
-            }
+    protected void updateZ(int uId, SparseRatingMatrix userItems, double ru) {
+        for (int k = userItems.rowStart(uId); k < userItems.rowEnd(uId); k++) {
+            Z.axpy(uId, 1.0, Y, userItems.indices[k]);
         }
+        Z.scaleRow(uId, ru);
+    }
+
+    /**
+     * Description: 单条评分的P、Q更新, 同时累加Y的梯度到sum
+     *
+     * @param uId    用户id
+     * @param itemId 商品id
+     * @param eui    误差
+     * @param ru     w / sqrt(|N(u)|)
+     * @param gamma  gamma
+     * @param lambda lambda
+     * @param sum    Y的梯度累加
+     */
+    protected void updateFactors(int uId, int itemId, double eui, double ru, double gamma, double lambda, double[] sum) {
         for (int i = 0; i < f; i++) {
-            Z[uId][i] *= ru;
+            double qi = Q.get(itemId, i);
+            double pu = P.get(uId, i);
+            sum[i] += eui * ru * qi;
+            pu += gamma * (eui * qi - lambda * pu);
+            P.set(uId, i, pu);
+            Q.set(itemId, i, qi + gamma * (eui * (pu + Z.get(uId, i)) - lambda * qi));
+        }
+    }
+
+    /**
+     * Description: 用一个用户累加的梯度更新Y的一行
+     */
+    protected void updateY(int itemId, double[] sum, double gamma, double lambda) {
+        for (int i = 0; i < f; i++) {
+            Y.add(itemId, i, gamma * (sum[i] - lambda * Q.get(itemId, i)));
         }
     }
 
@@ -212,8 +467,13 @@ public class SVDPlusPlus {
      */
     protected void printParameters(List<Rating> train, List<Rating> test, int epochs, double gamma, double lambda
             , double decay, double minRating, double maxRating) {
+        printParameters(train.size(), test, epochs, gamma, lambda, decay, minRating, maxRating);
+    }
+
+    protected void printParameters(int trainSize, List<Rating> test, int epochs, double gamma, double lambda
+            , double decay, double minRating, double maxRating) {
         logger.info(getClass().getName());
-        logger.info("train,{}", train.size());
+        logger.info("train,{}", trainSize);
         logger.info("test,{}", test == null ? 0 : test.size());
         logger.info("p,{},q,{},f,{}", p, q, f);
         logger.info("epochs,{}", epochs);
@@ -265,61 +525,182 @@ public class SVDPlusPlus {
      */
     public void SGD(List<Rating> train, List<Rating> test, int epochs, double gamma, double lambda
             , double decay, double minRating, double maxRating) {
-        List<Rating> trainOrTest = (test == null ? train : test);
+        SGD(SparseRatingMatrix.fromRatings(train, p, q), test, epochs, gamma, lambda, decay, minRating, maxRating);
+    }
+
+    /**
+     * Description: 直接在按用户存储的稀疏评分矩阵上训练, 每个用户的评分是连续的一段, 无需再构建哈希表
+     *
+     * @param train     按用户存储的训练集
+     * @param test      测试集, 为null时在训练集上评估
+     * @param epochs    迭代次数
+     * @param gamma     gamma
+     * @param lambda    lambda
+     * @param decay     gamma 学习更新率
+     * @param minRating 最小分数
+     * @param maxRating 最大分数
+     */
+    public void SGD(SparseRatingMatrix train, List<Rating> test, int epochs, double gamma, double lambda
+            , double decay, double minRating, double maxRating) {
+        index = null; //参数将被更新, 旧的HNSW索引失效, 需要时由 buildIndex 重建
         String trainOrTestString = (test == null ? "train" : "test");
-        printParameters(train, trainOrTest, epochs, gamma, lambda, decay, minRating, maxRating);
+        printParameters(train.nnz(), test, epochs, gamma, lambda, decay, minRating, maxRating);
         double miu = computeMiu(train);
-        ConcurrentHashMap userItemsTable = getUserItemsTable(train);
-        updataZ(userItemsTable);
-
-        double loss = computeLoss(train, lambda, miu);
-        for (int epoch = 1; epoch <= epochs; epoch++) {
-            for (Object userId : userItemsTable.keySet()) {
-                int uId = (Integer) userId;
-                List<Rating> li = (List<Rating>) userItemsTable.get(userId);
-                double ru = w / Math.sqrt(li.size());
-                updateZ(uId, li, ru);  // NOTE: different from the provided in Java, posite here to reduce complexity.
-                double[] sum = new double[f];
-
-                for (Rating r : li) {
-                    double pui = predict(r.userId, r.itemId, miu);
-                    double eui = r.score - pui;
+        this.miu = miu;
+        updataZ(train);
+
+        double loss = Double.POSITIVE_INFINITY; //训练误差在每轮更新时顺带累加, 第一轮不与初始模型比较
+        int[] userCounts = train.rowCounts();
+        int[] itemCounts = train.columnCounts();
+        //快照在评分列表上评价, 没有测试集时仍在训练集上同步评价
+        SnapshotEvaluator snapshots = asyncEvaluation && test != null ? createSnapshotEvaluator(test, trainOrTestString) : null;
+        pool = ParallelFor.createPool(threads);
+        try {
+            int firstEpoch = startEpoch + 1;
+            startEpoch = 0;
+            if (decay != 1.0) {
+                gamma *= Math.pow(decay, firstEpoch - 1);
+            }
+            for (int epoch = firstEpoch; epoch <= epochs; epoch++) {
+                double error = 0;
+                for (int uId = 0; uId < train.rows; uId++) {
+                    int size = train.rowSize(uId);
+                    if (size == 0) {
+                        continue;
+                    }
+                    double ru = w / Math.sqrt(size);
+                    updateZ(uId, train, ru);  // NOTE: different from the provided in Java, posite here to reduce complexity.
+                    double[] sum = new double[f];
 
-                    bu[r.userId] += gamma * (eui - lambda * bu[r.userId]);
-                    bi[r.itemId] += gamma * (eui - lambda * bi[r.itemId]);
+                    for (int k = train.rowStart(uId); k < train.rowEnd(uId); k++) {
+                        int itemId = train.indices[k];
+                        double pui = predict(uId, itemId, miu);
+                        double eui = train.values[k] - pui;
+                        error += eui * eui;
 
-                    for (int i = 0; i < f; i++) {
-                        sum[i] += eui * ru * Q[r.itemId][i];
-                        P[r.userId][i] += gamma * (eui * Q[r.itemId][i] - lambda * P[r.userId][i]);
-                        Q[r.itemId][i] += gamma * (eui * (P[r.userId][i] + Z[r.userId][i]) - lambda * Q[r.itemId][i]);
+                        bu[uId] += gamma * (eui - lambda * bu[uId]);
+                        bi[itemId] += gamma * (eui - lambda * bi[itemId]);
 
+                        updateFactors(uId, itemId, eui, ru, gamma, lambda, sum);
+                    }
+                    for (int k = train.rowStart(uId); k < train.rowEnd(uId); k++) {
+                        updateY(train.indices[k], sum, gamma, lambda);
                     }
                 }
-                for (Rating r : li) {
-                    for (int i = 0; i < f; i++) {
-                        Y[r.itemId][i] += gamma * (sum[i] - lambda * Q[r.itemId][i]);
+                double lastLoss = error + regularization(userCounts, itemCounts, lambda);
+                checkpoint(epoch);
+
+                if (epoch % 5 == 0) {
+                    if (snapshots != null) {
+                        snapshots.submit(toCheckpoint(), epoch, lastLoss);
+                    } else {
+                        Tuple maeAndRmse = test == null ? evaluateMaeRmse(train, miu) : evaluateMaeRmse(test, miu);
+                        logger.info("epoch:{},loss:{},{}-mae:{},{}-rmse:{}", epoch, loss, trainOrTestString, maeAndRmse.first, trainOrTestString, maeAndRmse.second);
                     }
                 }
-            }
-            double lastLoss = computeLoss(train, lambda, miu);
 
-            if (epoch % 5 == 0) {
-                Tuple maeAndRmse = evaluateMaeRmse(trainOrTest, miu);
-                logger.info("epoch:{},loss:{},{}-mae:{},{}-rmse:{}", epoch, loss, trainOrTestString, maeAndRmse.first, trainOrTestString, maeAndRmse.second);
-            }
+                if (decay != 1.0) {
+                    gamma *= decay;
+                }
 
-            if (decay != 1.0) {
-                gamma *= decay;
+                if (lastLoss < loss) {
+                    loss = lastLoss;
+                } else {
+                    break;
+                }
+                if (snapshots != null && snapshots.shouldStop()) {
+                    break;
+                }
             }
+        } finally {
+            ParallelFor.shutdown(pool);
+            pool = null;
+        }
+        if (snapshots != null) {
+            finishSnapshots(snapshots);
+        }
+    }
 
-            if (lastLoss < loss) {
-                loss = lastLoss;
-            } else {
-                break;
-            }
+
+    /**
+     * Description: 当前模型的批量打分器, 用户向量取 P[u]+Z[u], score = (P[u]+Z[u])·Q[i] + bu[u] + bi[i] + miu
+     *
+     * @param miu 全局评分均值
+     * @return 打分器
+     */
+    protected FactorScorer createScorer(double miu) {
+        ModelCheckpoint checkpoint = toCheckpoint();
+        checkpoint.putScalar("miu", miu);
+        return createScorer(checkpoint);
+    }
+
+    /**
+     * Description: 由检查点中的参数构造批量打分器, 可以是训练中拷贝出的快照
+     *
+     * @param checkpoint 检查点
+     * @return 打分器
+     */
+    protected FactorScorer createScorer(ModelCheckpoint checkpoint) {
+        FactorMatrix P = checkpoint.getMatrix("P");
+        FactorMatrix Z = checkpoint.getMatrix("Z");
+        FactorMatrix users = FactorMatrix.zeros(P.rows, P.columns, false);
+        for (int u = 0; u < P.rows; u++) {
+            users.axpy(u, 1.0, P, u);
+            users.axpy(u, 1.0, Z, u);
         }
+        return new FactorScorer(users, checkpoint.getMatrix("Q"), 1.0
+                , checkpoint.getVector("bu"), checkpoint.getVector("bi"), checkpoint.getScalar("miu"));
+    }
+
+    /**
+     * Description: 异步评价评分预测, 每个快照的mae/rmse在后台线程中写日志
+     *
+     * @param test              测试集
+     * @param trainOrTestString 日志中的数据集名称
+     * @return 快照评价器
+     */
+    protected SnapshotEvaluator createSnapshotEvaluator(List<Rating> test, String trainOrTestString) {
+        SnapshotEvaluator snapshots = new SnapshotEvaluator(test, 1, this::createScorer);
+        snapshots.patience = patience;
+        snapshots.listener = report -> logger.info("epoch:{},loss:{},{}-mae:{},{}-rmse:{}", report.epoch, report.loss
+                , trainOrTestString, report.mae, trainOrTestString, report.rmse);
+        return snapshots;
+    }
+
+    /**
+     * Description: 异步评价top-N推荐, 每个快照的结果在后台线程中写日志
+     *
+     * @param ratingTable 训练集评分表
+     * @param evaluator   评价器
+     * @param K           需要评价的推荐个数
+     * @return 快照评价器
+     */
+    protected SnapshotEvaluator createSnapshotEvaluator(RsTable ratingTable, Evaluator evaluator, int[] K) {
+        SnapshotEvaluator snapshots = new SnapshotEvaluator(ratingTable, evaluator, K, 1, this::createScorer);
+        snapshots.patience = patience;
+        snapshots.listener = report -> {
+            for (Evaluator.Result result : report.topN) {
+                logger.info("epoch:{}, lastLoss:{},K:{},precision:{},recall:{},coverage:{},popularity:{},map:{},ndcg:{},hr:{},mrr:{}.",
+                        report.epoch, report.loss, result.K, result.precision, result.recall, result.coverage, result.popularity
+                        , result.map, result.ndcg, result.hitRate, result.mrr);
+            }
+        };
+        return snapshots;
     }
 
+    /**
+     * Description: 等待剩余的快照评价完, 并把模型恢复为评价最好的快照
+     *
+     * @param snapshots 快照评价器
+     */
+    protected void finishSnapshots(SnapshotEvaluator snapshots) {
+        snapshots.shutdown();
+        ModelCheckpoint best = snapshots.best();
+        if (best != null) {
+            fromCheckpoint(best);
+            logger.info("restored best snapshot,epoch:{},skipped snapshots:{}", best.epoch, snapshots.skipped());
+        }
+    }
 
     /**
      * Description: 获取全局推荐列表
@@ -330,22 +711,61 @@ public class SVDPlusPlus {
      * @return 评分列表
      */
     protected List<Rating> getRecommendations(RsTable ratingTable, double miu, int N) {
-        List<Rating> recommendItems = new ArrayList<>();
-        ArrayList list = ratingTable.getSubKeyList();
-        for (Object userId : ratingTable.keys()) {
-            ConcurrentHashMap Nu = (ConcurrentHashMap) ratingTable.get(userId);
-            List<Rating> predictRatings = new ArrayList<>();
-            for (Object itemId : list) {
-                if (!Nu.containsKey(itemId)) {
-                    double p = predict((Integer) userId, (Integer) itemId, miu);
-                    predictRatings.add(new Rating((Integer) userId, (Integer) itemId, p));
-                }
-            }
-            Collections.sort(predictRatings);
-            recommendItems.addAll(predictRatings.subList(0, Math.min(N, predictRatings.size())));
-        }
+        return BlockedTopNRecommender.recommend(ratingTable, N, createScorer(miu), threads);
+    }
 
-        return recommendItems;
+    /**
+     * Description: 全局推荐, 每个用户的结果产生后即交给listener, 不保存推荐列表
+     *
+     * @param ratingTable 评分表
+     * @param miu         全局评分均值
+     * @param N           topN
+     * @param listener    接收每个用户的结果
+     */
+    protected void recommend(RsTable ratingTable, double miu, int N, TopNListener listener) {
+        BlockedTopNRecommender.recommend(ratingTable, N, createScorer(miu), threads, listener);
+    }
+
+    /**
+     * Description: 索引的检索方式, 内积模型使用最大内积检索
+     */
+    protected byte indexMetric() {
+        return HnswIndex.INNER_PRODUCT;
+    }
+
+    /**
+     * Description: 在候选商品的向量上建立HNSW索引, 用于单个用户的近似top-N推荐. 模型继续训练后需要重建
+     *
+     * @param candidates     候选商品
+     * @param M              每层最大连接数
+     * @param efConstruction 建索引时的候选集大小
+     * @return 索引
+     */
+    public HnswIndex buildIndex(int[] candidates, int M, int efConstruction) {
+        index = HnswIndex.build(getClass().getSimpleName(), createScorer(miu), candidates, indexMetric(), M, efConstruction);
+        return index;
+    }
+
+    /**
+     * Description: 以评分表中出现过的全部商品为候选建立索引
+     */
+    public HnswIndex buildIndex(RsTable ratingTable, int M, int efConstruction) {
+        return buildIndex(TopNRecommender.candidates(ratingTable), M, efConstruction);
+    }
+
+    /**
+     * Description: 使用索引为单个用户推荐
+     *
+     * @param userId 用户id
+     * @param N      topN
+     * @param rated  已评分的商品
+     * @return 评分列表, 按分数从高到低
+     */
+    public List<Rating> recommend(int userId, int N, int[] rated) {
+        if (index == null) {
+            throw new IllegalStateException("Index not built, call buildIndex first");
+        }
+        return index.recommend(userId, N, rated);
     }
 
 
@@ -363,55 +783,66 @@ public class SVDPlusPlus {
      */
     public void testSGDForTopN(List<Rating> train, List<Rating> test, int epochs, double gamma
             , double lambda, double decay, double minRating, double maxRating) {
+        index = null;
         printParameters(train, test, epochs, gamma, lambda, decay, minRating, maxRating);
         double miu = computeMiu(train);
-        ConcurrentHashMap userItemsTable = getUserItemsTable(train);
-        updataZ(userItemsTable);
+        this.miu = miu;
+        SparseRatingMatrix userItems = SparseRatingMatrix.fromRatings(train, p, q);
+        updataZ(userItems);
 
 //        int[] K = {1, 5, 10, 15, 20, 25, 30};
         int[] K = {80};
 
         RsTable ratingTable = Tools.getRatingTable(train);
-        double loss = computeLoss(train, lambda, miu);
-        for (int epoch = 1; epoch <= epochs; epoch++) {
-            for (Object userId : userItemsTable.keySet()) {
-                int uId = (Integer) userId;
-                List<Rating> li = (List<Rating>) userItemsTable.get(userId);
-                double ru = w / Math.sqrt(li.size());
-                updateZ(uId, li, ru);  // NOTE: different from the provided in Java, posite here to reduce complexity.
+        Evaluator evaluator = new Evaluator(train, test, threads);
+        SnapshotEvaluator snapshots = asyncEvaluation ? createSnapshotEvaluator(ratingTable, evaluator, K) : null;
+        double loss = Double.POSITIVE_INFINITY; //训练误差在每轮更新时顺带累加, 第一轮不与初始模型比较
+        int[] userCounts = userItems.rowCounts();
+        int[] itemCounts = userItems.columnCounts();
+        int firstEpoch = startEpoch + 1;
+        startEpoch = 0;
+        if (decay != 1.0) {
+            gamma *= Math.pow(decay, firstEpoch - 1);
+        }
+        for (int epoch = firstEpoch; epoch <= epochs; epoch++) {
+            double error = 0;
+            for (int uId = 0; uId < userItems.rows; uId++) {
+                int size = userItems.rowSize(uId);
+                if (size == 0) {
+                    continue;
+                }
+                double ru = w / Math.sqrt(size);
+                updateZ(uId, userItems, ru);  // NOTE: different from the provided in Java, posite here to reduce complexity.
                 double[] sum = new double[f];
 
-                for (Rating r : li) {
-                    double pui = predict(r.userId, r.itemId, miu);
-                    double eui = r.score - pui;
-
-                    bu[r.userId] += gamma * (eui - lambda * bu[r.userId]);
-                    bi[r.itemId] += gamma * (eui - lambda * bi[r.itemId]);
+                for (int k = userItems.rowStart(uId); k < userItems.rowEnd(uId); k++) {
+                    int itemId = userItems.indices[k];
+                    double pui = predict(uId, itemId, miu);
+                    double eui = userItems.values[k] - pui;
+                    error += eui * eui;
 
-                    for (int i = 0; i < f; i++) {
-                        sum[i] += eui * ru * Q[r.itemId][i];
-                        P[r.userId][i] += gamma * (eui * Q[r.itemId][i] - lambda * P[r.userId][i]);
-                        Q[r.itemId][i] += gamma * (eui * (P[r.userId][i] + Z[r.userId][i]) - lambda * Q[r.itemId][i]);
+                    bu[uId] += gamma * (eui - lambda * bu[uId]);
+                    bi[itemId] += gamma * (eui - lambda * bi[itemId]);
 
-                    }
+                    updateFactors(uId, itemId, eui, ru, gamma, lambda, sum);
                 }
-                for (Rating r : li) {
-                    for (int i = 0; i < f; i++) {
-                        Y[r.itemId][i] += gamma * (sum[i] - lambda * Q[r.itemId][i]);
-                    }
+                for (int k = userItems.rowStart(uId); k < userItems.rowEnd(uId); k++) {
+                    updateY(userItems.indices[k], sum, gamma, lambda);
                 }
             }
 
-            double lastLoss = computeLoss(train, lambda, miu);
+            double lastLoss = error + regularization(userCounts, itemCounts, lambda);
 
-            List<Rating> recommendations = getRecommendations(ratingTable, miu, K[K.length - 1]);   // note that, the max K
-            for (int k : K) {
-                List<Rating> subset = Tools.getSubset(recommendations, k);
-                Tuple pr = Metrics.computePrecisionAndRecall(subset, test);
-                double map = Metrics.computeMAP(subset, test, k);
-                Tuple cp = Metrics.computeCoverageAndPopularity(subset, train);
-                logger.info("epoch:{}, lastLoss:{},K:{},precision:{},recall:{},coverage:{},popularity:{},map:{}.",
-                        epoch, lastLoss, k, pr.first, pr.second, cp.first, cp.second, map);
+            if (snapshots != null) {
+                snapshots.submit(toCheckpoint(), epoch, lastLoss);
+            } else {
+                Evaluator.Sink sink = evaluator.sink(K);
+                recommend(ratingTable, miu, K[K.length - 1], sink);   // note that, the max K
+                for (Evaluator.Result result : sink.results()) {
+                    logger.info("epoch:{}, lastLoss:{},K:{},precision:{},recall:{},coverage:{},popularity:{},map:{},ndcg:{},hr:{},mrr:{}.",
+                            epoch, lastLoss, result.K, result.precision, result.recall, result.coverage, result.popularity
+                            , result.map, result.ndcg, result.hitRate, result.mrr);
+                }
             }
 
 
@@ -424,8 +855,14 @@ public class SVDPlusPlus {
             } else {
                 break;
             }
+            if (snapshots != null && snapshots.shouldStop()) {
+                break;
+            }
 
         }
+        if (snapshots != null) {
+            finishSnapshots(snapshots);
+        }
 
 
     }
@@ -1,21 +1,17 @@
 package core.collaborativeFiltering;
 
 import core.MathUtility;
-import data.utility.Tools;
-import entity.Link;
+import entity.IntDoubleMap;
+import entity.IntDoubleTable;
 import entity.Rating;
-import entity.RsTable;
+import entity.SparseRatingMatrix;
 import entity.Tuple;
 import evaluation.Metrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @version: 1.0
@@ -29,6 +25,8 @@ import java.util.concurrent.ConcurrentHashMap;
 public class UserCF {
     final static Logger logger = LoggerFactory.getLogger(UserCF.class);
 
+    public int threads = 1; //相似性计算的并行线程数
+
 
     public double[] calculateUserMeanRating(List<Rating> ratings, int numberOfUsers) {
         double[] userMeanRating = new double[numberOfUsers];
@@ -45,28 +43,43 @@ public class UserCF {
         return userMeanRating;
     }
 
-    protected double predict(double[] userMeanRatings, double[][] similarities, double[][] ratingsMatrix,
+    /**
+     * Description: 预测评分, 只遍历对该商品评过分的用户
+     *
+     * @param userMeanRatings 用户平均评分
+     * @param similarities    用户相似性表
+     * @param itemUsers       按商品存储的评分矩阵
+     * @param userId          用户id
+     * @param itemId          商品id
+     * @return 预测评分
+     */
+    protected double predict(double[] userMeanRatings, IntDoubleTable similarities, SparseRatingMatrix itemUsers,
                              int userId, int itemId) {
         double score = userMeanRatings[userId];
-        int n = similarities.length;
+        IntDoubleMap wu = similarities.get(userId);
+        if (wu == null || itemId >= itemUsers.rows) {
+            return score;
+        }
         double numerator = 0;
         double denominator = 0;
-        for (int i = 0; i < n; i++) {
-            if (ratingsMatrix[i][itemId] > 0 && similarities[userId][i] > 0) {
-                numerator += similarities[userId][i] * (ratingsMatrix[i][itemId] - userMeanRatings[i]);
-                denominator += similarities[userId][i];
+        for (int k = itemUsers.rowStart(itemId); k < itemUsers.rowEnd(itemId); k++) {
+            int i = itemUsers.indices[k];
+            double w = wu.get(i);
+            if (itemUsers.values[k] > 0 && w > 0) {
+                numerator += w * (itemUsers.values[k] - userMeanRatings[i]);
+                denominator += w;
             }
         }
         score += (denominator > 0 ? numerator / denominator : 0);
         return score;
     }
 
-    protected Tuple evaluateMaeRmse(double[] userMeanRating, double[][] similarities,
-                                    double[][] ratingsMatrix, List<Rating> test) {
+    protected Tuple evaluateMaeRmse(double[] userMeanRating, IntDoubleTable similarities,
+                                    SparseRatingMatrix itemUsers, List<Rating> test) {
         double mae = 0.0;
         double rmse = 0.0;
         for (Rating r : test) {
-            double pre = predict(userMeanRating, similarities, ratingsMatrix, r.userId, r.itemId);
+            double pre = predict(userMeanRating, similarities, itemUsers, r.userId, r.itemId);
             double error = pre - r.score;
             mae += Math.abs(error);
             rmse += error * error;
@@ -80,10 +93,10 @@ public class UserCF {
 
     public void userCFMaeRmse(List<Rating> train, List<Rating> test, int maxUserId, int maxItemId) {
         double[] userMeanRating = calculateUserMeanRating(train, maxUserId + 1);
-        double[][] trainMatrix = Tools.transfrom(train, maxUserId + 1, maxItemId + 1);
-        double[][] similarities = MathUtility.computeSimilarity(trainMatrix, "PearsonCorrelation");   // PearsonCorrelation | Cosine
+        SparseRatingMatrix userItems = SparseRatingMatrix.fromRatings(train, maxUserId + 1, maxItemId + 1);
+        IntDoubleTable similarities = MathUtility.computeRowSimilarity(userItems, "PearsonCorrelation", threads);   // PearsonCorrelation | Cosine
 
-        Tuple result = evaluateMaeRmse(userMeanRating, similarities, trainMatrix, test);
+        Tuple result = evaluateMaeRmse(userMeanRating, similarities, userItems.transpose(), test);
         logger.info("userCF,mae,{},rmse,{}", result.first, result.second);
     }
 
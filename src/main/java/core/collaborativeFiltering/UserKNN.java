@@ -1,16 +1,19 @@
 package core.collaborativeFiltering;
 
+import core.recommend.NeighbourIndex;
+import core.recommend.TopNHeap;
 import data.utility.Tools;
-import entity.Link;
+import entity.IntDoubleMap;
+import entity.IntDoubleTable;
 import entity.Rating;
 import entity.RsTable;
+import entity.SparseRatingMatrix;
 import entity.Tuple;
 import evaluation.Metrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @version: 1.0
@@ -24,27 +27,28 @@ import java.util.concurrent.ConcurrentHashMap;
 public class UserKNN {
     final static Logger logger = LoggerFactory.getLogger(UserKNN.class);
 
+    public double minSimilarity = 0; //相似度低于该值的用户不进入近邻索引
+
     /**
      * Description: 两个用户 都够买了物品的次数
      *
-     * @param itemUsersTable 物品-用户 hashtable
+     * @param itemUsers 按物品存储的评分矩阵, 每行为购买该物品的用户
      * @return 两个用户的的相似性分子
      */
-    protected RsTable calculateCoOccurrences(ConcurrentHashMap<Integer, List<Rating>> itemUsersTable) {
-        RsTable cooccurrences = new RsTable();
-        for (int itemsId : itemUsersTable.keySet()) {
-            List<Rating> usersRating = itemUsersTable.get(itemsId);
-            for (Rating u : usersRating) {
-                for (Rating v : usersRating) {
-                    if (u.userId == v.userId) {
+    protected IntDoubleTable calculateCoOccurrences(SparseRatingMatrix itemUsers) {
+        IntDoubleTable cooccurrences = new IntDoubleTable();
+        for (int itemId = 0; itemId < itemUsers.rows; itemId++) {
+            int start = itemUsers.rowStart(itemId);
+            int end = itemUsers.rowEnd(itemId);
+            double weight = 1 / Math.log(end - start + 1);
+            for (int a = start; a < end; a++) {
+                int uId = itemUsers.indices[a];
+                for (int b = start; b < end; b++) {
+                    int vId = itemUsers.indices[b];
+                    if (uId == vId) {
                         continue;
                     }
-                    if (!cooccurrences.containsKey(u.userId, v.userId)) {
-                        cooccurrences.put(u.userId, v.userId, 1 / Math.log(usersRating.size() + 1));
-                    } else {
-                        double value = (double) cooccurrences.get(u.userId, v.userId);
-                        cooccurrences.put(u.userId, v.userId, value + 1 / Math.log(usersRating.size() + 1));
-                    }
+                    cooccurrences.add(uId, vId, weight);
                 }
             }
         }
@@ -55,105 +59,84 @@ public class UserKNN {
     /**
      * Description: 计算两个用户的余弦相似性
      *
-     * @param coourrencesTable 两个用户的的相似性分子rstable
-     * @param userItemsTable   用户-商品评分hashtable
-     * @return 用户相似性 rstable
+     * @param coourrencesTable 两个用户的的相似性分子表
+     * @param userItems        按用户存储的评分矩阵
+     * @return 用户相似性表
      */
-    protected RsTable calculateSimilarities(RsTable coourrencesTable, ConcurrentHashMap<Integer, List<Rating>> userItemsTable) {
-        RsTable wuv = new RsTable();
-        for (Object uUserId : coourrencesTable.keys()) {
-            ConcurrentHashMap subTable = (ConcurrentHashMap) coourrencesTable.get(uUserId);
-            List<Rating> uRatings = userItemsTable.get((int) uUserId);
-            for (Object vUserId : subTable.keySet()) {
-                double coourrences = (double) subTable.get((int) vUserId);
-                List<Rating> vRatings = userItemsTable.get((int) vUserId);
-                //余弦相似性
-                wuv.put(uUserId, vUserId, coourrences / Math.sqrt(uRatings.size() + vRatings.size()));
-            }
+    protected IntDoubleTable calculateSimilarities(IntDoubleTable coourrencesTable, SparseRatingMatrix userItems) {
+        IntDoubleTable wuv = new IntDoubleTable();
+        IntDoubleTable.Cursor c = coourrencesTable.cursor();
+        while (c.next()) {
+            int uSize = userItems.rowSize(c.mainKey());
+            int vSize = userItems.rowSize(c.subKey());
+            //余弦相似性
+            wuv.put(c.mainKey(), c.subKey(), c.value() / Math.sqrt(uSize + vSize));
         }
 
         return wuv;
     }
 
     /**
-     * Description: 获取用户的topK相似用户
+     * Description: 由训练集计算用户相似度, 建立每个用户的top-K近邻索引. 索引可以保存后直接用于推荐, 不再计算相似度
      *
-     * @param wTable 用户相似性rsTable
-     * @param userId 用户id
-     * @param K      KNN的K
-     * @return List<Link> 某用户的相似性列表
+     * @param train 训练集
+     * @param K     每个用户保留的相似用户数
+     * @return 近邻索引
      */
-    protected List<Link> getSimilarUsers(RsTable wTable, int userId, int K) {
-        if (K < 1)
-            K = 80;
-        List<Link> weights = new ArrayList<>();
-        ConcurrentHashMap subTable = (ConcurrentHashMap) wTable.get(userId);
-        for (Object vId : subTable.keySet()) {
-            double w = (double) subTable.get(vId);
-            Link l = new Link(userId, (Integer) vId, w);
-            weights.add(l);
-        }
-        //排序
-        Collections.sort(weights);
-//                , new Comparator<Link>() {
-//            @Override
-//            public int compare(Link o1, Link o2) {
-//                return o1.compareTo(o2);
-//            }
-//        });
-        return weights.subList(0, Math.min(K, weights.size()));
+    public NeighbourIndex buildNeighbourIndex(List<Rating> train, int K) {
+        SparseRatingMatrix userItems = SparseRatingMatrix.fromRatings(train);
+        SparseRatingMatrix itemUsers = userItems.transpose();
+
+        IntDoubleTable cooccurrences = calculateCoOccurrences(itemUsers);
+        IntDoubleTable wuv = calculateSimilarities(cooccurrences, userItems);
+        return NeighbourIndex.build(wuv, K, minSimilarity);
     }
 
     /**
      * Description: 获取top-N推荐列表，KNN算法，
      *
      * @param ratingTable 评分表
-     * @param W           用户相似性表
-     * @param K           K个相似性用户
+     * @param index       用户近邻索引
+     * @param K           K个相似性用户, 不超过索引的K
      * @param N           top-N个推荐列表
      * @return 返回整体的推荐性列表
      */
-    protected List<Rating> getRecommendations(RsTable ratingTable, RsTable W, int K, int N) {
+    protected List<Rating> getRecommendations(RsTable ratingTable, NeighbourIndex index, int K, int N) {
+        if (K < 1)
+            K = 80;
         if (N < 1)
             N = 10;
 
-        RsTable recommendedTable = new RsTable();
+        IntDoubleTable recommendedTable = new IntDoubleTable();
         for (Object userId : ratingTable.keys()) { //O(N*K)
-            ConcurrentHashMap Nu = new ConcurrentHashMap((ConcurrentHashMap) ratingTable.get(userId));
-            List<Link> simlilarUsers = getSimilarUsers(W, (Integer) userId, K);
-            for (Link l : simlilarUsers) {
-                int vId = l.to;
-                ConcurrentHashMap Nv = new ConcurrentHashMap((ConcurrentHashMap) ratingTable.get(vId));
+            Map<?, ?> Nu = (Map<?, ?>) ratingTable.get(userId);
+            //相似的用户, 按相似度从高到低
+            int end = index.rowEnd((Integer) userId, K);
+            for (int k = index.rowStart((Integer) userId); k < end; k++) {
+                int vId = index.neighbours[k];
+                Map<?, ?> Nv = (Map<?, ?>) ratingTable.get(vId);
                 for (Object iId : Nv.keySet()) {
                     if (Nu.containsKey(iId)) {
                         continue;
                     }
-                    if (recommendedTable.containsKey(userId, iId)) {
-                        double t = (double) recommendedTable.get(userId, iId);
-                        recommendedTable.put(userId, iId, t + l.weight);
-                    } else {
-                        recommendedTable.put(userId, iId, l.weight);
-                    }
+                    recommendedTable.add((Integer) userId, (Integer) iId, index.weights[k]);
                 }
             }
         }
 
         List<Rating> recommendedItems = new ArrayList<>();
-        for (Object uId : recommendedTable.keys()) {
-            List<Rating> li = new ArrayList<>();
-            ConcurrentHashMap subTable = (ConcurrentHashMap) recommendedTable.get(uId);
-            for (Object iId : subTable.keySet()) {
-                double t = (double) subTable.get(iId);
-                li.add(new Rating((Integer) uId, (Integer) iId, t));
+        TopNHeap heap = new TopNHeap(N);
+        int[] items = new int[N];
+        double[] scores = new double[N];
+        for (int uId : recommendedTable.keys()) {
+            IntDoubleMap.Cursor c = recommendedTable.get(uId).cursor();
+            int order = 0;
+            while (c.next()) {
+                heap.offer(c.key(), c.value(), order++);
             }
-            Collections.sort(li, new Comparator<Rating>() {
-                @Override
-                public int compare(Rating o1, Rating o2) {
-                    return o1.compareTo(o2);
-                }
-            });
-            for (int i = 0; i < Math.min(li.size(), N); i++) {
-                recommendedItems.add(li.get(i));
+            int count = heap.drain(items, scores);
+            for (int k = 0; k < count; k++) {
+                recommendedItems.add(new Rating(uId, items[k], scores[k]));
             }
         }
         return recommendedItems;
@@ -169,15 +152,24 @@ public class UserKNN {
      * @param N     推荐列表的数量
      */
     public void topNRecommend(List<Rating> train, List<Rating> test, int K, int N) {
-        ConcurrentHashMap userItemsTable = Tools.getUserItemsTable(train);
-        ConcurrentHashMap itemUsersTable = Tools.getItemUsersTable(train);
-
-        RsTable cooccurrences = calculateCoOccurrences(itemUsersTable);
-        RsTable wuv = calculateSimilarities(cooccurrences, userItemsTable);
+        if (K < 1)
+            K = 80; //与 getRecommendations 的默认值一致, 索引需按实际使用的K建立
+        topNRecommend(buildNeighbourIndex(train, K), train, test, K, N);
+    }
 
+    /**
+     * Description:使用已建立(或从文件读取)的近邻索引进行topN推荐，并输出
+     *
+     * @param index 用户近邻索引
+     * @param train 训练集
+     * @param test  测试集
+     * @param K     KNN算法的K值
+     * @param N     推荐列表的数量
+     */
+    public void topNRecommend(NeighbourIndex index, List<Rating> train, List<Rating> test, int K, int N) {
         RsTable ratingTable = Tools.getRatingTable(train);
 
-        List<Rating> recommendations = getRecommendations(ratingTable, wuv, K, N);
+        List<Rating> recommendations = getRecommendations(ratingTable, index, K, N);
 
         Tuple<Double, Double> precisionAndRecall = Metrics.computePrecisionAndRecall(recommendations, test);
         Tuple<Double, Double> coverageAndPopularity = Metrics.computeCoverageAndPopularity(recommendations, test);
@@ -194,12 +186,6 @@ public class UserKNN {
      * @param test  测试集
      */
     public void testTopNRecommend(List<Rating> train, List<Rating> test) {
-        ConcurrentHashMap userItemsTable = Tools.getUserItemsTable(train);
-        ConcurrentHashMap itemUsersTable = Tools.getItemUsersTable(train);
-
-        RsTable coourrrenceTable = calculateCoOccurrences(itemUsersTable);
-        RsTable wuv = calculateSimilarities(coourrrenceTable, userItemsTable);
-
         RsTable ratingTable = Tools.getRatingTable(train);
 
         //        List<Integer> Ns = new ArrayList<>(Arrays.asList(1, 5, 10, 15, 20, 25, 30));
@@ -207,9 +193,11 @@ public class UserKNN {
 
         List<Integer> Ks = new ArrayList<>(Arrays.asList(5, 10, 20, 40, 80, 160));
 //        List<Integer> Ks = new ArrayList<>(Arrays.asList(80));
+        //按最大的K建一次索引, 每行已按相似度排序, 较小的K取其前缀
+        NeighbourIndex index = buildNeighbourIndex(train, Collections.max(Ks));
         for (int k : Ks) {
             for (int n : Ns) {
-                List<Rating> recommendations = getRecommendations(ratingTable, wuv, k, n);
+                List<Rating> recommendations = getRecommendations(ratingTable, index, k, n);
                 Tuple precisionAndRecall = Metrics.computePrecisionAndRecall(recommendations, test);
                 Tuple coverageAndPopularity = Metrics.computeCoverageAndPopularity(recommendations, train);
                 logger.info("K(Cosine){},N:{},precision:{},recall:{},Coverage:{},Popularity:{}", k, n
@@ -0,0 +1,302 @@
+package core.parallel;
+
+import entity.Rating;
+import entity.SparseRatingMatrix;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: core.parallel
+ */
+public class BlockScheduler implements SGDScheduler {
+    private final int threads;
+    private final int grid;   //grid * grid 个用户-商品分块
+    private final int p;
+    private final int q;
+    private final Random random;
+    private final int[] userRow;     //用户所在的分块行, 按随机排列后的id等分
+    private final int[] itemColumn;  //商品所在的分块列
+    private ExecutorService executor = null;
+
+    private Object partitioned = null; //已分块的训练集
+    private int partitionedSize = -1;
+    private int[][] blockUsers = null;
+    private int[][] blockItems = null;
+    private double[][] blockScores = null;
+
+    //调度状态, 由synchronized保护
+    private boolean[] rowBusy = null;
+    private boolean[] columnBusy = null;
+    private boolean[] done = null;
+    private int remaining = 0;
+
+    /**
+     * Description: FPSGD分块并行SGD, 默认使用 (threads+1)*(threads+1) 个分块
+     *
+     * @param threads 线程数
+     * @param p       用户数
+     * @param q       商品数
+     */
+    public BlockScheduler(int threads, int p, int q) {
+        this(threads, Math.max(1, threads) + 1, p, q, 0L);
+    }
+
+    /**
+     * Description: FPSGD分块并行SGD, 同一时刻只调度行、列都不冲突的分块, 因此无需加锁也不存在写竞争
+     *
+     * @param threads 线程数
+     * @param grid    每个维度的分块数, 不小于threads
+     * @param p       用户数
+     * @param q       商品数
+     * @param seed    id随机排列和分块内打乱顺序的随机种子
+     */
+    public BlockScheduler(int threads, int grid, int p, int q, long seed) {
+        this.threads = Math.max(1, threads);
+        if (grid < this.threads) {
+            throw new IllegalArgumentException("grid must not be less than threads:" + grid);
+        }
+        this.grid = grid;
+        this.p = Math.max(1, p);
+        this.q = Math.max(1, q);
+        this.random = new Random(seed);
+        this.userRow = ranges(this.p, grid, random);
+        this.itemColumn = ranges(this.q, grid, random);
+        if (this.threads > 1) {
+            executor = Executors.newFixedThreadPool(this.threads, HogwildScheduler.daemonThreadFactory("block-sgd"));
+        }
+    }
+
+    @Override
+    public double runEpoch(List<Rating> ratings, RatingUpdater updater) {
+        if (ratings != partitioned || ratings.size() != partitionedSize) {
+            int n = ratings.size();
+            int[] users = new int[n];
+            int[] items = new int[n];
+            double[] scores = new double[n];
+            int k = 0;
+            for (Rating r : ratings) {
+                users[k] = r.userId;
+                items[k] = r.itemId;
+                scores[k] = r.score;
+                k++;
+            }
+            partition(users, items, scores);
+            partitioned = ratings;
+            partitionedSize = n;
+        }
+        return runBlocks(updater);
+    }
+
+    @Override
+    public double runEpoch(SparseRatingMatrix ratings, RatingUpdater updater) {
+        if (ratings != partitioned || ratings.nnz() != partitionedSize) {
+            int n = ratings.nnz();
+            int[] users = new int[n];
+            double[] scores = new double[n];
+            for (int row = 0; row < ratings.rows; row++) {
+                for (int k = ratings.offsets[row]; k < ratings.offsets[row + 1]; k++) {
+                    users[k] = row;
+                    scores[k] = ratings.values[k];
+                }
+            }
+            partition(users, ratings.indices, scores);
+            partitioned = ratings;
+            partitionedSize = n;
+        }
+        return runBlocks(updater);
+    }
+
+    private double runBlocks(RatingUpdater updater) {
+        startEpoch();
+
+        if (executor == null) {
+            return worker(updater);
+        }
+        List<Future<Double>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(new Callable<Double>() {
+                @Override
+                public Double call() {
+                    return worker(updater);
+                }
+            }));
+        }
+        return HogwildScheduler.awaitAll(futures);
+    }
+
+    @Override
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Description: 将评分按随机排列后的用户、商品区间划分成grid*grid个分块, 块内数据连续存储并打乱一次
+     *
+     * @param users  用户id
+     * @param items  商品id
+     * @param scores 评分
+     */
+    private void partition(int[] users, int[] items, double[] scores) {
+        int n = users.length;
+        int blocks = grid * grid;
+        int[] counts = new int[blocks];
+        for (int k = 0; k < n; k++) {
+            counts[blockOf(users[k], items[k])]++;
+        }
+
+        blockUsers = new int[blocks][];
+        blockItems = new int[blocks][];
+        blockScores = new double[blocks][];
+        for (int b = 0; b < blocks; b++) {
+            blockUsers[b] = new int[counts[b]];
+            blockItems[b] = new int[counts[b]];
+            blockScores[b] = new double[counts[b]];
+        }
+
+        int[] fill = new int[blocks];
+        for (int k = 0; k < n; k++) {
+            int b = blockOf(users[k], items[k]);
+            int pos = fill[b]++;
+            blockUsers[b][pos] = users[k];
+            blockItems[b][pos] = items[k];
+            blockScores[b][pos] = scores[k];
+        }
+
+        for (int b = 0; b < blocks; b++) {
+            shuffle(blockUsers[b], blockItems[b], blockScores[b]);
+        }
+
+        rowBusy = new boolean[grid];
+        columnBusy = new boolean[grid];
+        done = new boolean[blocks];
+    }
+
+    /**
+     * Description: 先把id随机排列再等分成parts段(与LIBMF相同). 数据集的id往往与热门程度相关,
+     * 直接按原始id区间切分会使分块大小严重不均, 每一波的耗时由最大的分块决定
+     *
+     * @param n      id个数
+     * @param parts  段数
+     * @param random 随机数
+     * @return 每个id所在的段
+     */
+    private static int[] ranges(int n, int parts, Random random) {
+        int[] permutation = new int[n];
+        for (int i = 0; i < n; i++) {
+            permutation[i] = i;
+        }
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = permutation[i];
+            permutation[i] = permutation[j];
+            permutation[j] = t;
+        }
+        int[] part = new int[n];
+        for (int i = 0; i < n; i++) {
+            part[i] = (int) ((long) permutation[i] * parts / n);
+        }
+        return part;
+    }
+
+    private int blockOf(int userId, int itemId) {
+        int row = userRow[Math.min(Math.max(userId, 0), p - 1)];
+        int column = itemColumn[Math.min(Math.max(itemId, 0), q - 1)];
+        return row * grid + column;
+    }
+
+    private void shuffle(int[] users, int[] items, double[] scores) {
+        for (int i = users.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int u = users[i];
+            users[i] = users[j];
+            users[j] = u;
+            int it = items[i];
+            items[i] = items[j];
+            items[j] = it;
+            double s = scores[i];
+            scores[i] = scores[j];
+            scores[j] = s;
+        }
+    }
+
+    private synchronized void startEpoch() {
+        for (int b = 0; b < done.length; b++) {
+            done[b] = false;
+        }
+        remaining = done.length;
+    }
+
+    /**
+     * Description: 取一个行、列都空闲且本轮未处理的分块, 暂时没有可用分块时等待
+     *
+     * @return 分块编号, 本轮全部分块都已分配时返回-1
+     */
+    private synchronized int acquire() throws InterruptedException {
+        while (remaining > 0) {
+            int candidates = 0;
+            int chosen = -1;
+            for (int b = 0; b < done.length; b++) {
+                if (done[b] || rowBusy[b / grid] || columnBusy[b % grid]) {
+                    continue;
+                }
+                candidates++;
+                if (random.nextInt(candidates) == 0) { //在可用分块中均匀随机选择
+                    chosen = b;
+                }
+            }
+            if (chosen >= 0) {
+                done[chosen] = true;
+                remaining--;
+                rowBusy[chosen / grid] = true;
+                columnBusy[chosen % grid] = true;
+                return chosen;
+            }
+            wait();
+        }
+        return -1;
+    }
+
+    private synchronized void release(int block) {
+        rowBusy[block / grid] = false;
+        columnBusy[block % grid] = false;
+        notifyAll();
+    }
+
+    private double worker(RatingUpdater updater) {
+        double sum = 0;
+        try {
+            int block;
+            while ((block = acquire()) >= 0) {
+                try {
+                    int[] users = blockUsers[block];
+                    int[] items = blockItems[block];
+                    double[] scores = blockScores[block];
+                    for (int k = 0; k < users.length; k++) {
+                        sum += updater.update(users[k], items[k], scores[k]);
+                    }
+                } finally {
+                    release(block);
+                }
+            }
+            return sum;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("SGD epoch interrupted", e);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package core.parallel;
+
+import entity.Rating;
+import entity.SparseRatingMatrix;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: core.parallel
+ */
+public class HogwildScheduler implements SGDScheduler {
+    private final int threads;
+    private ExecutorService executor = null;
+
+    /**
+     * Description: Hogwild无锁并行SGD, 每轮将评分切分成threads段并行更新P/Q
+     *
+     * @param threads 线程数, 小于等于1时在当前线程中按顺序执行(结果可复现)
+     */
+    public HogwildScheduler(int threads) {
+        this.threads = Math.max(1, threads);
+        if (this.threads > 1) {
+            executor = Executors.newFixedThreadPool(this.threads, daemonThreadFactory("hogwild-sgd"));
+        }
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    @Override
+    public double runEpoch(List<Rating> ratings, RatingUpdater updater) {
+        int n = ratings.size();
+        if (executor == null || n < threads * 2) {
+            return runList(ratings, updater);
+        }
+
+        int chunk = (n + threads - 1) / threads;
+        List<Future<Double>> futures = new ArrayList<>();
+        for (int start = 0; start < n; start += chunk) {
+            final List<Rating> part = ratings.subList(start, Math.min(n, start + chunk));
+            futures.add(executor.submit(new Callable<Double>() {
+                @Override
+                public Double call() {
+                    return runList(part, updater);
+                }
+            }));
+        }
+        return awaitAll(futures);
+    }
+
+    private static double runList(List<Rating> ratings, RatingUpdater updater) {
+        double sum = 0;
+        for (Rating r : ratings) {
+            sum += updater.update(r.userId, r.itemId, r.score);
+        }
+        return sum;
+    }
+
+    @Override
+    public double runEpoch(SparseRatingMatrix ratings, RatingUpdater updater) {
+        int n = ratings.nnz();
+        if (executor == null || n < threads * 2) {
+            return runRows(ratings, 0, ratings.rows, updater);
+        }
+
+        //按非零元数量均衡地把连续的行区间分给各线程
+        List<Future<Double>> futures = new ArrayList<>();
+        int from = 0;
+        for (int t = 1; t <= threads && from < ratings.rows; t++) {
+            int to = t == threads ? ratings.rows : upperRow(ratings.offsets, (long) n * t / threads, from);
+            final int start = from;
+            final int end = to;
+            futures.add(executor.submit(new Callable<Double>() {
+                @Override
+                public Double call() {
+                    return runRows(ratings, start, end, updater);
+                }
+            }));
+            from = to;
+        }
+        return awaitAll(futures);
+    }
+
+    private static double runRows(SparseRatingMatrix ratings, int from, int to, RatingUpdater updater) {
+        int[] offsets = ratings.offsets;
+        int[] indices = ratings.indices;
+        float[] values = ratings.values;
+        double sum = 0;
+        for (int row = from; row < to; row++) {
+            for (int k = offsets[row]; k < offsets[row + 1]; k++) {
+                sum += updater.update(row, indices[k], values[k]);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Description: 第一个起始偏移不小于target的行
+     */
+    private static int upperRow(int[] offsets, long target, int from) {
+        int low = from;
+        int high = offsets.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (offsets[middle] < target) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return Math.min(low, offsets.length - 1);
+    }
+
+    @Override
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Description: 等待所有任务结束, 任务异常时抛出
+     *
+     * @param futures 任务列表
+     * @return 各任务结果按提交顺序之和
+     */
+    static double awaitAll(List<Future<Double>> futures) {
+        try {
+            double sum = 0;
+            for (Future<Double> future : futures) {
+                sum += future.get();
+            }
+            return sum;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("SGD epoch interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("SGD epoch failed", e.getCause());
+        }
+    }
+
+    /**
+     * Description: 守护线程工厂, 避免忘记shutdown时阻止jvm退出
+     *
+     * @param prefix 线程名前缀
+     * @return 线程工厂
+     */
+    public static ThreadFactory daemonThreadFactory(final String prefix) {
+        final AtomicInteger counter = new AtomicInteger(0);
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread t = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
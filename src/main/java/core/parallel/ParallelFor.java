@@ -0,0 +1,131 @@
+package core.parallel;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: core.parallel
+ */
+public class ParallelFor {
+
+    /**
+     * Description: 处理区间 [from, to) 的任务体
+     */
+    public interface RangeBody {
+        void run(int from, int to);
+    }
+
+    /**
+     * Description: 对区间 [from, to) 求部分和的任务体, 结果累加到sums中
+     */
+    public interface RangeSum {
+        void run(int from, int to, double[] sums);
+    }
+
+    /**
+     * Description: 创建fork-join线程池
+     *
+     * @param threads 线程数
+     * @return 线程数小于等于1时返回null, 表示在当前线程中串行执行
+     */
+    public static ForkJoinPool createPool(int threads) {
+        return threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    /**
+     * Description: 关闭线程池
+     *
+     * @param pool 线程池, 可以为null
+     */
+    public static void shutdown(ForkJoinPool pool) {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Description: 将区间 [from, to) 递归二分后在fork-join线程池中并行执行
+     *
+     * @param pool  线程池, 为null时在当前线程中串行执行
+     * @param from  起始下标
+     * @param to    结束下标(不包含)
+     * @param grain 不再拆分的最小区间长度
+     * @param body  任务体
+     */
+    public static void forRange(ForkJoinPool pool, int from, int to, int grain, RangeBody body) {
+        if (from >= to) {
+            return;
+        }
+        if (pool == null || to - from <= grain) {
+            body.run(from, to);
+            return;
+        }
+        pool.invoke(new RangeTask(from, to, Math.max(1, grain), body));
+    }
+
+    /**
+     * Description: 区间 [from, to) 上的并行求和. 区间按grain切成固定的块, 每块的部分和单独存放,
+     * 最后按块的顺序相加, 结果与线程数无关
+     *
+     * @param pool  线程池, 为null时在当前线程中串行执行
+     * @param from  起始下标
+     * @param to    结束下标(不包含)
+     * @param grain 每块的长度
+     * @param width 同时求和的量的个数
+     * @param body  任务体
+     * @return 长度为width的和
+     */
+    public static double[] sum(ForkJoinPool pool, final int from, final int to, int grain, final int width
+            , final RangeSum body) {
+        final int size = Math.max(1, grain);
+        int chunks = to > from ? (int) (((long) to - from + size - 1) / size) : 0;
+        final double[][] partials = new double[chunks][];
+        forRange(pool, 0, chunks, 1, (a, b) -> {
+            for (int chunk = a; chunk < b; chunk++) {
+                double[] sums = new double[width];
+                int start = from + chunk * size;
+                body.run(start, (int) Math.min(to, (long) start + size), sums);
+                partials[chunk] = sums;
+            }
+        });
+        double[] sums = new double[width];
+        for (double[] partial : partials) {
+            for (int k = 0; k < width; k++) {
+                sums[k] += partial[k];
+            }
+        }
+        return sums;
+    }
+
+    private static class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final int grain;
+        private final RangeBody body;
+
+        RangeTask(int from, int to, int grain, RangeBody body) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                body.run(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RangeTask(from, middle, grain, body), new RangeTask(middle, to, grain, body));
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package core.parallel;
+
+import entity.Rating;
+import entity.SparseRatingMatrix;
+
+import java.util.List;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: core.parallel
+ */
+public interface SGDScheduler {
+
+    /**
+     * Description: 单条评分的参数更新回调, 返回值(如更新前的平方误差)由调度器累加
+     */
+    interface RatingUpdater {
+        double update(int userId, int itemId, double score);
+    }
+
+    /**
+     * Description: 执行一轮迭代, 每条评分调用一次updater
+     *
+     * @param ratings 训练集
+     * @param updater 参数更新回调
+     * @return 所有评分上updater返回值之和, 每个线程先各自累加
+     */
+    double runEpoch(List<Rating> ratings, RatingUpdater updater);
+
+    /**
+     * Description: 执行一轮迭代, 每个非零元调用一次updater
+     *
+     * @param ratings 按用户存储的训练集
+     * @param updater 参数更新回调
+     * @return 所有非零元上updater返回值之和, 每个线程先各自累加
+     */
+    double runEpoch(SparseRatingMatrix ratings, RatingUpdater updater);
+
+    /**
+     * Description: 释放线程资源
+     */
+    void shutdown();
+}
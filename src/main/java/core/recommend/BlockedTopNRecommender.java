@@ -0,0 +1,239 @@
+package core.recommend;
+
+import core.parallel.ParallelFor;
+import entity.Rating;
+import entity.RsTable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: core.recommend
+ */
+public class BlockedTopNRecommender {
+    public static final int USER_TILE = 32;  //每块用户数, 用户块常驻L1
+    public static final int ITEM_TILE = 128; //每块商品数, 商品块在整个用户块上复用, 常驻L2
+
+    private final FactorScorer scorer;
+    private final int[] candidates;     //候选商品, 其顺序决定同分时的先后
+    private final int f;
+    private final int N;
+    private final double[] itemTiles;   //候选商品向量按商品块转置打包: 第t块的第k维连续存放ITEM_TILE个商品, 所有线程共享只读
+    private final double[] itemBias;    //候选商品偏置
+    private final int words;            //已评分位图的long个数
+    private final ThreadLocal<Workspace> workspace = new ThreadLocal<>();
+
+    /**
+     * Description: 单个线程的工作区, 在所有用户块间复用
+     */
+    private class Workspace {
+        final double[] userVectors = new double[USER_TILE * f];
+        final double[] userBias = new double[USER_TILE];
+        final long[][] seen = new long[USER_TILE][words];
+        final TopNHeap[] heaps = new TopNHeap[USER_TILE];
+        final double[] row = new double[f];
+        final double[] dots = new double[ITEM_TILE];
+
+        Workspace() {
+            for (int u = 0; u < USER_TILE; u++) {
+                heaps[u] = new TopNHeap(N);
+            }
+        }
+    }
+
+    /**
+     * Description: 分块矩阵乘法的全量top-N推荐. 把用户分成USER_TILE一块, 商品分成ITEM_TILE一块,
+     * 每次计算 用户块 × 商品块ᵀ 的分数(商品块转置存放, 内层为连续内存上的axpy), 算出即送入该用户大小为N的小顶堆,
+     * 不保存整行分数. 浮点存储的模型打包时转为double, 分数与逐个predict可能在最后几位不同
+     *
+     * @param scorer     因子模型打分器
+     * @param candidates 候选商品
+     * @param N          推荐个数
+     */
+    public BlockedTopNRecommender(FactorScorer scorer, int[] candidates, int N) {
+        this.scorer = scorer;
+        this.candidates = candidates;
+        this.f = scorer.factors();
+        this.N = Math.max(N, 0);
+        int tiles = (candidates.length + ITEM_TILE - 1) / ITEM_TILE;
+        this.itemTiles = new double[tiles * ITEM_TILE * f];
+        this.itemBias = new double[candidates.length];
+        int maxItemId = -1;
+        double[] row = new double[f];
+        for (int k = 0; k < candidates.length; k++) {
+            scorer.itemVector(candidates[k], row);
+            int base = (k / ITEM_TILE) * ITEM_TILE * f + k % ITEM_TILE;
+            for (int d = 0; d < f; d++) {
+                itemTiles[base + d * ITEM_TILE] = row[d];
+            }
+            itemBias[k] = scorer.itemBias(candidates[k]);
+            maxItemId = Math.max(maxItemId, candidates[k]);
+        }
+        this.words = (maxItemId >> 6) + 1;
+    }
+
+    /**
+     * Description: 为 userIds[from, to) 推荐, 不超过USER_TILE个用户.
+     * 第u个用户占结果缓冲区的第 slot+(u-from) 格, 写入 outItems/outScores 的 [格*N, 格*N + outCounts[格])
+     */
+    private void recommendTile(int[] userIds, int[][] rated, int from, int to
+            , int[] outItems, double[] outScores, int[] outCounts, int slot) {
+        Workspace ws = workspace.get();
+        if (ws == null) {
+            ws = new Workspace();
+            workspace.set(ws);
+        }
+        int n = to - from;
+        for (int u = 0; u < n; u++) {
+            int userId = userIds[from + u];
+            scorer.userVector(userId, ws.row);
+            System.arraycopy(ws.row, 0, ws.userVectors, u * f, f);
+            ws.userBias[u] = scorer.userBias(userId);
+            ws.heaps[u].clear();
+            mark(ws.seen[u], rated[from + u], true);
+        }
+
+        int M = candidates.length;
+        double[] U = ws.userVectors;
+        double[] dots = ws.dots;
+        for (int i0 = 0; i0 < M; i0 += ITEM_TILE) {
+            int width = Math.min(M - i0, ITEM_TILE);
+            int tile = i0 * f; //第i0/ITEM_TILE块的起点
+            for (int u = 0; u < n; u++) {
+                //dots[i] += U[u][d] * V[i][d], 按d逐维累加, 内层是对连续内存的axpy, 可以被JIT向量化,
+                //每个分数的累加顺序与逐个内积相同
+                int uo = u * f;
+                Arrays.fill(dots, 0, width, 0.0);
+                for (int d = 0; d < f; d++) {
+                    double x = U[uo + d];
+                    int base = tile + d * ITEM_TILE;
+                    for (int i = 0; i < width; i++) {
+                        dots[i] += x * itemTiles[base + i];
+                    }
+                }
+                long[] seen = ws.seen[u];
+                TopNHeap heap = ws.heaps[u];
+                double ub = ws.userBias[u];
+                for (int i = 0; i < width; i++) {
+                    int k = i0 + i;
+                    int itemId = candidates[k];
+                    if ((seen[itemId >> 6] & (1L << itemId)) == 0) {
+                        heap.offer(itemId, scorer.combine(dots[i], ub, itemBias[k]), k);
+                    }
+                }
+            }
+        }
+
+        for (int u = 0; u < n; u++) {
+            outCounts[slot + u] = ws.heaps[u].drain(outItems, outScores, (slot + u) * N);
+            mark(ws.seen[u], rated[from + u], false);
+        }
+    }
+
+    private void mark(long[] seen, int[] items, boolean value) {
+        for (int itemId : items) {
+            if (itemId >= 0 && (itemId >> 6) < seen.length) {
+                if (value) {
+                    seen[itemId >> 6] |= 1L << itemId;
+                } else {
+                    seen[itemId >> 6] &= ~(1L << itemId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Description: 为评分表中的每个用户推荐, 候选商品为评分表中出现过的全部商品.
+     * 用户块并行计算, 结果按评分表的用户顺序依次交给listener(在调用线程中回调)
+     *
+     * @param ratingTable 评分表
+     * @param N           topN
+     * @param scorer      因子模型打分器
+     * @param threads     线程数
+     * @param listener    接收每个用户的结果
+     */
+    public static void recommend(RsTable ratingTable, int N, FactorScorer scorer, int threads, TopNListener listener) {
+        int[] userIds = new int[ratingTable.size()];
+        int[][] rated = new int[userIds.length][];
+        int count = 0;
+        for (Object userId : ratingTable.keys()) {
+            Map<?, ?> Nu = (Map<?, ?>) ratingTable.get(userId);
+            int[] items = new int[Nu.size()];
+            int k = 0;
+            for (Object itemId : Nu.keySet()) {
+                if (k == items.length) {
+                    break;
+                }
+                items[k++] = (Integer) itemId;
+            }
+            userIds[count] = (Integer) userId;
+            rated[count++] = k == items.length ? items : Arrays.copyOf(items, k);
+        }
+        new BlockedTopNRecommender(scorer, TopNRecommender.candidates(ratingTable), N)
+                .recommend(userIds, rated, count, threads, listener);
+    }
+
+    /**
+     * Description: 为评分表中的每个用户推荐, 结果展开为评分列表
+     */
+    public static List<Rating> recommend(RsTable ratingTable, int N, FactorScorer scorer, int threads) {
+        List<Rating> recommendItems = new ArrayList<>();
+        recommend(ratingTable, N, scorer, threads, (userId, items, scores, count) -> {
+            for (int k = 0; k < count; k++) {
+                recommendItems.add(new Rating(userId, items[k], scores[k]));
+            }
+        });
+        return recommendItems;
+    }
+
+    /**
+     * Description: 为给定用户推荐
+     *
+     * @param userIds  用户, 按此顺序回调
+     * @param rated    每个用户已评分的商品
+     * @param count    用户数
+     * @param threads  线程数
+     * @param listener 接收每个用户的结果
+     */
+    public void recommend(final int[] userIds, final int[][] rated, int count, int threads, TopNListener listener) {
+        int tiles = Math.max(1, threads) * 4; //每一波并行计算的块数, 限制结果缓冲区的大小
+        final int[] outItems = new int[tiles * USER_TILE * N];
+        final double[] outScores = new double[tiles * USER_TILE * N];
+        final int[] outCounts = new int[tiles * USER_TILE];
+        int[] items = new int[N];
+        double[] scores = new double[N];
+
+        ForkJoinPool pool = ParallelFor.createPool(threads);
+        try {
+            for (int waveStart = 0; waveStart < count; waveStart += tiles * USER_TILE) {
+                final int start = waveStart;
+                final int waveEnd = Math.min(count, waveStart + tiles * USER_TILE);
+                int waveTiles = (waveEnd - waveStart + USER_TILE - 1) / USER_TILE;
+                ParallelFor.forRange(pool, 0, waveTiles, 1, (a, b) -> {
+                    for (int t = a; t < b; t++) {
+                        int from = start + t * USER_TILE;
+                        int to = Math.min(waveEnd, from + USER_TILE);
+                        recommendTile(userIds, rated, from, to, outItems, outScores, outCounts, t * USER_TILE);
+                    }
+                });
+                for (int u = waveStart; u < waveEnd; u++) {
+                    int slot = u - waveStart;
+                    System.arraycopy(outItems, slot * N, items, 0, outCounts[slot]);
+                    System.arraycopy(outScores, slot * N, scores, 0, outCounts[slot]);
+                    listener.accept(userIds[u], items, scores, outCounts[slot]);
+                }
+            }
+        } finally {
+            ParallelFor.shutdown(pool);
+        }
+    }
+}
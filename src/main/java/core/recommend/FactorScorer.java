@@ -0,0 +1,102 @@
+package core.recommend;
+
+import core.FactorMatrix;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: core.recommend
+ */
+public class FactorScorer implements ItemScorer {
+    public final FactorMatrix users;  //用户向量
+    public final FactorMatrix items;  //商品向量
+    public final double alpha;        //内积系数
+    public final double[] userBias;   //用户偏置, 可以为null
+    public final double[] itemBias;   //商品偏置, 可以为null
+    public final double constant;     //常数项, 如全局均值
+
+    /**
+     * Description: 纯内积模型, score = users[u]·items[i]
+     */
+    public FactorScorer(FactorMatrix users, FactorMatrix items) {
+        this(users, items, 1.0, null, null, 0);
+    }
+
+    /**
+     * Description: 因子模型的统一打分形式 score = alpha * users[u]·items[i] + userBias[u] + itemBias[i] + constant,
+     * 可以按用户块 × 商品块做分块矩阵乘法批量计算 (见 BlockedTopNRecommender).
+     * 超出矩阵行数的用户或商品按零向量、零偏置处理
+     *
+     * @param users    用户向量
+     * @param items    商品向量
+     * @param alpha    内积系数
+     * @param userBias 用户偏置
+     * @param itemBias 商品偏置
+     * @param constant 常数项
+     */
+    public FactorScorer(FactorMatrix users, FactorMatrix items, double alpha
+            , double[] userBias, double[] itemBias, double constant) {
+        if (users.columns != items.columns) {
+            throw new IllegalArgumentException("Factor dimensions differ: " + users.columns + " vs " + items.columns);
+        }
+        this.users = users;
+        this.items = items;
+        this.alpha = alpha;
+        this.userBias = userBias;
+        this.itemBias = itemBias;
+        this.constant = constant;
+    }
+
+    public int factors() {
+        return users.columns;
+    }
+
+    public double userBias(int userId) {
+        return userBias == null || userId >= userBias.length ? 0 : userBias[userId];
+    }
+
+    public double itemBias(int itemId) {
+        return itemBias == null || itemId >= itemBias.length ? 0 : itemBias[itemId];
+    }
+
+    /**
+     * Description: 由内积得到最终分数, 批量与单个打分使用相同的计算顺序
+     */
+    public double combine(double dot, double userBias, double itemBias) {
+        return alpha * dot + userBias + itemBias + constant;
+    }
+
+    /**
+     * Description: 拷贝用户向量到out, 超出行数时填0
+     */
+    public void userVector(int userId, double[] out) {
+        copyRow(users, userId, out);
+    }
+
+    /**
+     * Description: 拷贝商品向量到out, 超出行数时填0
+     */
+    public void itemVector(int itemId, double[] out) {
+        copyRow(items, itemId, out);
+    }
+
+    @Override
+    public double score(int userId, int itemId) {
+        double dot = userId < users.rows && itemId < items.rows ? users.dot(userId, items, itemId) : 0;
+        return combine(dot, userBias(userId), itemBias(itemId));
+    }
+
+    private static void copyRow(FactorMatrix matrix, int row, double[] out) {
+        if (row < matrix.rows) {
+            matrix.getRow(row, out);
+        } else {
+            for (int i = 0; i < matrix.columns; i++) {
+                out[i] = 0;
+            }
+        }
+    }
+}
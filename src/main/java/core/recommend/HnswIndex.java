@@ -0,0 +1,726 @@
+package core.recommend;
+
+import entity.Rating;
+import entity.Tuple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: core.recommend
+ */
+public class HnswIndex {
+    final static Logger logger = LoggerFactory.getLogger(HnswIndex.class);
+
+    public static final int MAGIC = 0x52534831; //"RSH1"
+    public static final int VERSION = 1;
+    public static final byte INNER_PRODUCT = 0; //最大内积检索: 商品向量补两维, 转化为欧氏距离最近邻
+    public static final byte EUCLIDEAN = 1;     //欧氏距离检索: 商品向量补一维吸收商品偏置
+    public static final String SUFFIX = ".hnsw";
+
+    public final String model;          //模型类名, 读取时用于校验
+    public final byte metric;
+    public final int M;                 //每个节点在上层的最大连接数, 第0层为2M
+    public final int efConstruction;    //建索引时的候选集大小
+    public int efSearch = 50;           //查询时的候选集大小, 越大召回越高、延迟越大, 实际取 max(efSearch, N)
+    private final int f;                //原始特征数
+    private final int dim;              //增广后的维数
+    private final int[] itemIds;        //节点 -> 商品id
+    private final int[] nodeOf;         //商品id -> 节点, 不在索引中为-1
+    private final double[] vectors;     //增广后的商品向量, 按节点连续存放
+    private final int[] levels;         //每个节点的最高层
+    private final int[][][] links;      //links[节点][层] = {邻居数, 邻居...}
+    private int entry = -1;             //入口节点
+    private int maxLevel = -1;
+    private FactorScorer scorer;        //查询时生成用户向量并精确打分, 不随索引保存
+    private final ThreadLocal<Workspace> workspace = new ThreadLocal<>();
+
+    /**
+     * Description: 单个线程的查询工作区
+     */
+    private class Workspace {
+        final double[] row = new double[f];
+        final double[] query = new double[dim];
+        final int[] visited = new int[itemIds.length];
+        final int[] excluded = new int[itemIds.length];
+        int visitStamp = 0;
+        int excludeStamp = 0;
+        final NodeHeap candidates = new NodeHeap();
+        final NodeHeap results = new NodeHeap();
+        int[] ids = new int[64];          //searchLayer的结果, 按距离从近到远
+        double[] dists = new double[64];
+        final int[] selected = new int[2 * M + 1];
+        int[] pruned = new int[64];
+
+        int nextVisitStamp() {
+            if (++visitStamp == 0) {
+                Arrays.fill(visited, 0);
+                visitStamp = 1;
+            }
+            return visitStamp;
+        }
+
+        int nextExcludeStamp() {
+            if (++excludeStamp == 0) {
+                Arrays.fill(excluded, 0);
+                excludeStamp = 1;
+            }
+            return excludeStamp;
+        }
+
+        void ensure(int n) {
+            if (ids.length < n) {
+                int length = Math.max(n, 2 * ids.length);
+                ids = new int[length];
+                dists = new double[length];
+                pruned = new int[length];
+            }
+        }
+    }
+
+    /**
+     * Description: 按key的小顶堆, 存负距离即为大顶堆
+     */
+    private static class NodeHeap {
+        int[] nodes = new int[64];
+        double[] keys = new double[64];
+        int size = 0;
+
+        void clear() {
+            size = 0;
+        }
+
+        void push(int node, double key) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, 2 * size);
+                keys = Arrays.copyOf(keys, 2 * size);
+            }
+            int k = size++;
+            while (k > 0) {
+                int parent = (k - 1) >>> 1;
+                if (keys[parent] <= key) {
+                    break;
+                }
+                nodes[k] = nodes[parent];
+                keys[k] = keys[parent];
+                k = parent;
+            }
+            nodes[k] = node;
+            keys[k] = key;
+        }
+
+        void pop() {
+            int node = nodes[--size];
+            double key = keys[size];
+            int k = 0;
+            int half = size >>> 1;
+            while (k < half) {
+                int child = 2 * k + 1;
+                if (child + 1 < size && keys[child + 1] < keys[child]) {
+                    child++;
+                }
+                if (keys[child] >= key) {
+                    break;
+                }
+                nodes[k] = nodes[child];
+                keys[k] = keys[child];
+                k = child;
+            }
+            nodes[k] = node;
+            keys[k] = key;
+        }
+    }
+
+    private HnswIndex(String model, byte metric, int M, int efConstruction, int f
+            , int[] itemIds, double[] vectors, int[] levels, int[][][] links) {
+        this.model = model;
+        this.metric = metric;
+        this.M = M;
+        this.efConstruction = efConstruction;
+        this.f = f;
+        this.dim = metric == INNER_PRODUCT ? f + 2 : f + 1;
+        this.itemIds = itemIds;
+        this.vectors = vectors;
+        this.levels = levels;
+        this.links = links;
+        int maxItemId = -1;
+        for (int itemId : itemIds) {
+            maxItemId = Math.max(maxItemId, itemId);
+        }
+        this.nodeOf = new int[maxItemId + 1];
+        Arrays.fill(nodeOf, -1);
+        for (int k = 0; k < itemIds.length; k++) {
+            nodeOf[itemIds[k]] = k;
+        }
+    }
+
+    /**
+     * Description: 在候选商品上建立HNSW图索引. 对打分器的统一形式 alpha*u·v + ub + ib + c,
+     * 同一用户下排序只取决于 u·v + b (b = ib/alpha), 两种度量都把它转化为增广空间中的欧氏最近邻:
+     * INNER_PRODUCT: v' = [v, b, sqrt(R - |v|² - b²)], u' = [u, 1, 0], R为 |v|²+b² 的最大值;
+     * EUCLIDEAN:     v' = [v, sqrt(C - |v|² - 2b)],  u' = [u, 0],    C为 |v|²+2b 的最大值.
+     * 两者都有 |u'-v'|² = 常数 - 2(u·v + b). 对EuclideanEmbedding后者即 [Q_i, sqrt(C - bi)], 保留原本的欧氏几何.
+     * 建索引是单线程的, 层数用固定种子生成, 同样的输入得到同样的索引
+     *
+     * @param model          模型类名
+     * @param scorer         因子模型打分器, alpha必须为正
+     * @param candidates     候选商品
+     * @param metric         INNER_PRODUCT 或 EUCLIDEAN
+     * @param M              每层最大连接数, 通常为8~48
+     * @param efConstruction 建索引时的候选集大小, 通常为100~400
+     * @return 索引
+     */
+    public static HnswIndex build(String model, FactorScorer scorer, int[] candidates, byte metric
+            , int M, int efConstruction) {
+        if (!(scorer.alpha > 0)) {
+            throw new IllegalArgumentException("Scorer alpha must be positive:" + scorer.alpha);
+        }
+        if (M < 2) {
+            throw new IllegalArgumentException("M must be at least 2:" + M);
+        }
+        if (metric != INNER_PRODUCT && metric != EUCLIDEAN) {
+            throw new IllegalArgumentException("Unknown metric:" + metric);
+        }
+        int f = scorer.factors();
+        int dim = metric == INNER_PRODUCT ? f + 2 : f + 1;
+        int n = candidates.length;
+        double[] vectors = new double[n * dim];
+        double[] extra = new double[n];
+        double bound = 0;
+        double[] row = new double[f];
+        for (int k = 0; k < n; k++) {
+            scorer.itemVector(candidates[k], row);
+            System.arraycopy(row, 0, vectors, k * dim, f);
+            double b = scorer.itemBias(candidates[k]) / scorer.alpha;
+            double norm = 0;
+            for (double v : row) {
+                norm += v * v;
+            }
+            if (metric == INNER_PRODUCT) {
+                vectors[k * dim + f] = b;
+                extra[k] = norm + b * b;
+            } else {
+                extra[k] = norm + 2 * b;
+            }
+            bound = k == 0 ? extra[k] : Math.max(bound, extra[k]);
+        }
+        for (int k = 0; k < n; k++) {
+            vectors[k * dim + dim - 1] = Math.sqrt(Math.max(0, bound - extra[k]));
+        }
+
+        Random random = new Random(0);
+        double mL = 1 / Math.log(M);
+        int[] levels = new int[n];
+        int[][][] links = new int[n][][];
+        for (int k = 0; k < n; k++) {
+            levels[k] = (int) (-Math.log(1 - random.nextDouble()) * mL);
+            links[k] = new int[levels[k] + 1][];
+            links[k][0] = new int[2 * M + 1];
+            for (int l = 1; l <= levels[k]; l++) {
+                links[k][l] = new int[M + 1];
+            }
+        }
+
+        HnswIndex index = new HnswIndex(model, metric, M, efConstruction, f, candidates.clone(), vectors, levels, links);
+        index.scorer = scorer;
+        Workspace ws = index.workspace();
+        for (int k = 0; k < n; k++) {
+            index.insert(ws, k);
+        }
+        return index;
+    }
+
+    public int size() {
+        return itemIds.length;
+    }
+
+    /**
+     * Description: 模型文件旁的索引文件路径
+     */
+    public static String indexPath(String modelPath) {
+        return modelPath + SUFFIX;
+    }
+
+    private Workspace workspace() {
+        Workspace ws = workspace.get();
+        if (ws == null) {
+            ws = new Workspace();
+            workspace.set(ws);
+        }
+        return ws;
+    }
+
+    /**
+     * Description: 增广空间中的距离平方
+     */
+    private double distance(double[] a, int aOffset, int node) {
+        int b = node * dim;
+        double s = 0;
+        for (int d = 0; d < dim; d++) {
+            double e = a[aOffset + d] - vectors[b + d];
+            s += e * e;
+        }
+        return s;
+    }
+
+    /**
+     * Description: 在第layer层上贪心移动到离query最近的节点
+     */
+    private int closest(double[] query, int qOffset, int ep, int layer) {
+        double best = distance(query, qOffset, ep);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int[] list = links[ep][layer];
+            for (int k = 1; k <= list[0]; k++) {
+                double d = distance(query, qOffset, list[k]);
+                if (d < best) {
+                    best = d;
+                    ep = list[k];
+                    changed = true;
+                }
+            }
+        }
+        return ep;
+    }
+
+    /**
+     * Description: 第layer层上的best-first搜索, 结果按距离从近到远写入 ws.ids/ws.dists.
+     * filter为true时被排除的节点照常用于扩展, 但不进入结果
+     *
+     * @return 结果个数, 不超过ef
+     */
+    private int searchLayer(Workspace ws, double[] query, int qOffset, int ep, int ef, int layer, boolean filter) {
+        int stamp = ws.nextVisitStamp();
+        NodeHeap candidates = ws.candidates;
+        NodeHeap results = ws.results;
+        candidates.clear();
+        results.clear();
+        double epDistance = distance(query, qOffset, ep);
+        ws.visited[ep] = stamp;
+        candidates.push(ep, epDistance);
+        if (!filter || ws.excluded[ep] != ws.excludeStamp) {
+            results.push(ep, -epDistance);
+        }
+        while (candidates.size > 0) {
+            if (results.size >= ef && candidates.keys[0] > -results.keys[0]) {
+                break;
+            }
+            int c = candidates.nodes[0];
+            candidates.pop();
+            int[] list = links[c][layer];
+            for (int k = 1; k <= list[0]; k++) {
+                int e = list[k];
+                if (ws.visited[e] == stamp) {
+                    continue;
+                }
+                ws.visited[e] = stamp;
+                double d = distance(query, qOffset, e);
+                if (results.size < ef || d < -results.keys[0]) {
+                    candidates.push(e, d);
+                    if (!filter || ws.excluded[e] != ws.excludeStamp) {
+                        results.push(e, -d);
+                        if (results.size > ef) {
+                            results.pop();
+                        }
+                    }
+                }
+            }
+        }
+        int n = results.size;
+        ws.ensure(n);
+        for (int k = n - 1; k >= 0; k--) {
+            ws.ids[k] = results.nodes[0];
+            ws.dists[k] = -results.keys[0];
+            results.pop();
+        }
+        return n;
+    }
+
+    /**
+     * Description: 启发式选邻居: 按距离从近到远, 只保留比已选邻居都更靠近base的候选, 使连接分散在不同方向;
+     * 不足m个时再用被跳过的候选按距离补足
+     *
+     * @param base  连接的起点
+     * @param ids   候选, 按到base的距离从近到远
+     * @param dists 候选到base的距离
+     * @param n     候选个数
+     * @param m     最多选择个数
+     * @param out   输出
+     * @return 选择个数
+     */
+    private int selectNeighbours(Workspace ws, int base, int[] ids, double[] dists, int n, int m, int[] out) {
+        int count = 0;
+        int prunedCount = 0;
+        for (int k = 0; k < n && count < m; k++) {
+            int e = ids[k];
+            if (e == base) {
+                continue;
+            }
+            boolean good = true;
+            for (int r = 0; r < count; r++) {
+                if (distance(vectors, out[r] * dim, e) < dists[k]) {
+                    good = false;
+                    break;
+                }
+            }
+            if (good) {
+                out[count++] = e;
+            } else {
+                ws.pruned[prunedCount++] = e;
+            }
+        }
+        for (int k = 0; k < prunedCount && count < m; k++) {
+            out[count++] = ws.pruned[k];
+        }
+        return count;
+    }
+
+    private void insert(Workspace ws, int q) {
+        int level = levels[q];
+        int qOffset = q * dim;
+        if (entry < 0) {
+            entry = q;
+            maxLevel = level;
+            return;
+        }
+        int ep = entry;
+        for (int lc = maxLevel; lc > level; lc--) {
+            ep = closest(vectors, qOffset, ep, lc);
+        }
+        for (int lc = Math.min(level, maxLevel); lc >= 0; lc--) {
+            int n = searchLayer(ws, vectors, qOffset, ep, efConstruction, lc, false);
+            ep = ws.ids[0];
+            int m = selectNeighbours(ws, q, ws.ids, ws.dists, n, M, ws.selected);
+            int[] list = links[q][lc];
+            System.arraycopy(ws.selected, 0, list, 1, m);
+            list[0] = m;
+            int max = lc == 0 ? 2 * M : M;
+            for (int s = 0; s < m; s++) {
+                int e = list[s + 1];
+                int[] other = links[e][lc];
+                if (other[0] < max) {
+                    other[++other[0]] = q;
+                } else {
+                    shrink(ws, e, lc, q, max);
+                }
+            }
+        }
+        if (level > maxLevel) {
+            entry = q;
+            maxLevel = level;
+        }
+    }
+
+    /**
+     * Description: 节点e的连接已满时, 在原有邻居和新节点q中重新选择max个
+     */
+    private void shrink(Workspace ws, int e, int layer, int q, int max) {
+        int[] list = links[e][layer];
+        int n = list[0] + 1;
+        ws.ensure(n);
+        int[] ids = ws.ids;
+        double[] dists = ws.dists;
+        int eOffset = e * dim;
+        for (int k = 0; k < n; k++) {
+            int node = k < list[0] ? list[k + 1] : q;
+            double d = distance(vectors, eOffset, node);
+            int j = k;
+            while (j > 0 && dists[j - 1] > d) {
+                ids[j] = ids[j - 1];
+                dists[j] = dists[j - 1];
+                j--;
+            }
+            ids[j] = node;
+            dists[j] = d;
+        }
+        list[0] = selectNeighbours(ws, e, ids, dists, n, max, ws.selected);
+        System.arraycopy(ws.selected, 0, list, 1, list[0]);
+    }
+
+    /**
+     * Description: 为一个用户近似推荐. 在第0层取 max(efSearch, N) 个最近邻(已评分商品参与图遍历但不进入结果),
+     * 再用打分器精确打分选出前N个, 分数与predict一致
+     *
+     * @param userId     用户id
+     * @param rated      已评分的商品, 不会被推荐
+     * @param ratedCount 已评分商品个数
+     * @param N          推荐个数
+     * @param itemsOut   输出商品, 按分数从高到低
+     * @param scoresOut  输出分数
+     * @return 推荐个数
+     */
+    public int recommend(int userId, int[] rated, int ratedCount, int N, int[] itemsOut, double[] scoresOut) {
+        if (scorer == null) {
+            throw new IllegalStateException("Index has no scorer");
+        }
+        if (entry < 0 || N <= 0) {
+            return 0;
+        }
+        Workspace ws = workspace();
+        scorer.userVector(userId, ws.row);
+        System.arraycopy(ws.row, 0, ws.query, 0, f);
+        ws.query[f] = metric == INNER_PRODUCT ? 1 : 0;
+        if (metric == INNER_PRODUCT) {
+            ws.query[f + 1] = 0;
+        }
+        int stamp = ws.nextExcludeStamp();
+        for (int k = 0; k < ratedCount; k++) {
+            int itemId = rated[k];
+            if (itemId >= 0 && itemId < nodeOf.length && nodeOf[itemId] >= 0) {
+                ws.excluded[nodeOf[itemId]] = stamp;
+            }
+        }
+
+        int ep = entry;
+        for (int lc = maxLevel; lc > 0; lc--) {
+            ep = closest(ws.query, 0, ep, lc);
+        }
+        int n = searchLayer(ws, ws.query, 0, ep, Math.max(efSearch, N), 0, true);
+        TopNHeap heap = new TopNHeap(N);
+        for (int k = 0; k < n; k++) {
+            int itemId = itemIds[ws.ids[k]];
+            heap.offer(itemId, scorer.score(userId, itemId), k);
+        }
+        return heap.drain(itemsOut, scoresOut);
+    }
+
+    /**
+     * Description: 为一个用户近似推荐, 结果展开为评分列表
+     */
+    public List<Rating> recommend(int userId, int N, int[] rated) {
+        int[] items = new int[Math.max(N, 0)];
+        double[] scores = new double[items.length];
+        int count = recommend(userId, rated, rated.length, N, items, scores);
+        List<Rating> recommendItems = new ArrayList<>(count);
+        for (int k = 0; k < count; k++) {
+            recommendItems.add(new Rating(userId, items[k], scores[k]));
+        }
+        return recommendItems;
+    }
+
+    /**
+     * Description: 当前efSearch下相对精确检索的recall@N和平均单次查询耗时, 不排除已评分商品
+     *
+     * @param userIds 抽样用户
+     * @param N       推荐个数
+     * @return (recall@N, 平均耗时毫秒)
+     */
+    public Tuple<Double, Double> recall(int[] userIds, int N) {
+        return recall(userIds, exact(userIds, N), N);
+    }
+
+    /**
+     * Description: 召回率-延迟报告, 依次使用每个efSearch并打印日志, 结束后恢复原来的efSearch
+     *
+     * @param userIds    抽样用户
+     * @param N          推荐个数
+     * @param efSearches 待比较的efSearch
+     * @return 每个efSearch的 (recall@N, 平均耗时毫秒)
+     */
+    public List<Tuple<Double, Double>> recallReport(int[] userIds, int N, int[] efSearches) {
+        int[][] exact = exact(userIds, N);
+        int saved = efSearch;
+        List<Tuple<Double, Double>> report = new ArrayList<>();
+        try {
+            for (int ef : efSearches) {
+                efSearch = ef;
+                Tuple<Double, Double> result = recall(userIds, exact, N);
+                logger.info("efSearch:{}, recall@{}:{}, latency(ms):{}.", ef, N, result.first, result.second);
+                report.add(result);
+            }
+        } finally {
+            efSearch = saved;
+        }
+        return report;
+    }
+
+    /**
+     * Description: 用分块矩阵乘法精确计算每个用户的前N个商品
+     */
+    private int[][] exact(int[] userIds, int N) {
+        int[][] exact = new int[userIds.length][];
+        int[][] rated = new int[userIds.length][0];
+        int[] next = {0};
+        new BlockedTopNRecommender(scorer, itemIds, N).recommend(userIds, rated, userIds.length, 1
+                , (userId, items, scores, count) -> exact[next[0]++] = Arrays.copyOf(items, count));
+        return exact;
+    }
+
+    private Tuple<Double, Double> recall(int[] userIds, int[][] exact, int N) {
+        int[] items = new int[Math.max(N, 0)];
+        double[] scores = new double[items.length];
+        int[] none = new int[0];
+        long hits = 0;
+        long total = 0;
+        long time = 0;
+        for (int u = 0; u < userIds.length; u++) {
+            long start = System.nanoTime();
+            int count = recommend(userIds[u], none, 0, N, items, scores);
+            time += System.nanoTime() - start;
+            total += exact[u].length;
+            for (int itemId : exact[u]) {
+                for (int k = 0; k < count; k++) {
+                    if (items[k] == itemId) {
+                        hits++;
+                        break;
+                    }
+                }
+            }
+        }
+        double recall = total == 0 ? 1.0 : (double) hits / total;
+        return new Tuple<>(recall, userIds.length == 0 ? 0.0 : time / 1e6 / userIds.length);
+    }
+
+    /**
+     * Description: 写入文件(小端), 先写到临时文件再改名. 打分器不保存, 读取时由模型重新提供
+     *
+     * @param saveFilePath 保存路径, 通常为 indexPath(模型路径)
+     */
+    public void write(String saveFilePath) {
+        byte[] name = model.getBytes(StandardCharsets.UTF_8);
+        int n = itemIds.length;
+        long bytes = 8 + 2 + name.length + 1 + 4 * 9 + 8L * n + 8L * n * dim;
+        for (int k = 0; k < n; k++) {
+            for (int l = 0; l <= levels[k]; l++) {
+                bytes += 4 + 4L * links[k][l][0];
+            }
+        }
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Index too large:" + bytes + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) bytes).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION);
+        buffer.putShort((short) name.length).put(name);
+        buffer.put(metric);
+        buffer.putInt(M).putInt(efConstruction).putInt(efSearch).putInt(f).putInt(dim).putInt(n);
+        buffer.putInt(entry).putInt(maxLevel).putInt(0);
+        buffer.asIntBuffer().put(itemIds);
+        buffer.position(buffer.position() + 4 * n);
+        buffer.asIntBuffer().put(levels);
+        buffer.position(buffer.position() + 4 * n);
+        buffer.asDoubleBuffer().put(vectors);
+        buffer.position(buffer.position() + 8 * vectors.length);
+        for (int k = 0; k < n; k++) {
+            for (int l = 0; l <= levels[k]; l++) {
+                int[] list = links[k][l];
+                buffer.putInt(list[0]);
+                for (int s = 1; s <= list[0]; s++) {
+                    buffer.putInt(list[s]);
+                }
+            }
+        }
+        buffer.flip();
+
+        File target = new File(saveFilePath);
+        File temp = new File(saveFilePath + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE
+                    , StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            temp.delete();
+            throw new IllegalStateException("Can not write index:" + saveFilePath, e);
+        }
+    }
+
+    /**
+     * Description: 读取索引
+     *
+     * @param readFilePath 文件路径
+     * @param model        模型类名, 必须与建索引时一致
+     * @param scorer       当前模型的打分器, 特征数必须与索引一致
+     * @return 索引
+     */
+    public static HnswIndex read(String readFilePath, String model, FactorScorer scorer) {
+        File file = new File(readFilePath);
+        if (!file.exists()) {
+            throw new IllegalArgumentException("File doesn't exist:" + readFilePath);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Index too large:" + readFilePath);
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+            if (size < 8 || buffer.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Not an HNSW index:" + readFilePath);
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported index version " + version + ":" + readFilePath);
+            }
+            byte[] name = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(name);
+            String indexModel = new String(name, StandardCharsets.UTF_8);
+            if (!indexModel.equals(model)) {
+                throw new IllegalArgumentException("Index is for " + indexModel + ", not " + model);
+            }
+            byte metric = buffer.get();
+            int M = buffer.getInt();
+            int efConstruction = buffer.getInt();
+            int efSearch = buffer.getInt();
+            int f = buffer.getInt();
+            int dim = buffer.getInt();
+            int n = buffer.getInt();
+            int entry = buffer.getInt();
+            int maxLevel = buffer.getInt();
+            buffer.getInt();
+            if (f != scorer.factors()) {
+                throw new IllegalArgumentException("Index has f=" + f + ", model has f=" + scorer.factors());
+            }
+            int[] itemIds = new int[n];
+            buffer.asIntBuffer().get(itemIds);
+            buffer.position(buffer.position() + 4 * n);
+            int[] levels = new int[n];
+            buffer.asIntBuffer().get(levels);
+            buffer.position(buffer.position() + 4 * n);
+            double[] vectors = new double[n * dim];
+            buffer.asDoubleBuffer().get(vectors);
+            buffer.position(buffer.position() + 8 * vectors.length);
+            int[][][] links = new int[n][][];
+            for (int k = 0; k < n; k++) {
+                links[k] = new int[levels[k] + 1][];
+                for (int l = 0; l <= levels[k]; l++) {
+                    int[] list = new int[(l == 0 ? 2 * M : M) + 1];
+                    list[0] = buffer.getInt();
+                    for (int s = 1; s <= list[0]; s++) {
+                        list[s] = buffer.getInt();
+                    }
+                    links[k][l] = list;
+                }
+            }
+            HnswIndex index = new HnswIndex(model, metric, M, efConstruction, f, itemIds, vectors, levels, links);
+            index.efSearch = efSearch;
+            index.entry = entry;
+            index.maxLevel = maxLevel;
+            index.scorer = scorer;
+            return index;
+        } catch (IOException e) {
+            throw new IllegalStateException("Can not read index:" + readFilePath, e);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package core.recommend;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: core.recommend
+ */
+@FunctionalInterface
+public interface ItemScorer {
+    /**
+     * Description: 用户对单个商品的预测分
+     *
+     * @param userId 用户id
+     * @param itemId 商品id
+     * @return 预测分, 越大越靠前
+     */
+    double score(int userId, int itemId);
+
+    /**
+     * Description: 批量打分, 结果写入调用方复用的缓冲区, 模型可以覆盖为按块计算
+     *
+     * @param userId 用户id
+     * @param items  商品id
+     * @param count  商品个数
+     * @param out    输出, out[k]为items[k]的分数
+     */
+    default void score(int userId, int[] items, int count, double[] out) {
+        for (int k = 0; k < count; k++) {
+            out[k] = score(userId, items[k]);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package core.recommend;
+
+import entity.IntDoubleMap;
+import entity.IntDoubleTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: core.recommend
+ */
+public class NeighbourIndex {
+    public static final int MAGIC = 0x52534b31; //"RSK1"
+    public static final int VERSION = 1;
+
+    public final int rows;          //行数, 取最大id+1
+    public final int K;             //每行最多保留的邻居数
+    public final double threshold;  //低于该相似度的邻居不保留
+    public final int[] offsets;     //第row行的邻居位于 [offsets[row], offsets[row+1])
+    public final int[] neighbours;  //邻居id, 每行按相似度从高到低
+    public final float[] weights;   //相似度
+
+    /**
+     * Description: 预先计算的top-K近邻索引, 每行只保留相似度最高的K个邻居, 内存为 O(n·K).
+     * 按压缩稀疏行存放, 每行已经按相似度降序, 取前k(k<=K)个即为top-k
+     *
+     * @param rows       行数
+     * @param K          每行最多保留的邻居数
+     * @param threshold  相似度阈值
+     * @param offsets    行偏移, 长度为rows+1
+     * @param neighbours 邻居id
+     * @param weights    相似度
+     */
+    public NeighbourIndex(int rows, int K, double threshold, int[] offsets, int[] neighbours, float[] weights) {
+        if (offsets.length != rows + 1 || neighbours.length != weights.length || offsets[rows] != neighbours.length) {
+            throw new IllegalArgumentException("Inconsistent neighbour index arrays.");
+        }
+        this.rows = rows;
+        this.K = K;
+        this.threshold = threshold;
+        this.offsets = offsets;
+        this.neighbours = neighbours;
+        this.weights = weights;
+    }
+
+    /**
+     * Description: 从完整的相似度表构造, 每行用大小为K的小顶堆选出前K个, 同分时按相似度表中的遍历顺序,
+     * 与对整行稳定排序后截取前K个的结果一致
+     *
+     * @param similarities 相似度表
+     * @param K            每行最多保留的邻居数
+     * @param threshold    低于该相似度的邻居不保留
+     * @return 索引
+     */
+    public static NeighbourIndex build(IntDoubleTable similarities, int K, double threshold) {
+        int[] keys = similarities.keys();
+        int rows = 0;
+        for (int key : keys) {
+            rows = Math.max(rows, key + 1);
+        }
+        K = Math.max(K, 0);
+        int[] counts = new int[rows];
+        int[] rowItems = new int[Math.max(K, 1)];
+        double[] rowScores = new double[rowItems.length];
+        int[][] rowNeighbours = new int[rows][];
+        float[][] rowWeights = new float[rows][];
+        TopNHeap heap = new TopNHeap(K);
+        for (int key : keys) {
+            IntDoubleMap.Cursor c = similarities.get(key).cursor();
+            int order = 0;
+            while (c.next()) {
+                if (c.value() >= threshold) {
+                    heap.offer(c.key(), c.value(), order);
+                }
+                order++;
+            }
+            int count = heap.drain(rowItems, rowScores);
+            counts[key] = count;
+            rowNeighbours[key] = new int[count];
+            rowWeights[key] = new float[count];
+            for (int k = 0; k < count; k++) {
+                rowNeighbours[key][k] = rowItems[k];
+                rowWeights[key][k] = (float) rowScores[k];
+            }
+        }
+
+        int[] offsets = new int[rows + 1];
+        for (int row = 0; row < rows; row++) {
+            offsets[row + 1] = offsets[row] + counts[row];
+        }
+        int[] neighbours = new int[offsets[rows]];
+        float[] weights = new float[offsets[rows]];
+        for (int row = 0; row < rows; row++) {
+            if (counts[row] > 0) {
+                System.arraycopy(rowNeighbours[row], 0, neighbours, offsets[row], counts[row]);
+                System.arraycopy(rowWeights[row], 0, weights, offsets[row], counts[row]);
+            }
+        }
+        return new NeighbourIndex(rows, K, threshold, offsets, neighbours, weights);
+    }
+
+    public int rowStart(int row) {
+        return row < rows ? offsets[row] : 0;
+    }
+
+    /**
+     * Description: 第row行前k个邻居的结束位置, 超出行数的id视为没有邻居
+     */
+    public int rowEnd(int row, int k) {
+        if (row >= rows) {
+            return 0;
+        }
+        return Math.min(offsets[row + 1], offsets[row] + Math.max(k, 0));
+    }
+
+    public int nnz() {
+        return neighbours.length;
+    }
+
+    /**
+     * Description: 写入文件(小端), 先写到临时文件再改名
+     * 格式: int magic, int version, int rows, int K, double threshold, int nnz, int[rows+1] offsets, int[nnz] neighbours, float[nnz] weights
+     *
+     * @param saveFilePath 保存路径
+     */
+    public void write(String saveFilePath) {
+        long bytes = 4 * 5 + 8 + 4L * (rows + 1) + 8L * neighbours.length;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Neighbour index too large:" + bytes + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) bytes).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(rows).putInt(K).putDouble(threshold).putInt(neighbours.length);
+        buffer.asIntBuffer().put(offsets);
+        buffer.position(buffer.position() + 4 * offsets.length);
+        buffer.asIntBuffer().put(neighbours);
+        buffer.position(buffer.position() + 4 * neighbours.length);
+        buffer.asFloatBuffer().put(weights);
+        buffer.position(buffer.position() + 4 * weights.length);
+        buffer.flip();
+
+        File target = new File(saveFilePath);
+        File temp = new File(saveFilePath + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE
+                    , StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            temp.delete();
+            throw new IllegalStateException("Can not write neighbour index:" + saveFilePath, e);
+        }
+    }
+
+    /**
+     * Description: 读取索引
+     *
+     * @param readFilePath 文件路径
+     * @return 索引
+     */
+    public static NeighbourIndex read(String readFilePath) {
+        File file = new File(readFilePath);
+        if (!file.exists()) {
+            throw new IllegalArgumentException("File doesn't exist:" + readFilePath);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Neighbour index too large:" + readFilePath);
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+            if (size < 8 || buffer.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Not a neighbour index:" + readFilePath);
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported neighbour index version " + version + ":" + readFilePath);
+            }
+            int rows = buffer.getInt();
+            int K = buffer.getInt();
+            double threshold = buffer.getDouble();
+            int nnz = buffer.getInt();
+            int[] offsets = new int[rows + 1];
+            buffer.asIntBuffer().get(offsets);
+            buffer.position(buffer.position() + 4 * offsets.length);
+            int[] neighbours = new int[nnz];
+            buffer.asIntBuffer().get(neighbours);
+            buffer.position(buffer.position() + 4 * nnz);
+            float[] weights = new float[nnz];
+            buffer.asFloatBuffer().get(weights);
+            return new NeighbourIndex(rows, K, threshold, offsets, neighbours, weights);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can not read neighbour index:" + readFilePath, e);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package core.recommend;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: core.recommend
+ */
+public class TopNHeap {
+    private final int capacity;
+    private final int[] items;
+    private final double[] scores;
+    private final int[] orders;
+    private int size = 0;
+
+    /**
+     * Description: 保留分数最高的capacity个商品的小顶堆, 堆顶是当前最差的一个, 全部使用基本类型数组.
+     * 分数相同时order较小的优先, 与按分数稳定排序后取前N个的结果一致
+     *
+     * @param capacity 保留个数N
+     */
+    public TopNHeap(int capacity) {
+        this.capacity = Math.max(capacity, 0);
+        this.items = new int[this.capacity];
+        this.scores = new double[this.capacity];
+        this.orders = new int[this.capacity];
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Description: 尝试加入一个商品, O(log N)
+     *
+     * @param item  商品id
+     * @param score 分数
+     * @param order 出现顺序, 同分时较小者优先
+     * @return 是否被保留
+     */
+    public boolean offer(int item, double score, int order) {
+        if (size < capacity) {
+            int k = size++;
+            while (k > 0) {
+                int parent = (k - 1) >>> 1;
+                if (!worse(score, order, scores[parent], orders[parent])) {
+                    break;
+                }
+                move(parent, k);
+                k = parent;
+            }
+            set(k, item, score, order);
+            return true;
+        }
+        if (capacity == 0 || !worse(scores[0], orders[0], score, order)) {
+            return false;
+        }
+        siftDown(item, score, order);
+        return true;
+    }
+
+    /**
+     * Description: 按分数从高到低输出并清空堆
+     *
+     * @param itemsOut  输出商品
+     * @param scoresOut 输出分数
+     * @return 输出个数
+     */
+    public int drain(int[] itemsOut, double[] scoresOut) {
+        return drain(itemsOut, scoresOut, 0);
+    }
+
+    /**
+     * Description: 按分数从高到低输出到 [offset, offset+size) 并清空堆
+     */
+    public int drain(int[] itemsOut, double[] scoresOut, int offset) {
+        int n = size;
+        for (int k = n - 1; k >= 0; k--) {
+            itemsOut[offset + k] = items[0];
+            scoresOut[offset + k] = scores[0];
+            size--;
+            if (size > 0) {
+                siftDown(items[size], scores[size], orders[size]);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Description: 把堆顶替换为给定元素并下沉
+     */
+    private void siftDown(int item, double score, int order) {
+        int k = 0;
+        int half = size >>> 1;
+        while (k < half) {
+            int child = 2 * k + 1;
+            int right = child + 1;
+            if (right < size && worse(scores[right], orders[right], scores[child], orders[child])) {
+                child = right;
+            }
+            if (!worse(scores[child], orders[child], score, order)) {
+                break;
+            }
+            move(child, k);
+            k = child;
+        }
+        set(k, item, score, order);
+    }
+
+    /**
+     * Description: a是否比b差: 分数更低, 或分数相同但出现得更晚
+     */
+    private static boolean worse(double aScore, int aOrder, double bScore, int bOrder) {
+        return aScore < bScore || (aScore == bScore && aOrder > bOrder);
+    }
+
+    private void move(int from, int to) {
+        items[to] = items[from];
+        scores[to] = scores[from];
+        orders[to] = orders[from];
+    }
+
+    private void set(int k, int item, double score, int order) {
+        items[k] = item;
+        scores[k] = score;
+        orders[k] = order;
+    }
+}
@@ -0,0 +1,23 @@
+package core.recommend;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: core.recommend
+ */
+@FunctionalInterface
+public interface TopNListener {
+    /**
+     * Description: 接收一个用户的推荐结果, 数组在回调返回后会被复用, 需要保留时自行拷贝
+     *
+     * @param userId 用户id
+     * @param items  推荐商品, 按分数从高到低
+     * @param scores 对应的分数
+     * @param count  有效个数
+     */
+    void accept(int userId, int[] items, double[] scores, int count);
+}
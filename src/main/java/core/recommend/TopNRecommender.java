@@ -0,0 +1,141 @@
+package core.recommend;
+
+import entity.Rating;
+import entity.RsTable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: core.recommend
+ */
+public class TopNRecommender {
+    private final int[] candidates; //候选商品, 其顺序决定同分时的先后
+    private final int[] seenStamp;  //按商品id记录最后一次被标记为已评分的用户序号
+    private int stamp = 0;
+    private final int[] unseen;     //当前用户未评分的候选商品
+    private final double[] buffer;  //打分缓冲区, 所有用户复用
+    private final TopNHeap heap;
+    public final int[] items;       //最近一次推荐结果, 按分数从高到低
+    public final double[] scores;
+
+    /**
+     * Description: 公共的top-N推荐引擎. 每个用户: 过滤已评分商品 -> 批量打分到复用的缓冲区 -> 大小为N的小顶堆选出前N个,
+     * 时间 O(M log N), 对候选商品不创建任何对象. 结果与"全部打分后稳定排序取前N"相同
+     *
+     * @param candidates 候选商品
+     * @param N          推荐个数
+     */
+    public TopNRecommender(int[] candidates, int N) {
+        this.candidates = candidates;
+        int maxItemId = -1;
+        for (int itemId : candidates) {
+            maxItemId = Math.max(maxItemId, itemId);
+        }
+        this.seenStamp = new int[maxItemId + 1];
+        this.unseen = new int[candidates.length];
+        this.buffer = new double[candidates.length];
+        this.heap = new TopNHeap(N);
+        this.items = new int[heap.capacity()];
+        this.scores = new double[heap.capacity()];
+    }
+
+    /**
+     * Description: 为一个用户推荐
+     *
+     * @param userId     用户id
+     * @param rated      已评分的商品, 不会被推荐
+     * @param ratedCount 已评分商品个数
+     * @param scorer     打分模型
+     * @return 推荐个数, 结果在 items/scores 的前若干位
+     */
+    public int recommend(int userId, int[] rated, int ratedCount, ItemScorer scorer) {
+        stamp++;
+        for (int k = 0; k < ratedCount; k++) {
+            int itemId = rated[k];
+            if (itemId >= 0 && itemId < seenStamp.length) {
+                seenStamp[itemId] = stamp;
+            }
+        }
+        int count = 0;
+        for (int itemId : candidates) {
+            if (seenStamp[itemId] != stamp) {
+                unseen[count++] = itemId;
+            }
+        }
+        scorer.score(userId, unseen, count, buffer);
+        heap.clear();
+        for (int k = 0; k < count; k++) {
+            heap.offer(unseen[k], buffer[k], k);
+        }
+        return heap.drain(items, scores);
+    }
+
+    /**
+     * Description: 评分表中出现过的全部商品, 作为推荐的候选
+     *
+     * @param ratingTable 评分表
+     * @return 商品id
+     */
+    public static int[] candidates(RsTable ratingTable) {
+        List<?> list = ratingTable.getSubKeyList();
+        int[] candidates = new int[list.size()];
+        for (int k = 0; k < candidates.length; k++) {
+            candidates[k] = (Integer) list.get(k);
+        }
+        return candidates;
+    }
+
+    /**
+     * Description: 为评分表中的每个用户推荐, 候选商品为评分表中出现过的全部商品
+     *
+     * @param ratingTable 评分表
+     * @param N           topN
+     * @param scorer      打分模型
+     * @param listener    接收每个用户的结果
+     */
+    public static void recommend(RsTable ratingTable, int N, ItemScorer scorer, TopNListener listener) {
+        TopNRecommender engine = new TopNRecommender(candidates(ratingTable), N);
+        int[] rated = new int[16];
+        for (Object userId : ratingTable.keys()) {
+            Map<?, ?> Nu = (Map<?, ?>) ratingTable.get(userId);
+            if (rated.length < Nu.size()) {
+                rated = new int[Math.max(Nu.size(), 2 * rated.length)];
+            }
+            int ratedCount = 0;
+            for (Object itemId : Nu.keySet()) {
+                if (ratedCount == rated.length) {
+                    break;
+                }
+                rated[ratedCount++] = (Integer) itemId;
+            }
+            int count = engine.recommend((Integer) userId, rated, ratedCount, scorer);
+            listener.accept((Integer) userId, engine.items, engine.scores, count);
+        }
+    }
+
+    /**
+     * Description: 为评分表中的每个用户推荐, 结果展开为评分列表
+     *
+     * @param ratingTable 评分表
+     * @param N           topN
+     * @param scorer      打分模型
+     * @return 推荐列表, 每个用户按分数从高到低
+     */
+    public static List<Rating> recommend(RsTable ratingTable, int N, ItemScorer scorer) {
+        List<Rating> recommendItems = new ArrayList<>();
+        recommend(ratingTable, N, scorer, (userId, items, scores, count) -> {
+            for (int k = 0; k < count; k++) {
+                recommendItems.add(new Rating(userId, items[k], scores[k]));
+            }
+        });
+        return recommendItems;
+    }
+}
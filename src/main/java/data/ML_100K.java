@@ -80,8 +80,8 @@ public class ML_100K {
 
 
     public static void main(String[] args) {
-        List<Rating> baseRatings = Tools.getRatings(baseRatingFile);
-        List<Rating> testRatings = Tools.getRatings(testRatingFile);
+        List<Rating> baseRatings = Tools.getCachedRatings(baseRatingFile, "\t");
+        List<Rating> testRatings = Tools.getCachedRatings(testRatingFile, "\t");
 
         Tools.updateIndexesToZeroBased(baseRatings);
         Tools.updateIndexesToZeroBased(testRatings);
@@ -70,12 +70,13 @@ public class ML_10M {
 //        updateDataInformation();
 //        spilt();
 //        meanFillingTest();
-        List<Rating> baseRatings = Tools.getRatings(trainRatingFile);
-        List<Rating> testRatings = Tools.getRatings(testRatingFile);
+        List<Rating> baseRatings = Tools.getCachedRatings(trainRatingFile, "\t");
+        List<Rating> testRatings = Tools.getCachedRatings(testRatingFile, "\t");
 
         Tools.updateIndexesToZeroBased(baseRatings);
         Tools.updateIndexesToZeroBased(testRatings);
         BiasedMatrixFactorization euclideanEmbedding = new BiasedMatrixFactorization(maxUserId, maxItemId, 50, "uniform_df");
+        euclideanEmbedding.threads = Integer.getInteger("threads", 1); //默认单线程顺序训练(结果可复现), -Dthreads=N 开启并行
         euclideanEmbedding.testSGDForTopN(baseRatings, testRatings, 350, 0.0008, 0.001, 1, 1, 5);
 
     }
@@ -53,8 +53,8 @@ public class ML_1M {
 
     public static void main(String[] args) {
 //        spilt(0.5);
-        List<Rating> baseRatings = Tools.getRatings(trainRatingFile);
-        List<Rating> testRatings = Tools.getRatings(testRatingFile);
+        List<Rating> baseRatings = Tools.getCachedRatings(trainRatingFile, "\t");
+        List<Rating> testRatings = Tools.getCachedRatings(testRatingFile, "\t");
         Tools.updateIndexesToZeroBased(baseRatings);
         Tools.updateIndexesToZeroBased(testRatings);
         SVDPlusPlus euclideanEmbedding = new SVDPlusPlus(maxUserId, maxItemId, 100, "uniform_df");
@@ -0,0 +1,385 @@
+package data.utility;
+
+import entity.RatingColumns;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: data.utility
+ */
+public class BinaryRatingFile {
+    public static final int MAGIC = 0x52534231; //"RSB1"
+    public static final int VERSION = 1;
+
+    public static final byte RAW = 0;          //定长小端存放
+    public static final byte DELTA_VARINT = 1; //相邻差值zigzag后按varint存放
+
+    private static final int COLUMNS = 4; //users, items, scores, timestamps
+    private static final int HEADER_BYTES = 24 + 8 * COLUMNS;
+    private static final int FLAG_TIMESTAMPS = 1;
+    private static final int WINDOW = 1 << 30;      //单次映射的上限
+    private static final int WRITE_BUFFER = 1 << 16;
+
+    /**
+     * Description: 文件格式(小端):
+     * int magic, int version, int count, int flags, byte[4] 各列编码, int 保留, long[4] 各列字节数,
+     * 之后依次为 users(int), items(int), scores(float), timestamps(long, 仅flags带时间戳时存在) 四列.
+     * compress为true时整数列尝试差值varint编码, 只有比定长更小时才采用.
+     * 先写到 saveFilePath.tmp 再原子改名, 写到一半失败不会留下被截断的文件
+     *
+     * @param columns      评分列
+     * @param saveFilePath 保存路径
+     * @param compress     是否压缩整数列
+     */
+    public static void write(RatingColumns columns, String saveFilePath, boolean compress) {
+        int count = columns.size();
+        boolean timed = columns.hasTimestamps();
+        byte[] encodings = new byte[COLUMNS];
+        long[] lengths = new long[COLUMNS];
+
+        encodings[0] = compress && varintLength(columns.users, count) < 4L * count ? DELTA_VARINT : RAW;
+        encodings[1] = compress && varintLength(columns.items, count) < 4L * count ? DELTA_VARINT : RAW;
+        encodings[2] = RAW;
+        encodings[3] = compress && timed && varintLength(columns.timestamps, count) < 8L * count ? DELTA_VARINT : RAW;
+
+        Path target = new File(saveFilePath).toPath();
+        Path temp = new File(saveFilePath + ".tmp").toPath();
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE
+                , StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+            channel.position(HEADER_BYTES);
+
+            long start = channel.position();
+            writeInts(channel, buffer, columns.users, count, encodings[0]);
+            lengths[0] = channel.position() - start;
+
+            start = channel.position();
+            writeInts(channel, buffer, columns.items, count, encodings[1]);
+            lengths[1] = channel.position() - start;
+
+            start = channel.position();
+            for (int k = 0; k < count; k++) {
+                ensure(channel, buffer, 4);
+                buffer.putFloat(columns.scores[k]);
+            }
+            flush(channel, buffer);
+            lengths[2] = channel.position() - start;
+
+            if (timed) {
+                start = channel.position();
+                writeLongs(channel, buffer, columns.timestamps, count, encodings[3]);
+                lengths[3] = channel.position() - start;
+            }
+
+            buffer.clear();
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(timed ? FLAG_TIMESTAMPS : 0);
+            buffer.put(encodings).putInt(0);
+            for (long length : lengths) {
+                buffer.putLong(length);
+            }
+            buffer.flip();
+            long position = 0;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        } catch (IOException e) {
+            deleteQuietly(temp);
+            throw new UncheckedIOException("Failed to write binary rating file:" + saveFilePath, e);
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            deleteQuietly(temp);
+            throw new UncheckedIOException("Failed to write binary rating file:" + saveFilePath, e);
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Description: 内存映射读取, 定长列直接整块拷贝到数组, 压缩列边映射边解码
+     *
+     * @param readFilePath 文件路径
+     * @return 评分列
+     * @throws IllegalArgumentException 不是二进制评分文件或文件不完整
+     * @throws UncheckedIOException     读取失败
+     */
+    public static RatingColumns read(String readFilePath) {
+        File file = new File(readFilePath);
+        if (!file.exists()) {
+            throw new IllegalArgumentException("File doesn't exist:" + readFilePath);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES) {
+                throw new IllegalArgumentException("Not a binary rating file:" + readFilePath);
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Not a binary rating file:" + readFilePath);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported binary rating file version " + version + ":" + readFilePath);
+            }
+            int count = header.getInt();
+            int flags = header.getInt();
+            byte[] encodings = new byte[COLUMNS];
+            header.get(encodings);
+            header.getInt();
+            long[] lengths = new long[COLUMNS];
+            for (int c = 0; c < COLUMNS; c++) {
+                lengths[c] = header.getLong();
+            }
+
+            long total = HEADER_BYTES;
+            for (int c = 0; c < COLUMNS; c++) {
+                if (lengths[c] < 0) {
+                    throw new IllegalArgumentException("Corrupted binary rating file:" + readFilePath);
+                }
+                total += lengths[c];
+            }
+            if (count < 0 || total > channel.size()) {
+                throw new IllegalArgumentException("Truncated binary rating file:" + readFilePath);
+            }
+            boolean timed = (flags & FLAG_TIMESTAMPS) != 0;
+            if (!validColumn(lengths[0], count, encodings[0], 4)
+                    || !validColumn(lengths[1], count, encodings[1], 4)
+                    || encodings[2] != RAW || lengths[2] != 4L * count
+                    || (timed ? !validColumn(lengths[3], count, encodings[3], 8) : lengths[3] != 0)) {
+                throw new IllegalArgumentException("Corrupted binary rating file:" + readFilePath);
+            }
+
+            long position = HEADER_BYTES;
+            int[] users = readInts(channel, position, lengths[0], count, encodings[0]);
+            position += lengths[0];
+            int[] items = readInts(channel, position, lengths[1], count, encodings[1]);
+            position += lengths[1];
+            float[] scores = new float[count];
+            for (int from = 0; from < count; ) {
+                int n = Math.min(count - from, WINDOW / 4);
+                map(channel, position, 4L * n).asFloatBuffer().get(scores, from, n);
+                position += 4L * n;
+                from += n;
+            }
+            long[] timestamps;
+            if (timed) {
+                timestamps = readLongs(channel, position, lengths[3], count, encodings[3]);
+            } else {
+                timestamps = new long[count];
+                Arrays.fill(timestamps, RatingColumns.NO_TIMESTAMP);
+            }
+            return new RatingColumns(users, items, scores, timestamps, count);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read binary rating file:" + readFilePath, e);
+        }
+    }
+
+    /**
+     * Description: 列字节数是否与count条记录相符: 定长列恰为 width*count, varint列每条占1到10字节
+     */
+    private static boolean validColumn(long length, int count, byte encoding, int width) {
+        if (encoding == RAW) {
+            return length == (long) width * count;
+        }
+        return encoding == DELTA_VARINT && length >= count && length <= 10L * count;
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long position, long length) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    private static void ensure(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush(channel, buffer);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static void writeInts(FileChannel channel, ByteBuffer buffer, int[] values, int count, byte encoding) throws IOException {
+        long previous = 0;
+        for (int k = 0; k < count; k++) {
+            if (encoding == DELTA_VARINT) {
+                ensure(channel, buffer, 10);
+                putVarint(buffer, zigzag(values[k] - previous));
+                previous = values[k];
+            } else {
+                ensure(channel, buffer, 4);
+                buffer.putInt(values[k]);
+            }
+        }
+        flush(channel, buffer);
+    }
+
+    private static void writeLongs(FileChannel channel, ByteBuffer buffer, long[] values, int count, byte encoding) throws IOException {
+        long previous = 0;
+        for (int k = 0; k < count; k++) {
+            if (encoding == DELTA_VARINT) {
+                ensure(channel, buffer, 10);
+                putVarint(buffer, zigzag(values[k] - previous));
+                previous = values[k];
+            } else {
+                ensure(channel, buffer, 8);
+                buffer.putLong(values[k]);
+            }
+        }
+        flush(channel, buffer);
+    }
+
+    private static int[] readInts(FileChannel channel, long position, long length, int count, byte encoding) throws IOException {
+        int[] values = new int[count];
+        if (encoding == RAW) {
+            for (int from = 0; from < count; ) {
+                int n = Math.min(count - from, WINDOW / 4);
+                map(channel, position, 4L * n).asIntBuffer().get(values, from, n);
+                position += 4L * n;
+                from += n;
+            }
+            return values;
+        }
+        checkEncoding(encoding);
+        VarintReader reader = new VarintReader(channel, position, length);
+        long previous = 0;
+        for (int k = 0; k < count; k++) {
+            previous += unzigzag(reader.next());
+            values[k] = (int) previous;
+        }
+        return values;
+    }
+
+    private static long[] readLongs(FileChannel channel, long position, long length, int count, byte encoding) throws IOException {
+        long[] values = new long[count];
+        if (encoding == RAW) {
+            for (int from = 0; from < count; ) {
+                int n = Math.min(count - from, WINDOW / 8);
+                map(channel, position, 8L * n).asLongBuffer().get(values, from, n);
+                position += 8L * n;
+                from += n;
+            }
+            return values;
+        }
+        checkEncoding(encoding);
+        VarintReader reader = new VarintReader(channel, position, length);
+        long previous = 0;
+        for (int k = 0; k < count; k++) {
+            previous += unzigzag(reader.next());
+            values[k] = previous;
+        }
+        return values;
+    }
+
+    private static void checkEncoding(byte encoding) {
+        if (encoding != DELTA_VARINT) {
+            throw new IllegalArgumentException("Unknown column encoding:" + encoding);
+        }
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void putVarint(ByteBuffer buffer, long v) {
+        while ((v & ~0x7FL) != 0) {
+            buffer.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buffer.put((byte) v);
+    }
+
+    private static int varintSize(long v) {
+        int n = 1;
+        while ((v & ~0x7FL) != 0) {
+            v >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    private static long varintLength(int[] values, int count) {
+        long length = 0;
+        long previous = 0;
+        for (int k = 0; k < count; k++) {
+            length += varintSize(zigzag(values[k] - previous));
+            previous = values[k];
+        }
+        return length;
+    }
+
+    private static long varintLength(long[] values, int count) {
+        long length = 0;
+        long previous = 0;
+        for (int k = 0; k < count; k++) {
+            length += varintSize(zigzag(values[k] - previous));
+            previous = values[k];
+        }
+        return length;
+    }
+
+    /**
+     * Description: 按窗口映射压缩列, 剩余不足一个varint时从当前位置重新映射
+     */
+    private static class VarintReader {
+        private final FileChannel channel;
+        private final long end;
+        private long position;
+        private MappedByteBuffer buffer;
+
+        VarintReader(FileChannel channel, long position, long length) throws IOException {
+            this.channel = channel;
+            this.position = position;
+            this.end = position + length;
+            this.buffer = map(channel, position, Math.min(WINDOW, length));
+        }
+
+        long next() throws IOException {
+            if (buffer.remaining() < 10 && position + buffer.position() < end
+                    && position + buffer.limit() < end) {
+                position += buffer.position();
+                buffer = map(channel, position, Math.min(WINDOW, end - position));
+            }
+            long v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get();
+                v |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return v;
+        }
+    }
+}
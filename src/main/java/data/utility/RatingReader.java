@@ -0,0 +1,320 @@
+package data.utility;
+
+import core.parallel.ParallelFor;
+import entity.RatingColumns;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: data.utility
+ */
+public class RatingReader {
+    private static final long MAX_CHUNK = 1L << 30; //单个映射区间的上限, MappedByteBuffer 最多 2G
+    private static final int MAX_FIELDS = 4;
+    private static final double[] POW10 = new double[23];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    /**
+     * Description: 单线程读取评分文件
+     *
+     * @param filePath  数据文件路径
+     * @param separator 分隔符(按字面匹配, 如 "\t", "::", ",")
+     * @return 评分列
+     */
+    public static RatingColumns read(String filePath, String separator) {
+        return read(filePath, separator, 1);
+    }
+
+    /**
+     * Description: 内存映射读取评分文件, 直接从字节解析数字, 不创建String.
+     * 每行为 user sep item [sep score [sep timestamp]], 两列时评分为1.0; 列数不符或前三列不是数字的行(如表头)被跳过,
+     * 时间戳不是整数(如 writeTimedRatings 写出的 "null")时保留评分, 时间戳记为 NO_TIMESTAMP.
+     * threads>1 时文件按换行切成若干段并行解析, 结果按文件顺序拼接, 与单线程一致
+     *
+     * @param filePath  数据文件路径
+     * @param separator 分隔符(按字面匹配, 如 "\t", "::", ",")
+     * @param threads   解析线程数
+     * @return 评分列
+     * @throws UncheckedIOException 读取失败, 不返回不完整的数据
+     */
+    public static RatingColumns read(String filePath, String separator, int threads) {
+        File file = new File(filePath);
+        if (!file.exists()) {
+            throw new IllegalArgumentException("File doesn't exist:" + filePath);
+        }
+        final byte[] sep = separator.getBytes(StandardCharsets.UTF_8);
+        if (sep.length == 0) {
+            throw new IllegalArgumentException("Empty separator.");
+        }
+
+        RatingColumns columns = new RatingColumns();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            int chunks = (int) Math.max(Math.max(threads, 1), (size + MAX_CHUNK - 1) / MAX_CHUNK);
+            final long[] bounds = split(channel, size, chunks);
+            final RatingColumns[] parts = new RatingColumns[bounds.length - 1];
+
+            ForkJoinPool pool = ParallelFor.createPool(threads);
+            try {
+                ParallelFor.forRange(pool, 0, parts.length, 1, (from, to) -> {
+                    for (int c = from; c < to; c++) {
+                        try {
+                            parts[c] = parseChunk(channel, bounds[c], bounds[c + 1], sep);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                });
+            } finally {
+                ParallelFor.shutdown(pool);
+            }
+
+            if (parts.length == 1) {
+                columns = parts[0];
+            } else {
+                int total = 0;
+                for (RatingColumns part : parts) {
+                    total += part.size();
+                }
+                columns = new RatingColumns(total);
+                for (RatingColumns part : parts) {
+                    columns.addAll(part);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read ratings:" + filePath, e);
+        } catch (UncheckedIOException e) { //并行解析中的失败
+            throw new UncheckedIOException("Failed to read ratings:" + filePath, e.getCause());
+        }
+        columns.trimToSize();
+        return columns;
+    }
+
+    /**
+     * Description: 把文件切成chunks段, 每段的起点都在行首
+     */
+    private static long[] split(FileChannel channel, long size, int chunks) throws IOException {
+        long[] bounds = new long[chunks + 1];
+        bounds[chunks] = size;
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        for (int c = 1; c < chunks; c++) {
+            long pos = Math.max(size / chunks * c, bounds[c - 1]);
+            bounds[c] = nextLineStart(channel, pos, size, buffer);
+        }
+        return bounds;
+    }
+
+    private static long nextLineStart(FileChannel channel, long pos, long size, ByteBuffer buffer) throws IOException {
+        if (pos == 0) {
+            return 0;
+        }
+        pos--; //若pos-1恰好是换行符, pos本身就是行首
+        while (pos < size) {
+            buffer.clear();
+            int n = channel.read(buffer, pos);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                if (buffer.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += n;
+        }
+        return size;
+    }
+
+    /**
+     * Description: 解析 [start, end) 区间内的所有行
+     */
+    private static RatingColumns parseChunk(FileChannel channel, long start, long end, byte[] sep) throws IOException {
+        int n = (int) (end - start);
+        RatingColumns columns = new RatingColumns(Math.max(16, n / 24));
+        if (n == 0) {
+            return columns;
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, n);
+        LineParser parser = new LineParser(buffer, sep);
+        int pos = 0;
+        while (pos < n) {
+            int lineEnd = pos;
+            while (lineEnd < n && buffer.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            parser.parse(pos, lineEnd, columns);
+            pos = lineEnd + 1;
+        }
+        return columns;
+    }
+
+    /**
+     * Description: 单个分段的行解析器, 复用字段边界数组, 整个解析过程不分配对象
+     */
+    private static class LineParser {
+        private final ByteBuffer buffer;
+        private final byte[] sep;
+        private final int[] starts = new int[MAX_FIELDS + 1];
+        private final int[] ends = new int[MAX_FIELDS + 1];
+        private boolean valid;
+
+        LineParser(ByteBuffer buffer, byte[] sep) {
+            this.buffer = buffer;
+            this.sep = sep;
+        }
+
+        void parse(int start, int end, RatingColumns columns) {
+            if (end > start && buffer.get(end - 1) == '\r') {
+                end--;
+            }
+            int fields = 0;
+            int fieldStart = start;
+            int i = start;
+            while (i <= end - sep.length) {
+                if (matches(i)) {
+                    if (fields == MAX_FIELDS) {
+                        return;
+                    }
+                    starts[fields] = fieldStart;
+                    ends[fields++] = i;
+                    i += sep.length;
+                    fieldStart = i;
+                } else {
+                    i++;
+                }
+            }
+            if (fields == MAX_FIELDS) {
+                return;
+            }
+            starts[fields] = fieldStart;
+            ends[fields++] = end;
+            if (fields > 2 && ends[fields - 1] == starts[fields - 1]) {
+                fields--; //行尾多余的分隔符
+            }
+            if (fields < 2) {
+                return;
+            }
+
+            valid = true;
+            int userId = (int) parseLong(starts[0], ends[0]);
+            int itemId = (int) parseLong(starts[1], ends[1]);
+            double score = fields >= 3 ? parseDouble(starts[2], ends[2]) : 1.0;
+            if (!valid) {
+                return;
+            }
+            long timestamp = RatingColumns.NO_TIMESTAMP;
+            if (fields == 4) {
+                timestamp = parseLong(starts[3], ends[3]);
+                if (!valid) {
+                    timestamp = RatingColumns.NO_TIMESTAMP;
+                }
+            }
+            columns.add(userId, itemId, (float) score, timestamp);
+        }
+
+        private boolean matches(int i) {
+            for (int k = 0; k < sep.length; k++) {
+                if (buffer.get(i + k) != sep[k]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private long parseLong(int start, int end) {
+            while (start < end && buffer.get(start) == ' ') {
+                start++;
+            }
+            while (end > start && buffer.get(end - 1) == ' ') {
+                end--;
+            }
+            boolean negative = start < end && buffer.get(start) == '-';
+            if (negative || (start < end && buffer.get(start) == '+')) {
+                start++;
+            }
+            if (start == end || end - start > 18) {
+                valid = false;
+                return 0;
+            }
+            long v = 0;
+            for (int i = start; i < end; i++) {
+                int d = buffer.get(i) - '0';
+                if (d < 0 || d > 9) {
+                    valid = false;
+                    return 0;
+                }
+                v = v * 10 + d;
+            }
+            return negative ? -v : v;
+        }
+
+        /**
+         * Description: 快速路径处理 [-]digits[.digits], 有效数字不超过15位时 mantissa/10^k 与 Double.parseDouble 结果相同,
+         * 其它形式(指数、超长小数)退回 Double.parseDouble
+         */
+        private double parseDouble(int start, int end) {
+            while (start < end && buffer.get(start) == ' ') {
+                start++;
+            }
+            while (end > start && buffer.get(end - 1) == ' ') {
+                end--;
+            }
+            int i = start;
+            boolean negative = i < end && buffer.get(i) == '-';
+            if (negative || (i < end && buffer.get(i) == '+')) {
+                i++;
+            }
+            long mantissa = 0;
+            int digits = 0;
+            int fraction = -1;
+            for (; i < end; i++) {
+                byte c = buffer.get(i);
+                if (c >= '0' && c <= '9') {
+                    mantissa = mantissa * 10 + (c - '0');
+                    digits++;
+                    if (fraction >= 0) {
+                        fraction++;
+                    }
+                } else if (c == '.' && fraction < 0) {
+                    fraction = 0;
+                } else {
+                    break;
+                }
+            }
+            if (i == end && digits > 0 && digits <= 15) {
+                double v = fraction > 0 ? mantissa / POW10[fraction] : mantissa;
+                return negative ? -v : v;
+            }
+            byte[] bytes = new byte[end - start];
+            for (int k = 0; k < bytes.length; k++) {
+                bytes[k] = buffer.get(start + k);
+            }
+            try {
+                return Double.parseDouble(new String(bytes, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                valid = false;
+                return 0;
+            }
+        }
+    }
+}
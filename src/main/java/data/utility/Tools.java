@@ -2,8 +2,11 @@ package data.utility;
 
 import entity.Link;
 import entity.Rating;
+import entity.RatingColumns;
 import entity.RsTable;
 import entity.Tuple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 
 import java.io.*;
@@ -20,6 +23,8 @@ import java.util.concurrent.ConcurrentHashMap;
  * @package_name: data.utility
  */
 public class Tools {
+    final static Logger logger = LoggerFactory.getLogger(Tools.class);
+
     /**
      * Description:读取数据，将数据转化成Rating对象的List
      *
@@ -38,47 +43,91 @@ public class Tools {
      * @return List<Rating>对象
      */
     public static List<Rating> getRatings(String readFilePath, String separator) {
-        File file = new File(readFilePath);
-        if (!file.exists()) {
-            throw new IllegalArgumentException("File doesn't exist:" + readFilePath);
+        return RatingReader.read(readFilePath, separator).toRatings();
+    }
+
+    /**
+     * Description:读取数据为按列存放的评分, 不创建Rating对象, 大文件可多线程解析
+     *
+     * @param readFilePath 数据文件路径
+     * @param separator    数据内容分隔符
+     * @param threads      解析线程数
+     * @return 评分列
+     */
+    public static RatingColumns getRatingColumns(String readFilePath, String separator, int threads) {
+        return RatingReader.read(readFilePath, separator, threads);
+    }
+
+    /**
+     * Description:保存为二进制列式文件, 整数列做差值varint压缩
+     *
+     * @param ratings      评分数据列表
+     * @param saveFilePath 保存的数据路径
+     */
+    public static void writeBinaryRatings(List<Rating> ratings, String saveFilePath) {
+        writeBinaryRatings(RatingColumns.fromRatings(ratings), saveFilePath, true);
+    }
+
+    /**
+     * Description:保存为二进制列式文件
+     *
+     * @param columns      评分列
+     * @param saveFilePath 保存的数据路径
+     * @param compress     是否压缩整数列
+     */
+    public static void writeBinaryRatings(RatingColumns columns, String saveFilePath, boolean compress) {
+        if (columns == null) {
+            throw new NullPointerException();
         }
-        List<Rating> ratings = new ArrayList<>();
-        int count = 0;
-        try {
-            Scanner in = new Scanner(file);
-            while (in.hasNext()) {
-                count++;
-                if (count % 100000 == 0) {
-                    System.out.println("counts:" + count);
-                }
-                String str = in.nextLine();
-                String[] elements = str.split(separator);
-                if (elements.length == 3) {
-                    int userId = Integer.parseInt(elements[0]);
-                    int itemId = Integer.parseInt(elements[1]);
-                    double score = Double.parseDouble(elements[2]);
-                    Rating r = new Rating(userId, itemId, score);
-                    ratings.add(r);
-                } else if (elements.length == 4) {
-                    int userId = Integer.parseInt(elements[0]);
-                    int itemId = Integer.parseInt(elements[1]);
-                    double score = Double.parseDouble(elements[2]);
-                    Rating r = new Rating(userId, itemId, score, elements[3]);
-                    ratings.add(r);
-
-                } else if (elements.length == 2) {
-                    int userId = Integer.parseInt(elements[0]);
-                    int itemId = Integer.parseInt(elements[1]);
-                    Rating r = new Rating(userId, itemId, 1.0);
-                    ratings.add(r);
-                }
+        BinaryRatingFile.write(columns, saveFilePath, compress);
+    }
 
+    /**
+     * Description:读取二进制列式文件
+     *
+     * @param readFilePath 数据文件路径
+     * @return List<Rating>对象
+     */
+    public static List<Rating> getBinaryRatings(String readFilePath) {
+        return BinaryRatingFile.read(readFilePath).toRatings();
+    }
+
+    /**
+     * Description:读取二进制列式文件为评分列
+     *
+     * @param readFilePath 数据文件路径
+     * @return 评分列
+     */
+    public static RatingColumns getBinaryRatingColumns(String readFilePath) {
+        return BinaryRatingFile.read(readFilePath);
+    }
+
+    /**
+     * Description:读取文本数据, 同目录下有更新的 readFilePath.bin 时直接读二进制文件, 否则解析文本并写出 .bin 供下次使用.
+     * .bin 损坏或读取失败时退回解析文本并重写缓存; 缓存写失败不影响返回结果; 文本读取失败时直接抛出, 不写缓存
+     *
+     * @param readFilePath 数据文件路径
+     * @param separator    数据内容分隔符
+     * @return List<Rating>对象
+     * @throws UncheckedIOException 文本文件读取失败
+     */
+    public static List<Rating> getCachedRatings(String readFilePath, String separator) {
+        File text = new File(readFilePath);
+        File binary = new File(readFilePath + ".bin");
+        if (binary.exists() && binary.lastModified() >= text.lastModified()) {
+            try {
+                return getBinaryRatings(binary.getPath());
+            } catch (RuntimeException e) { //截断、损坏或版本不符的缓存
+                logger.warn("Ignoring binary rating cache " + binary.getPath(), e);
             }
-            in.close();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
         }
-        return ratings;
+        RatingColumns columns = RatingReader.read(readFilePath, separator); //读取失败时抛出, 不会写出缓存
+        try {
+            writeBinaryRatings(columns, binary.getPath(), true);
+        } catch (UncheckedIOException e) {
+            logger.warn("Failed to write binary rating cache " + binary.getPath(), e);
+        }
+        return columns.toRatings();
     }
 
     /**
@@ -452,6 +501,28 @@ public class Tools {
         return counter == 0;
     }
 
+    /**
+     * Description: 统计每个用户和每个商品的评分数, 超出范围的id忽略
+     *
+     * @param ratings 评分列表
+     * @param users   用户数
+     * @param items   商品数
+     * @return Tuple(每个用户的评分数, 每个商品的评分数)
+     */
+    public static Tuple<int[], int[]> getRatingCounts(List<Rating> ratings, int users, int items) {
+        int[] userCounts = new int[users];
+        int[] itemCounts = new int[items];
+        for (Rating r : ratings) {
+            if (r.userId < users) {
+                userCounts[r.userId]++;
+            }
+            if (r.itemId < items) {
+                itemCounts[r.itemId]++;
+            }
+        }
+        return new Tuple<>(userCounts, itemCounts);
+    }
+
     /**
      * Description: 获取最大的userId和ItemId
      *
@@ -0,0 +1,189 @@
+package entity;
+
+import java.util.Arrays;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: entity
+ */
+public class IntDoubleMap {
+    private static final int MIN_CAPACITY = 4;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private int[] keys;
+    private double[] values;
+    private boolean[] used;
+    private int size = 0;
+    private int threshold;
+
+    /**
+     * Description: 开放寻址(线性探测)的 int->double 哈希表, 键值都不装箱. 非线程安全
+     */
+    public IntDoubleMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Description: 指定预期元素个数, 避免扩容
+     *
+     * @param expectedSize 预期元素个数
+     */
+    public IntDoubleMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new double[capacity];
+        used = new boolean[capacity];
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Description: 查找key所在的槽, 不存在时返回应插入的空槽
+     */
+    private int slot(int key) {
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (used[i] && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void rehash() {
+        int[] oldKeys = keys;
+        double[] oldValues = values;
+        boolean[] oldUsed = used;
+        allocate(oldKeys.length << 1);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                int j = slot(oldKeys[i]);
+                used[j] = true;
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    public boolean containsKey(int key) {
+        return used[slot(key)];
+    }
+
+    /**
+     * Description: 取值, 不存在时返回0.0 (与RsTable.get的默认值一致, 但不会插入)
+     */
+    public double get(int key) {
+        int i = slot(key);
+        return used[i] ? values[i] : 0.0;
+    }
+
+    public void put(int key, double value) {
+        int i = slot(key);
+        if (!used[i]) {
+            if (size >= threshold) {
+                rehash();
+                i = slot(key);
+            }
+            used[i] = true;
+            keys[i] = key;
+            size++;
+        }
+        values[i] = value;
+    }
+
+    /**
+     * Description: 累加, 不存在时视为0.0
+     *
+     * @param key   键
+     * @param delta 增量
+     * @return 累加后的值
+     */
+    public double add(int key, double delta) {
+        int i = slot(key);
+        if (!used[i]) {
+            if (size >= threshold) {
+                rehash();
+                i = slot(key);
+            }
+            used[i] = true;
+            keys[i] = key;
+            values[i] = 0.0;
+            size++;
+        }
+        return values[i] += delta;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    /**
+     * Description: 所有键, 顺序为哈希槽顺序
+     */
+    public int[] keys() {
+        int[] result = new int[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i]) {
+                result[n++] = keys[i];
+            }
+        }
+        return result;
+    }
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Description: 原始类型迭代器, 用法 while (c.next()) { c.key(); c.value(); }
+     */
+    public class Cursor {
+        private int index = -1;
+
+        public boolean next() {
+            while (++index < keys.length) {
+                if (used[index]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public int key() {
+            return keys[index];
+        }
+
+        public double value() {
+            return values[index];
+        }
+
+        public void setValue(double value) {
+            values[index] = value;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package entity;
+
+import java.util.Arrays;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: entity
+ */
+public class IntDoubleTable {
+    private static final int MIN_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private int[] mainKeys;
+    private IntDoubleMap[] rows; //null 表示空槽
+    private int size = 0;
+    private int threshold;
+
+    private IntDoubleMap subKeyAll = new IntDoubleMap(); //作为集合使用, 记录出现过的subKey
+    private int[] subKeyOrder = new int[MIN_CAPACITY];   //subKey 第一次出现的顺序
+    private int subKeyCount = 0;
+
+    /**
+     * Description: RsTable 的原始类型版本, int->(int->double) 两级开放寻址哈希表,
+     * 每个单元只占一个 int 键和一个 double 值, 累加时没有装箱. 非线程安全
+     */
+    public IntDoubleTable() {
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        mainKeys = new int[capacity];
+        rows = new IntDoubleMap[capacity];
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int slot(int mainKey) {
+        int mask = mainKeys.length - 1;
+        int i = mix(mainKey) & mask;
+        while (rows[i] != null && mainKeys[i] != mainKey) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void rehash() {
+        int[] oldKeys = mainKeys;
+        IntDoubleMap[] oldRows = rows;
+        allocate(oldKeys.length << 1);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldRows[i] != null) {
+                int j = slot(oldKeys[i]);
+                mainKeys[j] = oldKeys[i];
+                rows[j] = oldRows[i];
+            }
+        }
+    }
+
+    /**
+     * Description: 获取mainKey对应的子表, 不存在时创建
+     */
+    private IntDoubleMap row(int mainKey) {
+        int i = slot(mainKey);
+        if (rows[i] == null) {
+            if (size >= threshold) {
+                rehash();
+                i = slot(mainKey);
+            }
+            mainKeys[i] = mainKey;
+            rows[i] = new IntDoubleMap();
+            size++;
+        }
+        return rows[i];
+    }
+
+    private void registerSubKey(int subKey) {
+        if (!subKeyAll.containsKey(subKey)) {
+            subKeyAll.put(subKey, subKeyCount);
+            if (subKeyCount == subKeyOrder.length) {
+                subKeyOrder = Arrays.copyOf(subKeyOrder, subKeyCount << 1);
+            }
+            subKeyOrder[subKeyCount++] = subKey;
+        }
+    }
+
+    public boolean containsMainKey(int mainKey) {
+        return rows[slot(mainKey)] != null;
+    }
+
+    public boolean containsKey(int mainKey, int subKey) {
+        IntDoubleMap row = rows[slot(mainKey)];
+        return row != null && row.containsKey(subKey);
+    }
+
+    public void put(int mainKey, int subKey, double value) {
+        row(mainKey).put(subKey, value);
+        registerSubKey(subKey);
+    }
+
+    /**
+     * Description: 整行放入(替换mainKey原有的子表), 用于并行按行构造后的汇总, 子表之后归本表所有
+     *
+     * @param mainKey 主键
+     * @param row     子表
+     */
+    public void putRow(int mainKey, IntDoubleMap row) {
+        int i = slot(mainKey);
+        if (rows[i] == null) {
+            if (size >= threshold) {
+                rehash();
+                i = slot(mainKey);
+            }
+            mainKeys[i] = mainKey;
+            size++;
+        }
+        rows[i] = row;
+        IntDoubleMap.Cursor c = row.cursor();
+        while (c.next()) {
+            registerSubKey(c.key());
+        }
+    }
+
+    /**
+     * Description: 累加一个单元, 不存在时视为0.0
+     *
+     * @return 累加后的值
+     */
+    public double add(int mainKey, int subKey, double delta) {
+        double value = row(mainKey).add(subKey, delta);
+        registerSubKey(subKey);
+        return value;
+    }
+
+    /**
+     * Description: 获取mainKey对应的子表
+     *
+     * @return 子表, 不存在时返回null
+     */
+    public IntDoubleMap get(int mainKey) {
+        return rows[slot(mainKey)];
+    }
+
+    /**
+     * Description: 获取单元的值, 不存在时返回0.0
+     */
+    public double get(int mainKey, int subKey) {
+        IntDoubleMap row = rows[slot(mainKey)];
+        return row == null ? 0.0 : row.get(subKey);
+    }
+
+    public int[] keys() {
+        int[] result = new int[size];
+        int n = 0;
+        for (int i = 0; i < mainKeys.length; i++) {
+            if (rows[i] != null) {
+                result[n++] = mainKeys[i];
+            }
+        }
+        return result;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Description: 所有出现过的subKey, 按第一次出现的顺序排列
+     */
+    public int[] getSubKeyList() {
+        return Arrays.copyOf(subKeyOrder, subKeyCount);
+    }
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Description: 遍历所有单元的原始类型迭代器, 用法 while (c.next()) { c.mainKey(); c.subKey(); c.value(); }
+     */
+    public class Cursor {
+        private int index = -1;
+        private IntDoubleMap.Cursor sub = null;
+
+        public boolean next() {
+            while (sub == null || !sub.next()) {
+                do {
+                    if (++index >= mainKeys.length) {
+                        return false;
+                    }
+                } while (rows[index] == null);
+                sub = rows[index].cursor();
+            }
+            return true;
+        }
+
+        public int mainKey() {
+            return mainKeys[index];
+        }
+
+        public int subKey() {
+            return sub.key();
+        }
+
+        public double value() {
+            return sub.value();
+        }
+    }
+}
@@ -31,7 +31,7 @@ public class Link implements Comparable<Link> {
     @Override
     public int compareTo(Link o) {
         //降序排序
-        return this.weight > o.weight ? -1 : 1;
+        return Double.compare(o.weight, this.weight);
     }
 }
 
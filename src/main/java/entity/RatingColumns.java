@@ -0,0 +1,175 @@
+package entity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: entity
+ */
+public class RatingColumns {
+    public static final long NO_TIMESTAMP = Long.MIN_VALUE; //该行没有时间戳
+
+    public int[] users;       //用户id
+    public int[] items;       //商品id
+    public float[] scores;    //评分
+    public long[] timestamps; //时间戳, 没有时为NO_TIMESTAMP
+    private int size = 0;
+
+    /**
+     * Description: 按列存放的评分数据, 每条评分只占 4+4+4+8 字节, 没有对象头和装箱
+     */
+    public RatingColumns() {
+        this(16);
+    }
+
+    public RatingColumns(int capacity) {
+        capacity = Math.max(capacity, 1);
+        users = new int[capacity];
+        items = new int[capacity];
+        scores = new float[capacity];
+        timestamps = new long[capacity];
+    }
+
+    /**
+     * Description: 直接使用给定的列数组(不拷贝)
+     */
+    public RatingColumns(int[] users, int[] items, float[] scores, long[] timestamps, int size) {
+        if (users.length < size || items.length < size || scores.length < size || timestamps.length < size) {
+            throw new IllegalArgumentException("Column shorter than size " + size);
+        }
+        this.users = users;
+        this.items = items;
+        this.scores = scores;
+        this.timestamps = timestamps;
+        this.size = size;
+    }
+
+    /**
+     * Description: 由评分列表构造, 时间戳不是整数时记为NO_TIMESTAMP
+     */
+    public static RatingColumns fromRatings(List<Rating> ratings) {
+        RatingColumns columns = new RatingColumns(ratings.size());
+        for (Rating r : ratings) {
+            long timestamp = NO_TIMESTAMP;
+            if (r.timestamp != null) {
+                try {
+                    timestamp = Long.parseLong(r.timestamp.trim());
+                } catch (NumberFormatException e) {
+                    timestamp = NO_TIMESTAMP;
+                }
+            }
+            columns.add(r.userId, r.itemId, (float) r.score, timestamp);
+        }
+        return columns;
+    }
+
+    /**
+     * Description: 是否有任意一条评分带时间戳
+     */
+    public boolean hasTimestamps() {
+        for (int k = 0; k < size; k++) {
+            if (timestamps[k] != NO_TIMESTAMP) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > users.length) {
+            int newCapacity = Math.max(capacity, users.length + (users.length >> 1));
+            users = Arrays.copyOf(users, newCapacity);
+            items = Arrays.copyOf(items, newCapacity);
+            scores = Arrays.copyOf(scores, newCapacity);
+            timestamps = Arrays.copyOf(timestamps, newCapacity);
+        }
+    }
+
+    public void add(int userId, int itemId, float score, long timestamp) {
+        ensureCapacity(size + 1);
+        users[size] = userId;
+        items[size] = itemId;
+        scores[size] = score;
+        timestamps[size] = timestamp;
+        size++;
+    }
+
+    /**
+     * Description: 追加另一组评分
+     */
+    public void addAll(RatingColumns other) {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.users, 0, users, size, other.size);
+        System.arraycopy(other.items, 0, items, size, other.size);
+        System.arraycopy(other.scores, 0, scores, size, other.size);
+        System.arraycopy(other.timestamps, 0, timestamps, size, other.size);
+        size += other.size;
+    }
+
+    /**
+     * Description: 释放多余的容量
+     */
+    public void trimToSize() {
+        if (users.length != size) {
+            users = Arrays.copyOf(users, size);
+            items = Arrays.copyOf(items, size);
+            scores = Arrays.copyOf(scores, size);
+            timestamps = Arrays.copyOf(timestamps, size);
+        }
+    }
+
+    public int getMaxUserId() {
+        int max = -1;
+        for (int k = 0; k < size; k++) {
+            max = Math.max(max, users[k]);
+        }
+        return max;
+    }
+
+    public int getMaxItemId() {
+        int max = -1;
+        for (int k = 0; k < size; k++) {
+            max = Math.max(max, items[k]);
+        }
+        return max;
+    }
+
+    /**
+     * Description: 转为评分列表, 有时间戳的评分保留时间戳字符串
+     *
+     * @return 评分列表
+     */
+    public List<Rating> toRatings() {
+        List<Rating> ratings = new ArrayList<>(size);
+        for (int k = 0; k < size; k++) {
+            if (timestamps[k] == NO_TIMESTAMP) {
+                ratings.add(new Rating(users[k], items[k], scores[k]));
+            } else {
+                ratings.add(new Rating(users[k], items[k], scores[k], Long.toString(timestamps[k])));
+            }
+        }
+        return ratings;
+    }
+
+    /**
+     * Description: 直接构造按用户存储的稀疏矩阵, 行列数取最大id+1
+     */
+    public SparseRatingMatrix toSparseMatrix() {
+        return toSparseMatrix(getMaxUserId() + 1, getMaxItemId() + 1);
+    }
+
+    public SparseRatingMatrix toSparseMatrix(int users, int items) {
+        return SparseRatingMatrix.fromCoordinates(this.users, this.items, scores, size, users, items);
+    }
+}
@@ -65,7 +65,6 @@ public class RsTable {
 
         ConcurrentHashMap<Object, Object> itemTable = main.get(mainKey);
         itemTable.put(subKey, value);
-        main.put(subKey, itemTable);
 
         if (!subKeyAll.containsKey(subKey)) {
             subKeyAll.put(subKey, subKeyAll.size() + 1);
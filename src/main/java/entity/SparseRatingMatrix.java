@@ -0,0 +1,253 @@
+package entity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: entity
+ */
+public class SparseRatingMatrix {
+    public final int rows;      //行数 (按用户存储时为用户数)
+    public final int columns;   //列数 (按用户存储时为商品数)
+    public final int[] offsets; //第row行的数据位于 [offsets[row], offsets[row+1])
+    public final int[] indices; //列下标, 每行内升序
+    public final float[] values;//评分
+
+    private SparseRatingMatrix transposed = null;
+
+    /**
+     * Description: 压缩稀疏行(CSR)评分矩阵, 每行的列下标需要升序排列
+     *
+     * @param rows    行数
+     * @param columns 列数
+     * @param offsets 行偏移, 长度为rows+1
+     * @param indices 列下标
+     * @param values  评分
+     */
+    public SparseRatingMatrix(int rows, int columns, int[] offsets, int[] indices, float[] values) {
+        if (offsets.length != rows + 1 || indices.length != values.length || offsets[rows] != indices.length) {
+            throw new IllegalArgumentException("Inconsistent sparse matrix arrays.");
+        }
+        this.rows = rows;
+        this.columns = columns;
+        this.offsets = offsets;
+        this.indices = indices;
+        this.values = values;
+    }
+
+    /**
+     * Description: 由评分列表构造按用户存储的矩阵, 行列数取最大id+1
+     *
+     * @param ratings 评分列表
+     * @return 用户-商品矩阵
+     */
+    public static SparseRatingMatrix fromRatings(List<Rating> ratings) {
+        int maxUserId = -1;
+        int maxItemId = -1;
+        for (Rating r : ratings) {
+            maxUserId = Math.max(maxUserId, r.userId);
+            maxItemId = Math.max(maxItemId, r.itemId);
+        }
+        return fromRatings(ratings, maxUserId + 1, maxItemId + 1);
+    }
+
+    /**
+     * Description: 由评分列表构造按用户存储的矩阵
+     *
+     * @param ratings 评分列表
+     * @param users   用户数
+     * @param items   商品数
+     * @return 用户-商品矩阵
+     */
+    public static SparseRatingMatrix fromRatings(List<Rating> ratings, int users, int items) {
+        int n = ratings.size();
+        int[] userIds = new int[n];
+        int[] itemIds = new int[n];
+        float[] scores = new float[n];
+        int k = 0;
+        for (Rating r : ratings) {
+            userIds[k] = r.userId;
+            itemIds[k] = r.itemId;
+            scores[k] = (float) r.score;
+            k++;
+        }
+        return fromCoordinates(userIds, itemIds, scores, n, users, items);
+    }
+
+    /**
+     * Description: 由坐标数组构造按行存储的矩阵, 两次计数排序, 保证每行列下标有序
+     *
+     * @param rowIds    行下标
+     * @param columnIds 列下标
+     * @param scores    评分
+     * @param n         有效长度
+     * @param rows      行数
+     * @param columns   列数
+     * @return 稀疏矩阵
+     */
+    public static SparseRatingMatrix fromCoordinates(int[] rowIds, int[] columnIds, float[] scores, int n
+            , int rows, int columns) {
+        for (int k = 0; k < n; k++) {
+            if (rowIds[k] < 0 || rowIds[k] >= rows || columnIds[k] < 0 || columnIds[k] >= columns) {
+                throw new IllegalArgumentException("Index out of range:" + rowIds[k] + "," + columnIds[k]);
+            }
+        }
+        //先按列分桶, 再转置回按行, 转置时按列顺序写入, 每行自然有序
+        int[] columnOffsets = new int[columns + 1];
+        for (int k = 0; k < n; k++) {
+            columnOffsets[columnIds[k] + 1]++;
+        }
+        for (int c = 0; c < columns; c++) {
+            columnOffsets[c + 1] += columnOffsets[c];
+        }
+        int[] fill = new int[columns];
+        int[] byColumnRows = new int[n];
+        float[] byColumnValues = new float[n];
+        for (int k = 0; k < n; k++) {
+            int c = columnIds[k];
+            int pos = columnOffsets[c] + fill[c]++;
+            byColumnRows[pos] = rowIds[k];
+            byColumnValues[pos] = scores[k];
+        }
+        SparseRatingMatrix byColumn = new SparseRatingMatrix(columns, rows, columnOffsets, byColumnRows, byColumnValues);
+        return byColumn.buildTranspose();
+    }
+
+    public int nnz() {
+        return indices.length;
+    }
+
+    public int rowStart(int row) {
+        return offsets[row];
+    }
+
+    public int rowEnd(int row) {
+        return offsets[row + 1];
+    }
+
+    public int rowSize(int row) {
+        return offsets[row + 1] - offsets[row];
+    }
+
+    /**
+     * Description: 每行的非零元个数
+     */
+    public int[] rowCounts() {
+        int[] counts = new int[rows];
+        for (int row = 0; row < rows; row++) {
+            counts[row] = offsets[row + 1] - offsets[row];
+        }
+        return counts;
+    }
+
+    /**
+     * Description: 每列的非零元个数
+     */
+    public int[] columnCounts() {
+        int[] counts = new int[columns];
+        for (int column : indices) {
+            counts[column]++;
+        }
+        return counts;
+    }
+
+    /**
+     * Description: 二分查找(row, column)的位置
+     *
+     * @param row    行
+     * @param column 列
+     * @return 位置, 不存在时返回-1
+     */
+    public int indexOf(int row, int column) {
+        int low = offsets[row];
+        int high = offsets[row + 1] - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int c = indices[middle];
+            if (c < column) {
+                low = middle + 1;
+            } else if (c > column) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    public boolean contains(int row, int column) {
+        return row >= 0 && row < rows && indexOf(row, column) >= 0;
+    }
+
+    /**
+     * Description: 转置视图(按用户存储时即按商品存储), 只构造一次并缓存, 两者共享同一份转置关系
+     *
+     * @return 转置矩阵
+     */
+    public synchronized SparseRatingMatrix transpose() {
+        if (transposed == null) {
+            transposed = buildTranspose();
+            transposed.transposed = this;
+        }
+        return transposed;
+    }
+
+    private SparseRatingMatrix buildTranspose() {
+        int n = indices.length;
+        int[] tOffsets = new int[columns + 1];
+        for (int k = 0; k < n; k++) {
+            tOffsets[indices[k] + 1]++;
+        }
+        for (int c = 0; c < columns; c++) {
+            tOffsets[c + 1] += tOffsets[c];
+        }
+        int[] fill = new int[columns];
+        int[] tIndices = new int[n];
+        float[] tValues = new float[n];
+        for (int row = 0; row < rows; row++) {
+            for (int k = offsets[row]; k < offsets[row + 1]; k++) {
+                int c = indices[k];
+                int pos = tOffsets[c] + fill[c]++;
+                tIndices[pos] = row;
+                tValues[pos] = values[k];
+            }
+        }
+        return new SparseRatingMatrix(columns, rows, tOffsets, tIndices, tValues);
+    }
+
+    /**
+     * Description: 还原成评分列表(行为userId, 列为itemId)
+     *
+     * @return 评分列表
+     */
+    public List<Rating> toRatings() {
+        List<Rating> ratings = new ArrayList<>(indices.length);
+        for (int row = 0; row < rows; row++) {
+            for (int k = offsets[row]; k < offsets[row + 1]; k++) {
+                ratings.add(new Rating(row, indices[k], values[k]));
+            }
+        }
+        return ratings;
+    }
+
+    /**
+     * Description: 展开成 rows*columns 的稠密矩阵, 未评分处为0
+     *
+     * @return 稠密评分矩阵
+     */
+    public double[][] toDense() {
+        double[][] dense = new double[rows][columns];
+        for (int row = 0; row < rows; row++) {
+            for (int k = offsets[row]; k < offsets[row + 1]; k++) {
+                dense[row][indices[k]] = values[k];
+            }
+        }
+        return dense;
+    }
+}
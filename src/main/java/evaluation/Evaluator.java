@@ -0,0 +1,422 @@
+package evaluation;
+
+import core.parallel.ParallelFor;
+import core.recommend.TopNListener;
+import entity.Rating;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: evaluation
+ */
+public class Evaluator {
+    private static final int USER_CHUNK = 256; //每个部分和负责的用户数, 与线程数无关, 保证结果可复现
+
+    private final int threads;
+    private final int[] testOffsets;    //用户u的测试商品位于 [testOffsets[u], testOffsets[u+1])
+    private final int[] testItems;      //每个用户内按商品id升序
+    private final int[] testCounts;     //该(用户, 商品)在测试集中出现的次数
+    private final int testSize;         //测试集评分数
+    private final double[] popularity;  //log(1 + 商品在训练集中的评分数), 不在训练集中为NaN
+    private final int trainItems;       //训练集中的商品数
+
+    /**
+     * Description: 一个K的评价结果
+     */
+    public static class Result {
+        public final int K;
+        public final double precision;
+        public final double recall;
+        public final double coverage;
+        public final double popularity;
+        public final double map;
+        public final double ndcg;
+        public final double hitRate;
+        public final double mrr;
+
+        Result(int K, double precision, double recall, double coverage, double popularity, double map
+                , double ndcg, double hitRate, double mrr) {
+            this.K = K;
+            this.precision = precision;
+            this.recall = recall;
+            this.coverage = coverage;
+            this.popularity = popularity;
+            this.map = map;
+            this.ndcg = ndcg;
+            this.hitRate = hitRate;
+            this.mrr = mrr;
+        }
+    }
+
+    /**
+     * Description: 多个K的top-N评价. 构造时把测试集建成按用户的有序商品数组, 把训练集建成商品流行度数组, 每个数据集只建一次;
+     * 之后每次评价对推荐列表只遍历一遍, 同时得到所有K的 precision/recall/coverage/popularity/MAP/NDCG/HR/MRR.
+     * 各指标的定义与 Metrics.computePrecisionAndRecall/computeCoverageAndPopularity/computeMAP
+     * 对 Tools.getSubset(recommendations, K) 的结果一致, 只有求和顺序不同.
+     * NDCG/HR/MRR 与MAP一样在有测试集且有推荐的用户上平均, 相关性为0/1
+     *
+     * @param train   训练集
+     * @param test    测试集
+     * @param threads 线程数
+     */
+    public Evaluator(List<Rating> train, List<Rating> test, int threads) {
+        this.threads = threads;
+
+        int maxItemId = -1;
+        for (Rating r : train) {
+            maxItemId = Math.max(maxItemId, r.itemId);
+        }
+        int[] itemCounts = new int[maxItemId + 1];
+        for (Rating r : train) {
+            itemCounts[r.itemId]++;
+        }
+        this.popularity = new double[itemCounts.length];
+        int items = 0;
+        for (int itemId = 0; itemId < itemCounts.length; itemId++) {
+            if (itemCounts[itemId] > 0) {
+                popularity[itemId] = Math.log(1 + itemCounts[itemId]);
+                items++;
+            } else {
+                popularity[itemId] = Double.NaN;
+            }
+        }
+        this.trainItems = items;
+
+        int maxUserId = -1;
+        for (Rating r : test) {
+            maxUserId = Math.max(maxUserId, r.userId);
+        }
+        int[] offsets = new int[maxUserId + 2];
+        for (Rating r : test) {
+            offsets[r.userId + 1]++;
+        }
+        for (int u = 0; u <= maxUserId; u++) {
+            offsets[u + 1] += offsets[u];
+        }
+        int[] sorted = new int[test.size()];
+        int[] next = Arrays.copyOf(offsets, maxUserId + 1);
+        for (Rating r : test) {
+            sorted[next[r.userId]++] = r.itemId;
+        }
+        //每个用户内排序后合并重复的商品
+        int[] distinctOffsets = new int[maxUserId + 2];
+        int[] distinctItems = new int[sorted.length];
+        int[] distinctCounts = new int[sorted.length];
+        int size = 0;
+        for (int u = 0; u <= maxUserId; u++) {
+            Arrays.sort(sorted, offsets[u], offsets[u + 1]);
+            for (int k = offsets[u]; k < offsets[u + 1]; k++) {
+                if (size > distinctOffsets[u] && distinctItems[size - 1] == sorted[k]) {
+                    distinctCounts[size - 1]++;
+                } else {
+                    distinctItems[size] = sorted[k];
+                    distinctCounts[size++] = 1;
+                }
+            }
+            distinctOffsets[u + 1] = size;
+        }
+        this.testOffsets = distinctOffsets;
+        this.testItems = Arrays.copyOf(distinctItems, size);
+        this.testCounts = Arrays.copyOf(distinctCounts, size);
+        this.testSize = test.size();
+    }
+
+    /**
+     * Description: 评价推荐列表, 同一用户的推荐按出现的先后排名
+     *
+     * @param recommendations 推荐列表, 如 getRecommendations 的结果
+     * @param K               需要评价的推荐个数
+     * @return 与K一一对应的结果
+     */
+    public Result[] evaluate(List<Rating> recommendations, int[] K) {
+        int maxUserId = -1;
+        for (Rating r : recommendations) {
+            maxUserId = Math.max(maxUserId, r.userId);
+        }
+        int[] lengths = new int[maxUserId + 1];
+        int users = 0;
+        for (Rating r : recommendations) {
+            if (lengths[r.userId]++ == 0) {
+                users++;
+            }
+        }
+        //按用户第一次出现的顺序分组, 组内保持原有顺序
+        int[] userIds = new int[users];
+        int[] offsets = new int[users + 1];
+        int[] slot = new int[maxUserId + 1];
+        users = 0;
+        for (Rating r : recommendations) {
+            if (lengths[r.userId] > 0) {
+                userIds[users] = r.userId;
+                offsets[users + 1] = offsets[users] + lengths[r.userId];
+                slot[r.userId] = offsets[users];
+                lengths[r.userId] = 0;
+                users++;
+            }
+        }
+        int[] items = new int[recommendations.size()];
+        for (Rating r : recommendations) {
+            items[slot[r.userId]++] = r.itemId;
+        }
+        return evaluate(userIds, offsets, items, K);
+    }
+
+    /**
+     * Description: 评价按用户连续存放的推荐列表. 每个用户的推荐中不应有重复商品
+     *
+     * @param userIds 用户
+     * @param offsets 第u个用户的推荐位于 items[offsets[u], offsets[u+1]), 按排名从高到低
+     * @param items   推荐商品
+     * @param K       需要评价的推荐个数
+     * @return 与K一一对应的结果
+     */
+    public Result[] evaluate(final int[] userIds, final int[] offsets, final int[] items, final int[] K) {
+        final int users = userIds.length;
+        final int chunks = (users + USER_CHUNK - 1) / USER_CHUNK;
+        final Accumulator[] partials = new Accumulator[chunks];
+
+        ForkJoinPool pool = ParallelFor.createPool(threads);
+        try {
+            ParallelFor.forRange(pool, 0, chunks, 1, (from, to) -> {
+                for (int chunk = from; chunk < to; chunk++) {
+                    Accumulator partial = new Accumulator(K);
+                    int end = Math.min(users, (chunk + 1) * USER_CHUNK);
+                    for (int u = chunk * USER_CHUNK; u < end; u++) {
+                        partial.add(userIds[u], items, offsets[u], offsets[u + 1] - offsets[u]);
+                    }
+                    partials[chunk] = partial;
+                }
+            });
+        } finally {
+            ParallelFor.shutdown(pool);
+        }
+
+        Accumulator total = new Accumulator(K);
+        for (Accumulator partial : partials) {
+            total.merge(partial);
+        }
+
+        //覆盖率: 每个商品在所有用户中的最高排名, 排名小于K的商品即出现在前K个推荐中
+        int maxItemId = -1;
+        for (int itemId : items) {
+            maxItemId = Math.max(maxItemId, itemId);
+        }
+        int[] bestRank = new int[maxItemId + 1];
+        Arrays.fill(bestRank, Integer.MAX_VALUE);
+        for (int u = 0; u < users; u++) {
+            for (int k = offsets[u]; k < offsets[u + 1]; k++) {
+                bestRank[items[k]] = Math.min(bestRank[items[k]], k - offsets[u]);
+            }
+        }
+        return total.results(bestRank);
+    }
+
+    /**
+     * Description: 创建流式评价的接收器, 交给 TopNRecommender/BlockedTopNRecommender 的listener,
+     * 每个用户的推荐产生后即累加到各项指标中, 不需要保存所有用户的推荐列表
+     *
+     * @param K 需要评价的推荐个数
+     * @return 接收器
+     */
+    public Sink sink(int[] K) {
+        return new Sink(K);
+    }
+
+    /**
+     * Description: 流式评价的接收器, 只保存各项指标的累加值和每个商品的最高排名(用于覆盖率),
+     * 内存与用户数无关. 回调需要在同一个线程中, TopNRecommender 和 BlockedTopNRecommender 都满足
+     */
+    public class Sink implements TopNListener {
+        private final Accumulator total;
+        private int[] bestRank = new int[0];
+
+        private Sink(int[] K) {
+            this.total = new Accumulator(K);
+        }
+
+        @Override
+        public void accept(int userId, int[] items, double[] scores, int count) {
+            total.add(userId, items, 0, count);
+            for (int k = 0; k < count; k++) {
+                int itemId = items[k];
+                if (itemId >= bestRank.length) {
+                    int length = bestRank.length;
+                    bestRank = Arrays.copyOf(bestRank, Math.max(itemId + 1, 2 * length));
+                    Arrays.fill(bestRank, length, bestRank.length, Integer.MAX_VALUE);
+                }
+                bestRank[itemId] = Math.min(bestRank[itemId], k);
+            }
+        }
+
+        /**
+         * Description: 目前为止接收到的用户的评价结果
+         *
+         * @return 与K一一对应的结果
+         */
+        public Result[] results() {
+            return total.results(bestRank);
+        }
+    }
+
+    /**
+     * Description: 各项指标在若干用户上的累加值. 每个用户只遍历一次前maxK个推荐, 用前缀和同时得到所有K的值
+     */
+    private class Accumulator {
+        final int[] K;
+        final int maxK;
+        final double[] hits;             //命中的测试评分数
+        final double[] recommended;      //推荐数
+        final double[] popularity;       //流行度之和
+        final double[] averagePrecision; //AP之和
+        final double[] ndcg;             //NDCG之和
+        final double[] hitUsers;         //至少命中一个的用户数
+        final double[] reciprocalRank;   //第一个命中位置的倒数之和
+        double validUsers;               //有测试集且有推荐的用户数
+
+        final double[] discount;         //discount[i] = 1/log2(i+2)
+        final double[] idealPrefix;      //idealPrefix[n] 为n个相关商品的理想DCG
+        final double[] hitPrefix;
+        final int[] correctPrefix;
+        final double[] precisionPrefix;
+        final double[] dcgPrefix;
+        final double[] popularityPrefix;
+
+        Accumulator(int[] K) {
+            this.K = K;
+            int largest = 0;
+            for (int k : K) {
+                largest = Math.max(largest, k);
+            }
+            this.maxK = largest;
+            int T = K.length;
+            hits = new double[T];
+            recommended = new double[T];
+            popularity = new double[T];
+            averagePrecision = new double[T];
+            ndcg = new double[T];
+            hitUsers = new double[T];
+            reciprocalRank = new double[T];
+            discount = new double[maxK];
+            idealPrefix = new double[maxK + 1];
+            for (int i = 0; i < maxK; i++) {
+                discount[i] = 1.0 / (Math.log(i + 2) / Math.log(2));
+                idealPrefix[i + 1] = idealPrefix[i] + discount[i];
+            }
+            hitPrefix = new double[maxK + 1];
+            correctPrefix = new int[maxK + 1];
+            precisionPrefix = new double[maxK + 1];
+            dcgPrefix = new double[maxK + 1];
+            popularityPrefix = new double[maxK + 1];
+        }
+
+        /**
+         * Description: 累加一个用户的推荐 items[offset, offset+count), 按排名从高到低
+         */
+        void add(int userId, int[] items, int offset, int count) {
+            int length = Math.min(count, maxK);
+            int relevant = userId >= 0 && userId < testOffsets.length - 1
+                    ? testOffsets[userId + 1] - testOffsets[userId] : 0;
+            int correct = 0;
+            int firstHit = -1;
+            for (int i = 0; i < length; i++) {
+                int itemId = items[offset + i];
+                int hit = relevant > 0 ? testCount(userId, itemId) : 0;
+                if (hit > 0) {
+                    correct++;
+                    if (firstHit < 0) {
+                        firstHit = i;
+                    }
+                }
+                hitPrefix[i + 1] = hitPrefix[i] + hit;
+                correctPrefix[i + 1] = correct;
+                precisionPrefix[i + 1] = precisionPrefix[i] + (hit > 0 ? correct * 1.0 / (i + 1) : 0);
+                dcgPrefix[i + 1] = dcgPrefix[i] + (hit > 0 ? discount[i] : 0);
+                double p = itemId >= 0 && itemId < Evaluator.this.popularity.length
+                        ? Evaluator.this.popularity[itemId] : Double.NaN;
+                popularityPrefix[i + 1] = popularityPrefix[i] + (Double.isNaN(p) ? 0 : p);
+            }
+            boolean valid = relevant > 0 && count > 0;
+            if (valid) {
+                validUsers++;
+            }
+            for (int t = 0; t < K.length; t++) {
+                int L = Math.min(Math.max(K[t], 0), length);
+                hits[t] += hitPrefix[L];
+                recommended[t] += L;
+                popularity[t] += popularityPrefix[L];
+                if (valid && correctPrefix[L] > 0) {
+                    averagePrecision[t] += precisionPrefix[L] / L;
+                    ndcg[t] += dcgPrefix[L] / idealPrefix[Math.min(K[t], relevant)];
+                    hitUsers[t]++;
+                    reciprocalRank[t] += 1.0 / (firstHit + 1);
+                }
+            }
+        }
+
+        void merge(Accumulator other) {
+            for (int t = 0; t < K.length; t++) {
+                hits[t] += other.hits[t];
+                recommended[t] += other.recommended[t];
+                popularity[t] += other.popularity[t];
+                averagePrecision[t] += other.averagePrecision[t];
+                ndcg[t] += other.ndcg[t];
+                hitUsers[t] += other.hitUsers[t];
+                reciprocalRank[t] += other.reciprocalRank[t];
+            }
+            validUsers += other.validUsers;
+        }
+
+        /**
+         * Description: 由累加值得到结果
+         *
+         * @param bestRank 每个商品在所有用户中的最高排名(从0开始), 未被推荐为Integer.MAX_VALUE
+         */
+        Result[] results(int[] bestRank) {
+            int[] rankCounts = new int[maxK + 1];
+            for (int rank : bestRank) {
+                if (rank < maxK) {
+                    rankCounts[rank + 1]++;
+                }
+            }
+            for (int k = 0; k < maxK; k++) {
+                rankCounts[k + 1] += rankCounts[k];
+            }
+
+            Result[] results = new Result[K.length];
+            for (int t = 0; t < K.length; t++) {
+                double precision = recommended[t] > 0 ? hits[t] / recommended[t] : 0.0;
+                double recall = testSize > 0 ? hits[t] / testSize : 0.0;
+                double coverage = trainItems > 0 ? rankCounts[Math.max(K[t], 0)] * 1.0 / trainItems : 0.0;
+                double averagePopularity = popularity[t] / recommended[t];
+                double map = 0.0;
+                double meanNdcg = 0.0;
+                double hitRate = 0.0;
+                double mrr = 0.0;
+                if (validUsers > 0) {
+                    map = averagePrecision[t] / validUsers;
+                    meanNdcg = ndcg[t] / validUsers;
+                    hitRate = hitUsers[t] / validUsers;
+                    mrr = reciprocalRank[t] / validUsers;
+                }
+                results[t] = new Result(K[t], precision, recall, coverage, averagePopularity, map, meanNdcg, hitRate, mrr);
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Description: (用户, 商品)在测试集中出现的次数, 二分查找
+     */
+    private int testCount(int userId, int itemId) {
+        int k = Arrays.binarySearch(testItems, testOffsets[userId], testOffsets[userId + 1], itemId);
+        return k >= 0 ? testCounts[k] : 0;
+    }
+}
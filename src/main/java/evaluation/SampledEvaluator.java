@@ -0,0 +1,260 @@
+package evaluation;
+
+import core.parallel.ParallelFor;
+import core.recommend.ItemScorer;
+import entity.Rating;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: evaluation
+ */
+public class SampledEvaluator {
+    private static final int USER_CHUNK = 256; //每个部分和负责的用户数, 与线程数无关, 保证结果可复现
+
+    private final int threads;
+    private final int[] userIds;           //有测试集的用户, 按id升序
+    private final int[] positiveOffsets;   //第u个用户的测试商品位于 positives[positiveOffsets[u], positiveOffsets[u+1])
+    private final int[] positives;
+    private final int[] negativeOffsets;   //第u个用户的采样负例位于 negatives[negativeOffsets[u], negativeOffsets[u+1])
+    private final int[] negatives;
+    private final int maxNegatives;
+
+    /**
+     * Description: 一个K的评价结果
+     */
+    public static class Result {
+        public final int K;
+        public final double hitRate;
+        public final double ndcg;
+
+        Result(int K, double hitRate, double ndcg) {
+            this.K = K;
+            this.hitRate = hitRate;
+            this.ndcg = ndcg;
+        }
+    }
+
+    /**
+     * Description: 采样负例的快速验证. 构造时为每个有测试集的用户从训练集的商品中, 不放回地采样negatives个
+     * 该用户在训练集和测试集中都没有评分的商品, 只采样一次并存为数组. 评价时每个测试商品只与该用户的负例比较,
+     * 排名为分数不低于它的负例个数, 每个用户的打分量为 测试数+negatives, 与商品总数无关.
+     * 结果只用于每个epoch的趋势监控, 数值与全量top-N评价不可直接比较
+     *
+     * @param train     训练集
+     * @param test      测试集
+     * @param negatives 每个用户的负例数, 如100
+     * @param seed      随机种子
+     * @param threads   线程数
+     */
+    public SampledEvaluator(List<Rating> train, List<Rating> test, int negatives, long seed, int threads) {
+        this.threads = threads;
+        this.maxNegatives = Math.max(negatives, 0);
+
+        int maxUserId = -1;
+        int maxItemId = -1;
+        for (Rating r : train) {
+            maxUserId = Math.max(maxUserId, r.userId);
+            maxItemId = Math.max(maxItemId, r.itemId);
+        }
+        for (Rating r : test) {
+            maxUserId = Math.max(maxUserId, r.userId);
+        }
+        //候选负例: 训练集中出现过的商品
+        boolean[] inTrain = new boolean[maxItemId + 1];
+        int candidateCount = 0;
+        for (Rating r : train) {
+            if (!inTrain[r.itemId]) {
+                inTrain[r.itemId] = true;
+                candidateCount++;
+            }
+        }
+        int[] candidates = new int[candidateCount];
+        candidateCount = 0;
+        for (int itemId = 0; itemId <= maxItemId; itemId++) {
+            if (inTrain[itemId]) {
+                candidates[candidateCount++] = itemId;
+            }
+        }
+
+        int[] trainOffsets = groupOffsets(train, maxUserId);
+        int[] trainItems = groupItems(train, trainOffsets);
+        int[] testOffsets = groupOffsets(test, maxUserId);
+        int[] testItems = groupItems(test, testOffsets);
+
+        int users = 0;
+        for (int userId = 0; userId <= maxUserId; userId++) {
+            if (testOffsets[userId + 1] > testOffsets[userId]) {
+                users++;
+            }
+        }
+        this.userIds = new int[users];
+        this.positiveOffsets = new int[users + 1];
+        this.positives = new int[test.size()];
+        this.negativeOffsets = new int[users + 1];
+        int[] sampled = new int[users * maxNegatives];
+
+        //stamp[itemId] == 当前用户序号+1 表示该用户评过分或已被采样
+        int[] stamp = new int[maxItemId + 1];
+        Random random = new Random(seed);
+        int u = 0;
+        for (int userId = 0; userId <= maxUserId; userId++) {
+            int from = testOffsets[userId];
+            int to = testOffsets[userId + 1];
+            if (from == to) {
+                continue;
+            }
+            userIds[u] = userId;
+            System.arraycopy(testItems, from, positives, positiveOffsets[u], to - from);
+            positiveOffsets[u + 1] = positiveOffsets[u] + to - from;
+
+            int mark = u + 1;
+            int excluded = 0;
+            for (int k = trainOffsets[userId]; k < trainOffsets[userId + 1]; k++) {
+                if (stamp[trainItems[k]] != mark) {
+                    stamp[trainItems[k]] = mark;
+                    excluded++;
+                }
+            }
+            for (int k = from; k < to; k++) {
+                int itemId = testItems[k];
+                if (itemId <= maxItemId && inTrain[itemId] && stamp[itemId] != mark) {
+                    stamp[itemId] = mark;
+                    excluded++;
+                }
+            }
+            int base = negativeOffsets[u];
+            int count = 0;
+            int available = candidates.length - excluded;
+            if (available <= maxNegatives) {
+                //可选的商品不多于所需负例数, 全部作为负例
+                for (int itemId : candidates) {
+                    if (stamp[itemId] != mark) {
+                        sampled[base + count++] = itemId;
+                    }
+                }
+            } else {
+                while (count < maxNegatives) {
+                    int itemId = candidates[random.nextInt(candidates.length)];
+                    if (stamp[itemId] != mark) {
+                        stamp[itemId] = mark;
+                        sampled[base + count++] = itemId;
+                    }
+                }
+            }
+            negativeOffsets[u + 1] = base + count;
+            u++;
+        }
+        this.negatives = Arrays.copyOf(sampled, negativeOffsets[users]);
+    }
+
+    /**
+     * Description: 评分按用户分组后的行偏移
+     */
+    private static int[] groupOffsets(List<Rating> ratings, int maxUserId) {
+        int[] offsets = new int[maxUserId + 2];
+        for (Rating r : ratings) {
+            offsets[r.userId + 1]++;
+        }
+        for (int userId = 0; userId <= maxUserId; userId++) {
+            offsets[userId + 1] += offsets[userId];
+        }
+        return offsets;
+    }
+
+    /**
+     * Description: 评分按用户分组后的商品, 组内保持原有顺序
+     */
+    private static int[] groupItems(List<Rating> ratings, int[] offsets) {
+        int[] next = Arrays.copyOf(offsets, offsets.length - 1);
+        int[] items = new int[ratings.size()];
+        for (Rating r : ratings) {
+            items[next[r.userId]++] = r.itemId;
+        }
+        return items;
+    }
+
+    /**
+     * Description: 计算 HR@K 和 NDCG@K, 在所有测试评分上平均. 用户按块并行, 打分模型需要可以并发调用
+     *
+     * @param scorer 打分模型
+     * @param K      需要评价的推荐个数
+     * @return 与K一一对应的结果
+     */
+    public Result[] evaluate(final ItemScorer scorer, final int[] K) {
+        final int T = K.length;
+        final int users = userIds.length;
+        final int chunks = (users + USER_CHUNK - 1) / USER_CHUNK;
+        //每块的部分和: [0,T)命中数, [T,2T)NDCG之和
+        final double[][] partials = new double[chunks][2 * T];
+
+        ForkJoinPool pool = ParallelFor.createPool(threads);
+        try {
+            ParallelFor.forRange(pool, 0, chunks, 1, (from, to) -> {
+                double[] negativeScores = new double[maxNegatives];
+                double[] positiveScores = new double[16];
+                int[] positiveItems = new int[16];
+                int[] items = new int[maxNegatives];
+                for (int chunk = from; chunk < to; chunk++) {
+                    double[] partial = partials[chunk];
+                    int end = Math.min(users, (chunk + 1) * USER_CHUNK);
+                    for (int u = chunk * USER_CHUNK; u < end; u++) {
+                        int userId = userIds[u];
+                        int negativeCount = negativeOffsets[u + 1] - negativeOffsets[u];
+                        System.arraycopy(negatives, negativeOffsets[u], items, 0, negativeCount);
+                        scorer.score(userId, items, negativeCount, negativeScores);
+
+                        int positiveCount = positiveOffsets[u + 1] - positiveOffsets[u];
+                        if (positiveItems.length < positiveCount) {
+                            positiveItems = new int[Math.max(positiveCount, 2 * positiveItems.length)];
+                            positiveScores = new double[positiveItems.length];
+                        }
+                        System.arraycopy(positives, positiveOffsets[u], positiveItems, 0, positiveCount);
+                        scorer.score(userId, positiveItems, positiveCount, positiveScores);
+
+                        for (int k = 0; k < positiveCount; k++) {
+                            double score = positiveScores[k];
+                            int rank = 0;
+                            for (int n = 0; n < negativeCount; n++) {
+                                if (negativeScores[n] >= score) {
+                                    rank++;
+                                }
+                            }
+                            double gain = 1.0 / (Math.log(rank + 2) / Math.log(2));
+                            for (int t = 0; t < T; t++) {
+                                if (rank < K[t]) {
+                                    partial[t]++;
+                                    partial[T + t] += gain;
+                                }
+                            }
+                        }
+                    }
+                }
+            });
+        } finally {
+            ParallelFor.shutdown(pool);
+        }
+
+        double[] sums = new double[2 * T];
+        for (double[] partial : partials) {
+            for (int k = 0; k < sums.length; k++) {
+                sums[k] += partial[k];
+            }
+        }
+        Result[] results = new Result[T];
+        int total = positives.length;
+        for (int t = 0; t < T; t++) {
+            results[t] = total > 0 ? new Result(K[t], sums[t] / total, sums[T + t] / total) : new Result(K[t], 0.0, 0.0);
+        }
+        return results;
+    }
+}
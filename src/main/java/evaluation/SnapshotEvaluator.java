@@ -0,0 +1,287 @@
+package evaluation;
+
+import core.ModelCheckpoint;
+import core.parallel.HogwildScheduler;
+import core.parallel.ParallelFor;
+import core.recommend.BlockedTopNRecommender;
+import core.recommend.FactorScorer;
+import entity.Rating;
+import entity.RsTable;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: evaluation
+ */
+public class SnapshotEvaluator {
+    private static final int REDUCTION_GRAIN = 8192; //并行求和时每块的评分数
+
+    private final Function<ModelCheckpoint, FactorScorer> scorerFactory;
+    private final int threads;
+    private final List<Rating> test;      //评分预测: 在其上计算mae/rmse
+    private final RsTable ratingTable;    //top-N: 训练集评分表, 为null时只评价评分预测
+    private final Evaluator evaluator;
+    private final int[] K;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(HogwildScheduler.daemonThreadFactory("snapshot-evaluation"));
+    private final ForkJoinPool pool;      //评分预测时各快照复用的求和线程池, shutdown时关闭
+
+    public int patience = 0; //连续这么多个快照没有超过最好的快照时建议停止训练, 0为不提前停止
+    public Listener listener = null; //接收每个快照的评价结果, 在后台线程中回调
+
+    //以下状态由this保护
+    private ModelCheckpoint pending = null;   //等待评价的快照, 后台线程忙时被更新的快照覆盖
+    private double pendingLoss = 0;
+    private final ArrayDeque<ModelCheckpoint> spare = new ArrayDeque<>(); //可复用的快照缓冲区
+    private ModelCheckpoint best = null;
+    private double bestScore = Double.NEGATIVE_INFINITY;
+    private int sinceBest = 0;
+    private int skipped = 0;
+    private boolean running = false;
+    private Throwable failure = null;          //评价或回调抛出的异常(包括Error), 由submit/await重新抛出
+    private volatile boolean stop = false;
+
+    /**
+     * Description: 接收快照的评价结果
+     */
+    public interface Listener {
+        void accept(Report report);
+    }
+
+    /**
+     * Description: 一个快照的评价结果
+     */
+    public static class Report {
+        public final int epoch;
+        public final double loss;              //提交快照时的训练误差
+        public final double mae;               //只评价top-N时为NaN
+        public final double rmse;
+        public final Evaluator.Result[] topN;  //只评价评分预测时为null
+        public final double score;             //早停依据, 越大越好: top-N为最大K的ndcg, 否则为-rmse
+        public final boolean best;             //是否为目前最好的快照
+
+        Report(int epoch, double loss, double mae, double rmse, Evaluator.Result[] topN, double score, boolean best) {
+            this.epoch = epoch;
+            this.loss = loss;
+            this.mae = mae;
+            this.rmse = rmse;
+            this.topN = topN;
+            this.score = score;
+            this.best = best;
+        }
+    }
+
+    /**
+     * Description: 评分预测的异步评价. 训练线程每次只付出一次模型拷贝(O((p+q)f)), 在快照上计算mae/rmse的工作
+     * 由一个后台线程完成, 训练继续进行下一轮
+     *
+     * @param test          测试集
+     * @param threads       后台评价使用的线程数
+     * @param scorerFactory 由快照构造打分器, 如 model::createScorer
+     */
+    public SnapshotEvaluator(List<Rating> test, int threads, Function<ModelCheckpoint, FactorScorer> scorerFactory) {
+        this.scorerFactory = scorerFactory;
+        this.threads = threads;
+        this.test = test;
+        this.ratingTable = null;
+        this.evaluator = null;
+        this.K = null;
+        this.pool = ParallelFor.createPool(threads);
+    }
+
+    /**
+     * Description: top-N推荐的异步评价, 在快照上为评分表中的每个用户推荐max(K)个商品, 流式交给 Evaluator 统计
+     *
+     * @param ratingTable   训练集评分表
+     * @param evaluator     训练集和测试集上的评价器, 可以与训练线程共用
+     * @param K             需要评价的推荐个数, 按升序
+     * @param threads       后台评价使用的线程数
+     * @param scorerFactory 由快照构造打分器
+     */
+    public SnapshotEvaluator(RsTable ratingTable, Evaluator evaluator, int[] K, int threads
+            , Function<ModelCheckpoint, FactorScorer> scorerFactory) {
+        this.scorerFactory = scorerFactory;
+        this.threads = threads;
+        this.test = null;
+        this.ratingTable = ratingTable;
+        this.evaluator = evaluator;
+        this.K = K;
+        this.pool = null;
+    }
+
+    /**
+     * Description: 提交一个快照. 在调用线程中把检查点深拷贝到复用的缓冲区后立即返回, 不等待评价.
+     * 后台线程仍在评价上一个快照且已有快照在等待时, 等待的快照被这一个覆盖(跳过该轮), 因此同时最多有
+     * 正在评价、等待评价、目前最好的三份快照
+     *
+     * @param checkpoint 训练中的模型参数, 如 toCheckpoint() 的结果
+     * @param epoch      迭代轮数
+     * @param loss       训练误差
+     */
+    public void submit(ModelCheckpoint checkpoint, int epoch, double loss) {
+        synchronized (this) {
+            if (failure != null) {
+                throw new IllegalStateException("Snapshot evaluation failed", failure);
+            }
+            ModelCheckpoint reuse = pending;
+            if (reuse != null) {
+                skipped++;
+            } else {
+                reuse = spare.poll();
+            }
+            pending = checkpoint.snapshot(reuse);
+            pending.epoch = epoch;
+            pendingLoss = loss;
+            if (running) {
+                return;
+            }
+            running = true;
+        }
+        executor.execute(this::drain);
+    }
+
+    /**
+     * Description: 后台线程依次评价等待中的快照, 直到没有新的快照
+     */
+    private void drain() {
+        while (true) {
+            ModelCheckpoint snapshot;
+            double loss;
+            synchronized (this) {
+                snapshot = pending;
+                loss = pendingLoss;
+                pending = null;
+                if (snapshot == null) {
+                    running = false;
+                    notifyAll();
+                    return;
+                }
+            }
+            try {
+                Report report = evaluate(snapshot, loss);
+                if (listener != null) {
+                    listener.accept(report);
+                }
+            } catch (Throwable e) { //回调抛出时也必须复位running, 否则await/shutdown永远等待
+                synchronized (this) {
+                    failure = e;
+                    pending = null;
+                    running = false;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Description: 评价一个快照并更新最好的快照
+     */
+    private Report evaluate(ModelCheckpoint snapshot, double loss) {
+        FactorScorer scorer = scorerFactory.apply(snapshot);
+        double mae = Double.NaN;
+        double rmse = Double.NaN;
+        Evaluator.Result[] topN = null;
+        double score;
+        if (evaluator != null) {
+            Evaluator.Sink sink = evaluator.sink(K);
+            BlockedTopNRecommender.recommend(ratingTable, K[K.length - 1], scorer, threads, sink);
+            topN = sink.results();
+            score = topN[topN.length - 1].ndcg;
+        } else {
+            double[] sums = ParallelFor.sum(pool, 0, test.size(), REDUCTION_GRAIN, 2, (from, to, s) -> {
+                for (int k = from; k < to; k++) {
+                    Rating r = test.get(k);
+                    double eui = r.score - scorer.score(r.userId, r.itemId);
+                    s[0] += Math.abs(eui);
+                    s[1] += eui * eui;
+                }
+            });
+            mae = test.size() > 0 ? sums[0] / test.size() : 0;
+            rmse = test.size() > 0 ? Math.sqrt(sums[1] / test.size()) : 0;
+            score = -rmse;
+        }
+
+        boolean improved;
+        synchronized (this) {
+            improved = score > bestScore;
+            if (improved) {
+                if (best != null) {
+                    spare.push(best);
+                }
+                best = snapshot;
+                bestScore = score;
+                sinceBest = 0;
+            } else {
+                spare.push(snapshot);
+                sinceBest++;
+                if (patience > 0 && sinceBest >= patience) {
+                    stop = true;
+                }
+            }
+        }
+        return new Report(snapshot.epoch, loss, mae, rmse, topN, score, improved);
+    }
+
+    /**
+     * Description: 是否已经连续patience个快照没有变好, 训练循环每轮检查, 为true时可以停止训练
+     */
+    public boolean shouldStop() {
+        return stop;
+    }
+
+    /**
+     * Description: 等待已提交的快照全部评价完
+     */
+    public synchronized void await() {
+        while (running) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for snapshot evaluation", e);
+            }
+        }
+        if (failure != null) {
+            throw new IllegalStateException("Snapshot evaluation failed", failure);
+        }
+    }
+
+    /**
+     * Description: 等待评价完成并关闭后台线程
+     */
+    public void shutdown() {
+        try {
+            await();
+        } finally {
+            executor.shutdown();
+            ParallelFor.shutdown(pool);
+        }
+    }
+
+    /**
+     * Description: 目前最好的快照, 可用 fromCheckpoint 恢复为模型参数. 调用前应先 shutdown, 之后快照不再被复用
+     *
+     * @return 快照, 还没有评价过任何快照时为null
+     */
+    public synchronized ModelCheckpoint best() {
+        return best;
+    }
+
+    /**
+     * Description: 因后台线程忙而被覆盖、没有评价的快照数
+     */
+    public synchronized int skipped() {
+        return skipped;
+    }
+}
@@ -0,0 +1,105 @@
+package core;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * @version: 1.0
+ * @author: Liujm
+ * @site: https://github.com/liujm7
+ * @contact: kaka206@163.com
+ * @software: Idea
+ * @date： 2026/10/18
+ * @package_name: core
+ */
+
+/**
+ * Description: 基于 jdk.incubator.vector 的double内核, float存储沿用 ScalarKernels.
+ * 需要JDK 16+, 单独编译后与主源码放在同一classpath:
+ * javac --release 16 --add-modules jdk.incubator.vector -cp <主源码输出> -d <输出> src/main/java16/core/VectorApiKernels.java
+ * 运行时加 --add-modules jdk.incubator.vector -Dkernels=vector, 由 MathUtility 反射加载
+ */
+class VectorApiKernels extends ScalarKernels {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public double dot(double[] a, int aOff, double[] b, int bOff, int n) {
+        int bound = SPECIES.loopBound(n);
+        DoubleVector acc = DoubleVector.zero(SPECIES);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOff + i);
+            DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOff + i);
+            acc = va.fma(vb, acc);
+        }
+        double s = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++) {
+            s += a[aOff + i] * b[bOff + i];
+        }
+        return s;
+    }
+
+    @Override
+    public double squaredDistance(double[] a, int aOff, double[] b, int bOff, int n) {
+        int bound = SPECIES.loopBound(n);
+        DoubleVector acc = DoubleVector.zero(SPECIES);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector e = DoubleVector.fromArray(SPECIES, a, aOff + i)
+                    .sub(DoubleVector.fromArray(SPECIES, b, bOff + i));
+            acc = e.fma(e, acc);
+        }
+        double s = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++) {
+            double e = a[aOff + i] - b[bOff + i];
+            s += e * e;
+        }
+        return s;
+    }
+
+    @Override
+    public void axpy(double alpha, double[] x, int xOff, double[] y, int yOff, int n) {
+        DoubleVector va = DoubleVector.broadcast(SPECIES, alpha);
+        int bound = SPECIES.loopBound(n);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector vy = DoubleVector.fromArray(SPECIES, y, yOff + i);
+            DoubleVector.fromArray(SPECIES, x, xOff + i).fma(va, vy).intoArray(y, yOff + i);
+        }
+        for (; i < n; i++) {
+            y[yOff + i] += alpha * x[xOff + i];
+        }
+    }
+
+    @Override
+    public void scale(double alpha, double[] x, int xOff, int n) {
+        int bound = SPECIES.loopBound(n);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, x, xOff + i).mul(alpha).intoArray(x, xOff + i);
+        }
+        for (; i < n; i++) {
+            x[xOff + i] *= alpha;
+        }
+    }
+
+    @Override
+    public void syr(double alpha, double[] x, double[][] a, int n) {
+        for (int i = 0; i < n; i++) {
+            double axi = alpha * x[i];
+            double[] ai = a[i];
+            DoubleVector vaxi = DoubleVector.broadcast(SPECIES, axi);
+            int len = n - i;
+            int bound = SPECIES.loopBound(len);
+            int j = 0;
+            for (; j < bound; j += SPECIES.length()) {
+                DoubleVector vai = DoubleVector.fromArray(SPECIES, ai, i + j);
+                DoubleVector.fromArray(SPECIES, x, i + j).fma(vaxi, vai).intoArray(ai, i + j);
+            }
+            for (; j < len; j++) {
+                ai[i + j] += axi * x[i + j];
+            }
+        }
+    }
+}